@@ -0,0 +1,74 @@
+package com.tftp.bench;
+
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.TFTPOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet cost of the codec: building DATA/ACK/request packets in place and
+ * decoding headers, strings and options out of a received packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private final ByteBuffer dataBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + TFTPOptions.DEFAULT_BLOCK_SIZE);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE);
+    private final ByteBuffer requestBuffer = ByteBuffer.allocate(516);
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private ByteBuffer request;
+    private ByteBuffer data;
+    private int optionsOffset;
+    private int block;
+
+    @Setup
+    public void setUp() {
+        options.put(TFTPOptions.BLKSIZE, "1428");
+        options.put(TFTPOptions.WINDOWSIZE, "16");
+        options.put(TFTPOptions.TSIZE, "0");
+
+        String filename = "images/netboot/vmlinuz-6.1.0-amd64";
+        request = TFTPCodec.encodeRequest(ByteBuffer.allocate(516), TFTPCodec.OP_RRQ, filename, "octet", options);
+        optionsOffset = 2 + filename.length() + 1 + "octet".length() + 1;
+        data = TFTPCodec.encodeData(ByteBuffer.allocate(dataBuffer.capacity()), 4242, TFTPOptions.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeData() {
+        return TFTPCodec.encodeData(dataBuffer, ++block, TFTPOptions.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAck() {
+        return TFTPCodec.encodeAck(ackBuffer, ++block);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRequest() {
+        return TFTPCodec.encodeRequest(requestBuffer, TFTPCodec.OP_RRQ, "images/netboot/vmlinuz-6.1.0-amd64", "octet", options);
+    }
+
+    @Benchmark
+    public int decodeDataHeader() {
+        return TFTPCodec.opcode(data) + TFTPCodec.blockNumber(data);
+    }
+
+    /** The null-terminated string reader behind filenames, modes and options. */
+    @Benchmark
+    public String readString() {
+        return TFTPCodec.readString(request.position(2));
+    }
+
+    @Benchmark
+    public Map<String, String> parseOptions() {
+        return TFTPOptions.parse(request.position(optionsOffset));
+    }
+}
@@ -0,0 +1,141 @@
+package com.tftp.bench;
+
+import com.tftp.tcp.utils.DeflateTCP;
+import com.tftp.tcp.utils.FrameInputTCP;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU against wire bytes for compressed TCP bodies: how fast one core deflates and
+ * inflates a file at each level, and how many bytes that puts on the wire. Level 0
+ * is the body sent as it is. Throughput is in file megabytes per second, with the
+ * wire megabytes alongside; their ratio is what the link sees.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    @Param({"0", "1", "6", "9"})
+    public int level;
+
+    /** {@code log}: text lines like a server log; {@code random}: bytes that do not compress. */
+    @Param({"log", "random"})
+    public String content;
+
+    private ByteBuffer file;
+    private byte[] compressed;
+    private FileChannel sink;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Wire {
+        public double megabytes;
+        public double wireMegabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = ByteBuffer.wrap(content.equals("log") ? logLines() : randomBytes());
+        if (level > 0) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflateTCP.send(file.duplicate(), level, new DataOutputStream(bytes), n -> { });
+            compressed = bytes.toByteArray();
+        }
+        sink = FileChannel.open(Path.of("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    @Benchmark
+    public void deflate(Wire wire) throws IOException {
+        CountingStream counter = new CountingStream();
+        DataOutputStream out = new DataOutputStream(counter);
+        if (level > 0) {
+            DeflateTCP.send(file.duplicate(), level, out, n -> { });
+        } else {
+            out.write(file.array());
+        }
+        wire.megabytes += FILE_SIZE / 1e6;
+        wire.wireMegabytes += counter.count / 1e6;
+    }
+
+    @Benchmark
+    public void inflate(Wire wire) throws IOException {
+        if (level > 0) {
+            FrameInputTCP in = new FrameInputTCP(Channels.newChannel(new ByteArrayInputStream(compressed)));
+            DeflateTCP.receive(in, sink, 0, FILE_SIZE, n -> { });
+            wire.wireMegabytes += compressed.length / 1e6;
+        } else {
+            FrameInputTCP in = new FrameInputTCP(Channels.newChannel(new ByteArrayInputStream(file.array())));
+            for (long position = 0; position < FILE_SIZE; ) {
+                position += in.copyChunk(sink, position, FILE_SIZE - position);
+            }
+            wire.wireMegabytes += FILE_SIZE / 1e6;
+        }
+        wire.megabytes += FILE_SIZE / 1e6;
+    }
+
+    private static byte[] logLines() {
+        String[] words = {"connection", "request", "transfer", "block", "timeout", "server", "client", "retry",
+                "window", "accepted", "closed", "error", "file", "opened"};
+        String[] levels = {"INFO", "WARN", "DEBUG"};
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder(FILE_SIZE + 200);
+        for (int i = 0; text.length() < FILE_SIZE; i++) {
+            text.append(String.format("2026-10-17 12:%02d:%02d.%03d %s [worker-%d] %s %s %s id=%d%n",
+                    i / 3600 % 60, i / 60 % 60, i % 1000, levels[random.nextInt(levels.length)], 1 + random.nextInt(16),
+                    words[random.nextInt(words.length)], words[random.nextInt(words.length)],
+                    words[random.nextInt(words.length)], random.nextInt(1_000_000)));
+        }
+        byte[] bytes = new byte[FILE_SIZE];
+        System.arraycopy(text.toString().getBytes(StandardCharsets.US_ASCII), 0, bytes, 0, FILE_SIZE);
+        return bytes;
+    }
+
+    private static byte[] randomBytes() {
+        byte[] bytes = new byte[FILE_SIZE];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    // Stands in for the socket: copies out what would have been sent, as a socket write does, and counts it
+    private static class CountingStream extends OutputStream {
+        private final byte[] socketBuffer = new byte[64 * 1024];
+        long count;
+
+        @Override
+        public void write(int b) {
+            socketBuffer[0] = (byte) b;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int copied = 0; copied < len; copied += socketBuffer.length) {
+                System.arraycopy(b, off + copied, socketBuffer, 0, Math.min(socketBuffer.length, len - copied));
+            }
+            count += len;
+        }
+    }
+}
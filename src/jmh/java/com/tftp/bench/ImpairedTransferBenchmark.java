@@ -0,0 +1,130 @@
+package com.tftp.bench;
+
+import com.tftp.common.TransferMetrics;
+import com.tftp.udp.client.TransferClientUDP;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.LossyNetwork;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole RRQ and WRQ transfers between the UDP client and server over a simulated lossy
+ * path, impaired the same way in both directions, from a clean loopback to a WAN-like
+ * path with loss, jitter, duplicates and reordering. Transfers per second is the inverse of
+ * the time to complete one; {@code megabytes} is the goodput in MB/s, and
+ * {@code retransmissions} and {@code timeouts} count the server's resent packets and the
+ * client's timeouts per second. Fates are drawn from a fixed seed, so runs repeat closely.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ImpairedTransferBenchmark {
+    private static final TransferMetrics SERVER = TransferMetrics.forServer("udp");
+
+    @Param({"1048576"})
+    public long fileSize;
+
+    @Param({"1428"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    /** A named path; see {@link #spec}. */
+    @Param({"clean", "loss1", "loss5", "wan", "rough"})
+    public String path;
+
+    private Path directory;
+    private Path source;
+    private TransferClientUDP client;
+    private TransferClientUDP.Options options;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rates {
+        public double megabytes;
+        public long retransmissions;
+        public long timeouts;
+
+        void add(TransferClientUDP.Result result, long retransmitted) {
+            megabytes += result.bytes() / 1e6;
+            retransmissions += retransmitted;
+            timeouts += result.timeouts();
+        }
+    }
+
+    /** Each upload needs a fresh name, since the server refuses to overwrite. */
+    @State(Scope.Thread)
+    public static class Upload {
+        private int sequence;
+        String name;
+
+        @Setup(Level.Invocation)
+        public void next() {
+            name = "upload-" + Thread.currentThread().threadId() + "-" + sequence++ + ".bin";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Loopback.prepare();
+        source = Loopback.createFile(directory, fileSize);
+        DatagramNetwork network = LossyNetwork.parse(DatagramNetwork.SYSTEM, spec(path) + ",seed=1");
+        InetSocketAddress server = Loopback.startUdp("threads", network);
+        client = new TransferClientUDP(server, null, 1, network);
+        options = new TransferClientUDP.Options(blockSize, windowSize, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        Loopback.delete(directory);
+    }
+
+    @Benchmark
+    public void rrq(Rates rates) throws Exception {
+        long before = SERVER.getRetransmissions();
+        Path target = directory.resolve("download.bin");
+        TransferClientUDP.Result result = await(client.get(source.toString(), target, options));
+        rates.add(result, SERVER.getRetransmissions() - before);
+    }
+
+    @Benchmark
+    public void wrq(Rates rates, Upload upload) throws Exception {
+        long before = SERVER.getRetransmissions();
+        TransferClientUDP.Result result = await(client.put(source, upload.name, options));
+        rates.add(result, SERVER.getRetransmissions() - before);
+        Files.deleteIfExists(directory.resolve("uploads").resolve(upload.name));
+    }
+
+    // Names rather than settings, since JMH splits parameter values at commas
+    private static String spec(String path) {
+        return switch (path) {
+            case "clean" -> "";
+            case "loss1" -> "loss=0.01";
+            case "loss5" -> "loss=0.05";
+            case "wan" -> "latency=10,jitter=5";
+            case "rough" -> "loss=0.01,latency=10,jitter=5,duplicate=0.01,reorder=0.01";
+            default -> throw new IllegalArgumentException("Unknown path: " + path);
+        };
+    }
+
+    private static TransferClientUDP.Result await(CompletableFuture<TransferClientUDP.Result> transfer)
+            throws Exception {
+        try {
+            return transfer.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.tftp.bench;
+
+import com.tftp.tcp.server.TFTPServerTCP;
+import com.tftp.udp.server.EventLoopServer;
+import com.tftp.udp.server.TFTPServerUDP;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.DatagramTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Fixtures shared by the transfer benchmarks: servers started inside the benchmark
+ * JVM on ephemeral loopback ports, and the files they serve and receive.
+ */
+final class Loopback {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final Logger SERVER_LOGGER = Logger.getLogger("com.tftp");
+
+    private Loopback() {
+    }
+
+    /** Points both servers' upload directory at a scratch directory; must run before they start. */
+    static Path prepare() throws IOException {
+        // The servers log every transfer, which would otherwise dominate the console and the profile
+        SERVER_LOGGER.setLevel(Level.WARNING);
+        Path directory = Files.createTempDirectory("tftp-bench");
+        System.setProperty("tftp.upload.dir", directory.resolve("uploads").toString());
+        return directory;
+    }
+
+    static InetSocketAddress startUdp(String engine) throws IOException {
+        return startUdp(engine, DatagramNetwork.SYSTEM);
+    }
+
+    /** Starts a UDP server whose transfers run on {@code network}; the nio engine only runs on real sockets. */
+    static InetSocketAddress startUdp(String engine, DatagramNetwork network) throws IOException {
+        if (engine.equals("nio")) {
+            DatagramChannel listener = DatagramChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+            EventLoopServer server = new EventLoopServer(0, Runtime.getRuntime().availableProcessors());
+            daemon("udp-nio", () -> server.serve(listener));
+            return (InetSocketAddress) listener.getLocalAddress();
+        }
+
+        DatagramTransport listener = network.bind(new InetSocketAddress(LOOPBACK, 0));
+        var executor = engine.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(Thread.ofPlatform().daemon().factory());
+        daemon("udp-" + engine, () -> TFTPServerUDP.serve(listener, network, executor));
+        return (InetSocketAddress) listener.localAddress();
+    }
+
+    static InetSocketAddress startTcp(String threads) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+        Thread.Builder builder = threads.equals("virtual") ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        daemon("tcp-" + threads, () -> TFTPServerTCP.serve(serverChannel, builder));
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /** Creates a file of {@code size} bytes of incompressible data. */
+    static Path createFile(Path directory, long size) throws IOException {
+        Path file = directory.resolve("source-" + size + ".bin");
+        byte[] chunk = new byte[1 << 20];
+        new Random(size).nextBytes(chunk);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; ) {
+                written += channel.write(ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written)));
+            }
+        }
+        return file;
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private static void daemon(String name, Server server) {
+        Thread.ofPlatform().daemon().name("bench-" + name).start(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                System.err.println("Benchmark server stopped: " + e.getMessage());
+            }
+        });
+    }
+}
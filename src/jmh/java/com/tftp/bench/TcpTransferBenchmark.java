@@ -0,0 +1,138 @@
+package com.tftp.bench;
+
+import com.tftp.common.TFTPCodec;
+import com.tftp.tcp.utils.FrameInputTCP;
+import com.tftp.tcp.utils.TFTPFrameTCP;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole download and upload requests against the TCP server over loopback. The
+ * stream has no packets of its own, so only the MB/s counter is reported next to
+ * transfers per second; run with {@code -prof gc} for the allocation rate.
+ * {@code sessionRrq} pipelines its downloads over one connection, the others pay
+ * for a connection each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class TcpTransferBenchmark {
+    private static final int SESSION_REQUESTS = 100;
+
+    @Param({"1024", "1048576", "1073741824"})
+    public long fileSize;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    private Path directory;
+    private Path source;
+    private FileChannel sourceChannel;
+    private InetSocketAddress server;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rates {
+        public double megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Loopback.prepare();
+        source = Loopback.createFile(directory, fileSize);
+        sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+        server = Loopback.startTcp(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sourceChannel.close();
+        Loopback.delete(directory);
+    }
+
+    @Benchmark
+    public void rrq(Rates rates) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            request(channel, TFTPCodec.OP_RRQ, source.toString());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            long received = 0;
+            int read;
+            while ((read = channel.read(buffer.clear())) >= 0) {
+                received += read;
+            }
+            rates.megabytes += received / 1e6;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SESSION_REQUESTS)
+    public void sessionRrq(Rates rates) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            TFTPFrameTCP.writeSessionStart(out, 0);
+            for (int i = 0; i < SESSION_REQUESTS; i++) {
+                TFTPFrameTCP.writeReadRequest(out, source.toString(), 0, -1);
+            }
+            // Small enough to sit in the socket buffers while the replies stream back
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+            channel.shutdownOutput();
+
+            FrameInputTCP in = new FrameInputTCP(channel);
+            for (int i = 0; i < SESSION_REQUESTS; i++) {
+                if (in.readInt() != TFTPFrameTCP.STATUS_OK) throw new IOException("Server refused " + source);
+                in.readLong(); // File size
+                in.readUTF(); // Digest algorithm and digest
+                in.readUTF();
+                long count = in.readLong();
+                in.readByte(); // Raw, as no compression was offered
+                rates.megabytes += in.discard(count) / 1e6;
+            }
+        }
+    }
+
+    @Benchmark
+    public void wrq(Rates rates) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            request(channel, TFTPCodec.OP_WRQ, "upload.bin");
+            long size = sourceChannel.size();
+            for (long position = 0; position < size; ) {
+                position += sourceChannel.transferTo(position, size - position, channel);
+            }
+            // The server closes the connection once it has stored everything
+            channel.shutdownOutput();
+            while (channel.read(ByteBuffer.allocate(1)) >= 0) {
+                // Drain until the server is done
+            }
+            rates.megabytes += size / 1e6;
+        }
+    }
+
+    // Sends the request header and checks the server's status word
+    private static void request(SocketChannel channel, short opcode, String filename) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(opcode);
+        out.writeUTF(filename);
+        channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+
+        ByteBuffer status = ByteBuffer.allocate(4);
+        while (status.hasRemaining()) {
+            if (channel.read(status) < 0) throw new IOException("Connection closed before status");
+        }
+        if (status.getInt(0) != 0) throw new IOException("Server refused " + filename);
+    }
+}
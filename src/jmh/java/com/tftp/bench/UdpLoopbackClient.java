@@ -0,0 +1,182 @@
+package com.tftp.bench;
+
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.TFTPOptions;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Windowed TFTP client reduced to what the transfer benchmarks need: it reads into
+ * the void and writes from an open file, so what is measured is the server plus
+ * the loopback path. Counts the DATA packets it moves.
+ */
+final class UdpLoopbackClient {
+    private static final int TIMEOUT_MILLIS = 1000;
+    private static final int MAX_RETRIES = 5;
+
+    long packets;
+    long bytes;
+
+    void read(InetSocketAddress server, String filename, int blockSize, int windowSize) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setReceiveBufferSize(2 * windowSize * (TFTPCodec.HEADER_SIZE + blockSize));
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + blockSize);
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+            ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE);
+            sendRequest(socket, server, TFTPCodec.OP_RRQ, filename, blockSize, windowSize);
+
+            long received = 0;
+            int sinceAck = 0;
+            int retries = 0;
+            boolean gapReported = false;
+            while (true) {
+                ByteBuffer packet;
+                try {
+                    packet = receive(socket, receivePacket, receiveBuffer);
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                    if (socket.isConnected()) {
+                        send(socket, TFTPCodec.encodeAck(ackBuffer, (int) received));
+                    } else {
+                        sendRequest(socket, server, TFTPCodec.OP_RRQ, filename, blockSize, windowSize);
+                    }
+                    continue;
+                }
+
+                short opcode = TFTPCodec.opcode(packet);
+                if (opcode == TFTPCodec.OP_ERROR) throw new IOException(TFTPCodec.errorMessage(packet));
+                if (opcode == TFTPCodec.OP_OACK) {
+                    send(socket, TFTPCodec.encodeAck(ackBuffer, 0));
+                    continue;
+                }
+                if (opcode != TFTPCodec.OP_DATA) continue;
+
+                if (TFTPCodec.blockNumber(packet) != ((received + 1) & 0xFFFF)) {
+                    if (!gapReported || windowSize == 1) {
+                        send(socket, TFTPCodec.encodeAck(ackBuffer, (int) received));
+                        sinceAck = 0;
+                        gapReported = windowSize > 1;
+                    }
+                    continue;
+                }
+                int length = packet.remaining() - TFTPCodec.HEADER_SIZE;
+                received++;
+                packets++;
+                bytes += length;
+                retries = 0;
+                gapReported = false;
+                boolean last = length < blockSize;
+                if (last || ++sinceAck == windowSize) {
+                    send(socket, TFTPCodec.encodeAck(ackBuffer, (int) received));
+                    sinceAck = 0;
+                }
+                if (last) return;
+            }
+        }
+    }
+
+    void write(InetSocketAddress server, String filename, FileChannel source, int blockSize, int windowSize)
+            throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(516);
+            DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+            ByteBuffer packetBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + blockSize);
+            sendRequest(socket, server, TFTPCodec.OP_WRQ, filename, blockSize, windowSize);
+
+            int retries = 0;
+            while (true) {
+                try {
+                    ByteBuffer reply = receive(socket, receivePacket, receiveBuffer);
+                    short opcode = TFTPCodec.opcode(reply);
+                    if (opcode == TFTPCodec.OP_ERROR) throw new IOException(TFTPCodec.errorMessage(reply));
+                    if (opcode == TFTPCodec.OP_OACK || opcode == TFTPCodec.OP_ACK && TFTPCodec.blockNumber(reply) == 0) break;
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                    sendRequest(socket, server, TFTPCodec.OP_WRQ, filename, blockSize, windowSize);
+                }
+            }
+
+            long lastBlock = source.size() / blockSize + 1;
+            long acked = 0;
+            retries = 0;
+            while (acked < lastBlock) {
+                long windowEnd = Math.min(acked + windowSize, lastBlock);
+                for (long block = acked + 1; block <= windowEnd; block++) {
+                    int length = readBlock(source, block, blockSize, packetBuffer);
+                    send(socket, TFTPCodec.encodeData(packetBuffer, (int) block, length));
+                    packets++;
+                    bytes += length;
+                }
+                try {
+                    long block = awaitAck(socket, receivePacket, receiveBuffer, acked, windowEnd);
+                    if (block > acked) {
+                        acked = block;
+                        retries = 0;
+                        continue;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Resend the window below
+                }
+                if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+            }
+        }
+    }
+
+    private static long awaitAck(DatagramSocket socket, DatagramPacket receivePacket, ByteBuffer receiveBuffer,
+                                 long acked, long windowEnd) throws IOException {
+        while (true) {
+            ByteBuffer packet = receive(socket, receivePacket, receiveBuffer);
+            short opcode = TFTPCodec.opcode(packet);
+            if (opcode == TFTPCodec.OP_ERROR) throw new IOException(TFTPCodec.errorMessage(packet));
+            if (opcode != TFTPCodec.OP_ACK) continue;
+            long block = acked + ((TFTPCodec.blockNumber(packet) - acked) & 0xFFFF);
+            if (block >= acked && block <= windowEnd) return block;
+        }
+    }
+
+    private static int readBlock(FileChannel source, long block, int blockSize, ByteBuffer packetBuffer) throws IOException {
+        long position = (block - 1) * blockSize;
+        packetBuffer.limit(TFTPCodec.HEADER_SIZE + blockSize).position(TFTPCodec.HEADER_SIZE);
+        while (packetBuffer.hasRemaining()) {
+            if (source.read(packetBuffer, position + packetBuffer.position() - TFTPCodec.HEADER_SIZE) < 0) break;
+        }
+        return packetBuffer.position() - TFTPCodec.HEADER_SIZE;
+    }
+
+    private static void sendRequest(DatagramSocket socket, InetSocketAddress server, short opcode, String filename,
+                                    int blockSize, int windowSize) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (blockSize != TFTPOptions.DEFAULT_BLOCK_SIZE) {
+            options.put(TFTPOptions.BLKSIZE, String.valueOf(blockSize));
+        }
+        if (windowSize != 1) {
+            options.put(TFTPOptions.WINDOWSIZE, String.valueOf(windowSize));
+        }
+        ByteBuffer request = TFTPCodec.encodeRequest(ByteBuffer.allocate(516), opcode, filename, "octet", options);
+        socket.send(new DatagramPacket(request.array(), request.limit(), server));
+    }
+
+    private static void send(DatagramSocket socket, ByteBuffer packet) throws IOException {
+        socket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining()));
+    }
+
+    private static ByteBuffer receive(DatagramSocket socket, DatagramPacket receivePacket, ByteBuffer receiveBuffer)
+            throws IOException {
+        receivePacket.setLength(receiveBuffer.capacity());
+        socket.receive(receivePacket);
+        if (!socket.isConnected()) {
+            socket.connect(receivePacket.getAddress(), receivePacket.getPort());
+        }
+        return receiveBuffer.clear().limit(receivePacket.getLength());
+    }
+}
@@ -0,0 +1,94 @@
+package com.tftp.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole RRQ and WRQ transfers against the UDP server over loopback. Besides
+ * transfers per second, the MB/s and packets/s columns come from the counters;
+ * run with {@code -prof gc} for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class UdpTransferBenchmark {
+    @Param({"1024", "1048576", "1073741824"})
+    public long fileSize;
+
+    @Param({"8192"})
+    public int blockSize;
+
+    @Param({"16"})
+    public int windowSize;
+
+    @Param({"threads", "nio"})
+    public String engine;
+
+    private Path directory;
+    private Path source;
+    private FileChannel sourceChannel;
+    private InetSocketAddress server;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rates {
+        public double megabytes;
+        public long packets;
+
+        void add(UdpLoopbackClient client) {
+            megabytes += client.bytes / 1e6;
+            packets += client.packets;
+        }
+    }
+
+    /** Each upload needs a fresh name, since the server refuses to overwrite. */
+    @State(Scope.Thread)
+    public static class Upload {
+        private int sequence;
+        String name;
+
+        @Setup(Level.Invocation)
+        public void next() {
+            name = "upload-" + Thread.currentThread().threadId() + "-" + sequence++ + ".bin";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Loopback.prepare();
+        source = Loopback.createFile(directory, fileSize);
+        sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+        server = Loopback.startUdp(engine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sourceChannel.close();
+        Loopback.delete(directory);
+    }
+
+    @Benchmark
+    public void rrq(Rates rates) throws IOException {
+        UdpLoopbackClient client = new UdpLoopbackClient();
+        client.read(server, source.toString(), blockSize, windowSize);
+        rates.add(client);
+    }
+
+    @Benchmark
+    public void wrq(Rates rates, Upload upload) throws IOException {
+        UdpLoopbackClient client = new UdpLoopbackClient();
+        client.write(server, upload.name, sourceChannel, blockSize, windowSize);
+        rates.add(client);
+        Files.deleteIfExists(directory.resolve("uploads").resolve(upload.name));
+    }
+}
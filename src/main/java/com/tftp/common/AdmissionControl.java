@@ -0,0 +1,237 @@
+package com.tftp.common;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides which transfers the UDP and TCP servers take on and how fast they may go.
+ * A request is refused at once, with an error the client sees straight away, when the
+ * server already runs {@code -Dtftp.limit.transfers} transfers or the client's address
+ * runs {@code -Dtftp.limit.perClient} of them. Admitted transfers are shaped by token
+ * buckets: all of them together to {@code -Dtftp.limit.rate} bytes per second, and each
+ * one to {@code -Dtftp.limit.transferRate}. Clients listed in {@code -Dtftp.limit.priority},
+ * as addresses or CIDR blocks separated by commas, are neither counted, capped nor
+ * shaped, so they keep their latency however many bulk transfers are running.
+ *
+ * <p>Every limit is off unless set to a positive value. Bursts of a tenth of a second's
+ * worth of bytes, and at least 64 KB, pass unshaped.
+ */
+public class AdmissionControl {
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    // Largest write a shaped channel passes on at once, so that pacing stays smooth
+    private static final int PACED_CHUNK = 16 * 1024;
+    private static final AdmissionControl SHARED = new AdmissionControl(
+            Integer.getInteger("tftp.limit.transfers", 0),
+            Integer.getInteger("tftp.limit.perClient", 0),
+            Long.getLong("tftp.limit.rate", 0),
+            Long.getLong("tftp.limit.transferRate", 0),
+            parseNetworks(System.getProperty("tftp.limit.priority", "")));
+
+    /** A permit that is always granted, never shaped and holds no slot. */
+    public static final Permit UNLIMITED = new Permit(null, null, null, null);
+
+    private final int maxTransfers;
+    private final int maxPerClient;
+    private final TokenBucket rate;
+    private final long transferRate;
+    private final List<Network> priority;
+    private final Map<InetAddress, Integer> perClient = new HashMap<>();
+    private int transfers;
+
+    public AdmissionControl(int maxTransfers, int maxPerClient, long bytesPerSecond, long transferBytesPerSecond,
+                            List<Network> priority) {
+        this.maxTransfers = maxTransfers;
+        this.maxPerClient = maxPerClient;
+        this.rate = bytesPerSecond > 0 ? bucket(bytesPerSecond) : null;
+        this.transferRate = transferBytesPerSecond;
+        this.priority = List.copyOf(priority);
+    }
+
+    public static AdmissionControl shared() {
+        return SHARED;
+    }
+
+    /** An address, or a block of them such as {@code 10.1.0.0/16}. */
+    public record Network(byte[] prefix, int bits) {
+
+        public static Network parse(String spec) throws UnknownHostException {
+            int slash = spec.indexOf('/');
+            byte[] address = InetAddress.getByName(slash < 0 ? spec : spec.substring(0, slash)).getAddress();
+            int bits = slash < 0 ? address.length * 8 : Integer.parseInt(spec.substring(slash + 1));
+            if (bits < 0 || bits > address.length * 8) {
+                throw new IllegalArgumentException("Bad prefix length in " + spec);
+            }
+            return new Network(address, bits);
+        }
+
+        public boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            if (bytes.length != prefix.length) return false;
+            for (int bit = 0; bit < bits; bit += 8) {
+                int mask = 0xFF << (8 - Math.min(8, bits - bit)) & 0xFF;
+                if ((bytes[bit / 8] & mask) != (prefix[bit / 8] & mask)) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Parses a comma-separated list of addresses and CIDR blocks. */
+    public static List<Network> parseNetworks(String specs) {
+        List<Network> networks = new ArrayList<>();
+        for (String spec : specs.split(",")) {
+            if (spec.isBlank()) continue;
+            try {
+                networks.add(Network.parse(spec.trim()));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown address: " + spec.trim(), e);
+            }
+        }
+        return networks;
+    }
+
+    /**
+     * Takes a transfer slot for {@code client}. The permit tells whether it was granted
+     * and, if not, why; a granted one shapes the transfer and must be closed when it ends.
+     */
+    public Permit admit(InetAddress client) {
+        for (Network network : priority) {
+            if (network.contains(client)) return UNLIMITED;
+        }
+        synchronized (this) {
+            if (maxTransfers > 0 && transfers >= maxTransfers) {
+                return refused("Server busy: " + transfers + " transfers in progress, try again later");
+            }
+            int fromClient = perClient.getOrDefault(client, 0);
+            if (maxPerClient > 0 && fromClient >= maxPerClient) {
+                return refused("Too many transfers from " + client.getHostAddress() + " (limit " + maxPerClient + ")");
+            }
+            transfers++;
+            perClient.put(client, fromClient + 1);
+        }
+        return new Permit(this, client, transferRate > 0 ? bucket(transferRate) : null, null);
+    }
+
+    /** Transfers holding a slot right now. */
+    public synchronized int transfers() {
+        return transfers;
+    }
+
+    private synchronized void release(InetAddress client) {
+        transfers--;
+        perClient.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private Permit refused(String reason) {
+        return new Permit(null, null, null, reason);
+    }
+
+    private static TokenBucket bucket(long bytesPerSecond) {
+        return new TokenBucket(bytesPerSecond, Math.max(MIN_BURST_BYTES, bytesPerSecond / 10));
+    }
+
+    /** One transfer's slot and rate limit. */
+    public static final class Permit implements AutoCloseable {
+        private final AdmissionControl owner;
+        private final InetAddress client;
+        private final TokenBucket own;
+        private final String refusal;
+        private boolean closed;
+
+        private Permit(AdmissionControl owner, InetAddress client, TokenBucket own, String refusal) {
+            this.owner = owner;
+            this.client = client;
+            this.own = own;
+            this.refusal = refusal;
+        }
+
+        public boolean granted() {
+            return refusal == null;
+        }
+
+        /** Why the transfer was refused, in words for the client; null if it was not. */
+        public String refusal() {
+            return refusal;
+        }
+
+        /** Whether anything limits this transfer's rate. */
+        public boolean shaped() {
+            return own != null || (owner != null && owner.rate != null);
+        }
+
+        /** Accounts for {@code bytes} about to be moved and returns the nanoseconds to wait first. */
+        public long reserve(long bytes) {
+            long waitNanos = 0;
+            if (owner != null && owner.rate != null) {
+                waitNanos = owner.rate.reserve(bytes);
+            }
+            if (own != null) {
+                waitNanos = Math.max(waitNanos, own.reserve(bytes));
+            }
+            return waitNanos;
+        }
+
+        /**
+         * As {@link #reserve}, but waits as long as needed. An interrupted wait returns
+         * early with the thread's interrupt status set.
+         */
+        public void pace(long bytes) {
+            long until = System.nanoTime() + reserve(bytes);
+            long waitNanos;
+            while ((waitNanos = until - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+
+        /**
+         * {@code target} itself if the transfer is not shaped, otherwise a channel that
+         * paces every write to it. Shaped bytes go through the heap, never zero-copy.
+         */
+        public WritableByteChannel paced(WritableByteChannel target) {
+            if (!shaped()) return target;
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer source) throws IOException {
+                    int limit = source.limit();
+                    source.limit(source.position() + Math.min(source.remaining(), PACED_CHUNK));
+                    int written;
+                    try {
+                        written = target.write(source);
+                    } finally {
+                        source.limit(limit);
+                    }
+                    pace(written);
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return target.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target.close();
+                }
+            };
+        }
+
+        /** Gives the slot back; only the first call counts. */
+        @Override
+        public void close() {
+            if (owner == null) return;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            owner.release(client);
+        }
+    }
+}
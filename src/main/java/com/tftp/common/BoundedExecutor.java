@@ -0,0 +1,104 @@
+package com.tftp.common;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking tasks on an executor, no more than {@code limit} of them at a time.
+ * Tasks over the limit wait in a queue rather than on a thread, so a caller can hand
+ * over thousands at once, and each result comes back through the task's future. A
+ * task whose future is cancelled while it waits is never run.
+ */
+public class BoundedExecutor {
+    private final Executor executor;
+    private final int limit;
+    private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    // Queued and running tasks, guarded by this
+    private int outstanding;
+
+    public BoundedExecutor(Executor executor, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Limit must be at least 1: " + limit);
+        this.executor = executor;
+        this.limit = limit;
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> work) {
+        Task<T> task = new Task<>(work);
+        synchronized (this) {
+            outstanding++;
+        }
+        queue.add(task);
+        dispatch();
+        return task.future;
+    }
+
+    /** Waits until every task submitted so far has finished. */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (this) {
+            while (outstanding > 0) {
+                wait();
+            }
+        }
+    }
+
+    // Starts queued tasks while there is room. Whoever frees a slot calls this again, and a
+    // submitter that finds no room has its task picked up by the next task to finish.
+    private void dispatch() {
+        while (!queue.isEmpty()) {
+            int current = running.get();
+            if (current >= limit) return;
+            if (!running.compareAndSet(current, current + 1)) continue;
+            Task<?> task = queue.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        done();
+                        dispatch();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                task.future.completeExceptionally(e);
+                running.decrementAndGet();
+                done();
+            }
+        }
+    }
+
+    private synchronized void done() {
+        if (--outstanding == 0) {
+            notifyAll();
+        }
+    }
+
+    private static final class Task<T> implements Runnable {
+        private final Callable<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Task(Callable<T> work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) return;
+            try {
+                future.complete(work.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of heap packet buffers in power-of-two size classes, so that transfers
+ * starting and finishing at a high rate do not allocate a fresh block buffer each.
+ * Each class keeps at most a fixed number of idle buffers; anything beyond that
+ * is left to the garbage collector.
+ */
+public class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(256);
+
+    private static final int SIZE_CLASSES = 18; // Up to 128 KB, enough for any TFTP packet
+
+    private final int maxIdlePerClass;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+
+    public BufferPool(int maxIdlePerClass) {
+        this.maxIdlePerClass = maxIdlePerClass;
+        // There is no generic array creation; every slot gets a ConcurrentLinkedQueue<ByteBuffer> below
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = new ConcurrentLinkedQueue[SIZE_CLASSES];
+        this.idle = queues;
+        this.idleCounts = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /** Returns a cleared, array-backed buffer with its limit set to {@code size}. */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass >= SIZE_CLASSES) {
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << sizeClass);
+        } else {
+            idleCounts[sizeClass].decrementAndGet();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        // Only exact power-of-two buffers handed out by acquire() go back in the pool
+        if (sizeClass >= SIZE_CLASSES || capacity != 1 << sizeClass) return;
+        if (idleCounts[sizeClass].incrementAndGet() > maxIdlePerClass) {
+            idleCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        idle[sizeClass].offer(buffer);
+    }
+
+    private static int sizeClass(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
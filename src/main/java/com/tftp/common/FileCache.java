@@ -0,0 +1,156 @@
+package com.tftp.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Read cache of memory-mapped files shared by every RRQ on the UDP and TCP servers.
+ * Concurrent readers of the same file share one mapping instead of each opening the
+ * file and reading it block by block. Entries are keyed by canonical path and are
+ * dropped when the file's size or modification time changes; the least recently
+ * used ones are evicted once the mapped total exceeds the memory budget.
+ *
+ * <p>The budget defaults to 256 MB and can be set with {@code -Dtftp.cache.bytes};
+ * files larger than a quarter of the budget are not cached.
+ *
+ * <p>A file is mapped outside the cache's lock, so a miss only holds up readers of the
+ * same file, who wait for its mapping rather than making another. Hits, misses and the
+ * mapped total are exported with each server's {@link TransferMetrics}.
+ */
+public class FileCache {
+    private static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+    private static final FileCache SHARED = new FileCache(Long.getLong("tftp.cache.bytes", DEFAULT_BUDGET));
+
+    private static class Entry {
+        // Null once mapped if the file turned out not to match, failed if it could not be mapped
+        final CompletableFuture<MappedByteBuffer> content = new CompletableFuture<>();
+        final long size;
+        final long lastModified;
+
+        Entry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long budgetBytes;
+    private final long maxEntryBytes;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+
+    public FileCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.maxEntryBytes = Math.min(budgetBytes / 4, Integer.MAX_VALUE);
+    }
+
+    public static FileCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the whole file as a read-only buffer positioned at 0, or null if the file
+     * is empty, too large to cache or no longer of the given size. Each caller gets its
+     * own view, so positions and limits can be changed freely; evicted mappings stay valid
+     * while still referenced. {@code key} is the file's real path and the metadata is as
+     * already known, such as from a {@link ServedRoot}, so the file system is not asked.
+     */
+    public ByteBuffer get(Path key, long size, long lastModified) throws IOException {
+        if (size == 0 || size > maxEntryBytes) return null;
+
+        Entry entry;
+        boolean mine = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                hits++;
+            } else {
+                misses++;
+                if (entry != null) {
+                    remove(key, entry);
+                }
+                entry = new Entry(size, lastModified);
+                entries.put(key, entry);
+                cachedBytes += size;
+                evict();
+                mine = true;
+            }
+        }
+        if (mine) {
+            map(key, entry);
+        }
+
+        MappedByteBuffer content;
+        try {
+            content = entry.content.join();
+        } catch (RuntimeException e) {
+            // The reader that mapped it has the error; this one reads the file itself
+            return null;
+        }
+        return content == null ? null : content.asReadOnlyBuffer();
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    // Maps the file for a new entry, outside the lock; an entry left without a mapping is dropped
+    private void map(Path key, Entry entry) throws IOException {
+        MappedByteBuffer content = null;
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            // Metadata handed in may be a moment old, and mapping past the end would fault on access
+            if (channel.size() == entry.size) {
+                content = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+            }
+        } catch (IOException | RuntimeException e) {
+            forget(key, entry);
+            entry.content.completeExceptionally(e);
+            throw e;
+        }
+        if (content == null) {
+            forget(key, entry);
+        }
+        entry.content.complete(content);
+    }
+
+    private synchronized void forget(Path key, Entry entry) {
+        if (entries.get(key) == entry) {
+            remove(key, entry);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, Entry>> lru = entries.entrySet().iterator();
+        while (cachedBytes > budgetBytes && lru.hasNext()) {
+            cachedBytes -= lru.next().getValue().size;
+            lru.remove();
+        }
+    }
+
+    private void remove(Path key, Entry entry) {
+        entries.remove(key);
+        cachedBytes -= entry.size;
+    }
+}
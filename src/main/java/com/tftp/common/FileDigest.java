@@ -0,0 +1,51 @@
+package com.tftp.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Hex digests of whole files, as a {@link ServedRoot} keeps them for the files it serves
+ * and as TCP clients work them out again to check what they downloaded.
+ */
+public final class FileDigest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileDigest() {
+    }
+
+    /** Whether this JVM knows {@code algorithm}, such as {@code SHA-256}. */
+    public static boolean supported(String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lower-case hex digest of everything in {@code file}.
+     *
+     * @throws IllegalArgumentException if the algorithm is not {@link #supported}
+     */
+    public static String of(Path file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown digest: " + algorithm, e);
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
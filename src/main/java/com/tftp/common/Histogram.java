@@ -0,0 +1,72 @@
+package com.tftp.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets: bucket
+ * {@code i} counts values up to {@code 2^i - 1}, and the last one everything larger.
+ * Recording is a couple of striped increments, cheap enough for the data path;
+ * percentiles are only as precise as the bucket they fall in.
+ */
+public class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) return;
+        counts[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+        sum.add(value);
+    }
+
+    public int buckets() {
+        return BUCKETS;
+    }
+
+    /** Largest value counted in {@code bucket}, or {@link Long#MAX_VALUE} for the last one. */
+    public long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    public long count(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    public long count() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    /** Upper bound of the bucket holding the given quantile (0..1), or 0 when empty. */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
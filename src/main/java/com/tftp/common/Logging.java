@@ -0,0 +1,40 @@
+package com.tftp.common;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Console logging for the servers and clients, through {@code java.util.logging}. Per-transfer
+ * events log at INFO and per-packet detail at FINE or below, so the data path only
+ * pays for a level check unless {@code -Dtftp.log.level=FINE} (or any other
+ * {@link Level} name) asks for it. A {@code java.util.logging.config.file} given on
+ * the command line takes precedence over all of this.
+ */
+public class Logging {
+    private static final String FORMAT_PROPERTY = "java.util.logging.SimpleFormatter.format";
+
+    // Held so the configured level is not lost if the logger would otherwise be collected
+    private static Logger projectLogger;
+
+    private Logging() {
+    }
+
+    /** Call first thing in a main, before anything is logged. */
+    public static synchronized void configure() {
+        if (System.getProperty("java.util.logging.config.file") != null
+                || System.getProperty("java.util.logging.config.class") != null) {
+            return;
+        }
+        if (System.getProperty(FORMAT_PROPERTY) == null) {
+            System.setProperty(FORMAT_PROPERTY, "%1$tT %4$s %5$s%6$s%n");
+        }
+
+        Level level = Level.parse(System.getProperty("tftp.log.level", "INFO"));
+        projectLogger = Logger.getLogger("com.tftp");
+        projectLogger.setLevel(level);
+        for (Handler handler : Logger.getLogger("").getHandlers()) {
+            handler.setLevel(level);
+        }
+    }
+}
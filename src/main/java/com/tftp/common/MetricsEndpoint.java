@@ -0,0 +1,157 @@
+package com.tftp.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+
+/**
+ * Plain-text scrape endpoint for every server's {@link TransferMetrics} in this JVM,
+ * in the Prometheus text format at {@code http://127.0.0.1:<port>/metrics}. It only
+ * listens on loopback; the port is taken from {@code -Dtftp.metrics.port}, falling
+ * back to the server's default, and a negative port turns it off.
+ */
+public class MetricsEndpoint {
+    private static final Logger LOG = Logger.getLogger(MetricsEndpoint.class.getName());
+
+    private static HttpServer httpServer;
+
+    private MetricsEndpoint() {
+    }
+
+    /** Starts the endpoint unless it is disabled or already running; failing to bind is only logged. */
+    public static synchronized void start(int defaultPort) {
+        int port = Integer.getInteger("tftp.metrics.port", defaultPort);
+        if (port < 0 || httpServer != null) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            httpServer.createContext("/metrics", MetricsEndpoint::handle);
+            Thread.Builder threads = Thread.ofPlatform().daemon().name("tftp-metrics");
+            httpServer.setExecutor(command -> threads.start(command));
+            httpServer.start();
+            LOG.info("Metrics at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + httpServer.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            LOG.warning("Metrics endpoint not started on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render(TransferMetrics.all()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static String render(Map<String, TransferMetrics> servers) {
+        StringBuilder out = new StringBuilder(8192);
+        gauge(out, servers, "tftp_transfers_active", "Transfers in progress.", TransferMetrics::getActiveTransfers);
+        counter(out, servers, "tftp_transfers_started_total", "Transfers started.", TransferMetrics::getTransfersStarted);
+        counter(out, servers, "tftp_transfers_completed_total", "Transfers completed.", TransferMetrics::getTransfersCompleted);
+        counter(out, servers, "tftp_transfers_failed_total", "Transfers that failed or were abandoned.", TransferMetrics::getTransfersFailed);
+        counter(out, servers, "tftp_bytes_sent_total", "File bytes sent.", TransferMetrics::getBytesSent);
+        counter(out, servers, "tftp_bytes_received_total", "File bytes received.", TransferMetrics::getBytesReceived);
+        gauge(out, servers, "tftp_bytes_per_second", "File bytes moved per second over the last second or so.", TransferMetrics::getBytesPerSecond);
+        counter(out, servers, "tftp_packets_sent_total", "Datagrams sent (UDP only).", TransferMetrics::getPacketsSent);
+        counter(out, servers, "tftp_packets_received_total", "Datagrams received (UDP only).", TransferMetrics::getPacketsReceived);
+        counter(out, servers, "tftp_retransmissions_total", "Packets sent again after a timeout or gap (UDP only).", TransferMetrics::getRetransmissions);
+        gauge(out, servers, "tftp_sessions", "Requests being served, from arrival until their transfer ends (UDP only).", TransferMetrics::getSessions);
+        counter(out, servers, "tftp_duplicate_requests_total", "Retransmitted requests dropped while the first was served (UDP only).", TransferMetrics::getDuplicateRequests);
+        counter(out, servers, "tftp_sessions_expired_total", "Sessions given up on after going quiet (UDP only).", TransferMetrics::getExpiredSessions);
+        counter(out, servers, "tftp_cache_hits_total", "Downloads served from a file already mapped in the cache.", TransferMetrics::getCacheHits);
+        counter(out, servers, "tftp_cache_misses_total", "Downloads that had to map their file, or could not be cached.", TransferMetrics::getCacheMisses);
+        gauge(out, servers, "tftp_cache_files", "Files mapped in the cache.", TransferMetrics::getCachedFiles);
+        gauge(out, servers, "tftp_cache_bytes", "Bytes of the files mapped in the cache.", TransferMetrics::getCachedBytes);
+
+        shards(out, servers, "tftp_listener_requests_total", "Requests received by each listening socket (UDP only).",
+                TransferMetrics::getListenerRequests);
+        shards(out, servers, "tftp_listener_drops_total",
+                "Requests the system dropped on each listening socket for want of buffer room (UDP, Linux only).",
+                TransferMetrics::getListenerDrops);
+
+        header(out, "tftp_errors_total", "Failed or refused requests by error type.", "counter");
+        servers.forEach((name, metrics) -> metrics.getErrors().forEach((type, count) ->
+                out.append("tftp_errors_total{server=\"").append(name).append("\",type=\"").append(type).append("\"} ")
+                        .append(count).append('\n')));
+
+        histogram(out, servers, "tftp_ack_rtt_seconds", "Round trip from a packet to the ACK it was waiting for (UDP only).",
+                TransferMetrics::ackRttHistogram, 1e6);
+        histogram(out, servers, "tftp_time_to_first_byte_seconds", "Time from a request to its first byte of file data.",
+                TransferMetrics::timeToFirstByteHistogram, 1e6);
+        histogram(out, servers, "tftp_transfer_retransmissions", "Retransmitted packets per finished transfer (UDP only).",
+                TransferMetrics::retransmissionsPerTransferHistogram, 1);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, Map<String, TransferMetrics> servers, String name, String help,
+                                ToDoubleFunction<TransferMetrics> value) {
+        sample(out, servers, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder out, Map<String, TransferMetrics> servers, String name, String help,
+                              ToDoubleFunction<TransferMetrics> value) {
+        sample(out, servers, name, help, "gauge", value);
+    }
+
+    private static void sample(StringBuilder out, Map<String, TransferMetrics> servers, String name, String help,
+                               String type, ToDoubleFunction<TransferMetrics> value) {
+        header(out, name, help, type);
+        servers.forEach((server, metrics) ->
+                out.append(name).append("{server=\"").append(server).append("\"} ")
+                        .append(number(value.applyAsDouble(metrics))).append('\n'));
+    }
+
+    // One counter per listening socket; servers with a single one, and unknown counts, are left out
+    private static void shards(StringBuilder out, Map<String, TransferMetrics> servers, String name, String help,
+                               Function<TransferMetrics, long[]> counts) {
+        header(out, name, help, "counter");
+        servers.forEach((server, metrics) -> {
+            long[] values = counts.apply(metrics);
+            for (int shard = 0; shard < values.length; shard++) {
+                if (values[shard] < 0) continue;
+                out.append(name).append("{server=\"").append(server).append("\",shard=\"").append(shard).append("\"} ")
+                        .append(values[shard]).append('\n');
+            }
+        });
+    }
+
+    // Histograms record whole numbers; {@code units} of them make one exported unit, such as 1e6 µs to the second
+    private static void histogram(StringBuilder out, Map<String, TransferMetrics> servers, String name, String help,
+                                  Function<TransferMetrics, Histogram> histogramOf, double units) {
+        header(out, name, help, "histogram");
+        servers.forEach((server, metrics) -> {
+            Histogram histogram = histogramOf.apply(metrics);
+            long cumulative = 0;
+            for (int i = 0; i < histogram.buckets(); i++) {
+                cumulative += histogram.count(i);
+                long bound = histogram.upperBound(i);
+                String le = bound == Long.MAX_VALUE ? "+Inf" : number(bound / units);
+                out.append(name).append("_bucket{server=\"").append(server).append("\",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{server=\"").append(server).append("\"} ")
+                    .append(number(histogram.sum() / units)).append('\n');
+            out.append(name).append("_count{server=\"").append(server).append("\"} ")
+                    .append(cumulative).append('\n');
+        });
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,191 @@
+package com.tftp.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-ahead for a file that is sent from start to end. Segments of the file beyond
+ * the one being sent are read on a small shared I/O pool, so that when the client's
+ * ACK arrives the next blocks are already in memory and the disk's latency is not
+ * added to the network's on every window.
+ * <p>
+ * How far ahead to read follows the rate at which the transfer consumes the file,
+ * which the client's ACKs set: about {@link #LEAD_NANOS} worth, so a slow client does
+ * not pin memory it will not need for a while. Prefetched data across all transfers is
+ * capped by {@code -Dtftp.readahead.maxBytes}; past the cap, and for anything no longer
+ * held such as a block sent again after a rewind, reads go straight to the file.
+ * Segments are direct buffers, kept for reuse up to that cap, so the file is read into
+ * them without the extra copy the JDK makes for heap buffers.
+ * <p>
+ * {@link #read} waits for a segment whose read is still running. A caller that must not
+ * wait asks {@link #ready} first.
+ */
+public class ReadAhead implements Closeable {
+    private static final int SEGMENT_SIZE = 128 * 1024;
+    private static final int MIN_SEGMENTS = 2;
+    private static final int MAX_SEGMENTS = 16;
+    private static final long LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RATE_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final Semaphore BUDGET = new Semaphore(
+            (int) (Long.getLong("tftp.readahead.maxBytes", 64L * 1024 * 1024) / SEGMENT_SIZE));
+    private static final ConcurrentLinkedQueue<ByteBuffer> IDLE = new ConcurrentLinkedQueue<>();
+    private static final ExecutorService IO = Executors.newFixedThreadPool(Integer.getInteger("tftp.readahead.threads", 4),
+            Thread.ofPlatform().daemon().name("tftp-read-ahead-", 0).factory());
+
+    private record Segment(long start, ByteBuffer buffer, CompletableFuture<Integer> read) {
+        long end() {
+            return start + SEGMENT_SIZE;
+        }
+
+        // Bytes read into the segment, waiting for the read if it is still running; -1 if it failed
+        int length() {
+            try {
+                return read.join();
+            } catch (CompletionException e) {
+                return -1;
+            }
+        }
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    // Segments in file order, starting with the one before the segment being read
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextPrefetch;
+    // Consumption rate, smoothed over samples of at least RATE_SAMPLE_NANOS
+    private double bytesPerNano;
+    private long sampleStart;
+    private long sampleBytes;
+    private long furthest;
+
+    public ReadAhead(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    /**
+     * Fills {@code dst} with the file's bytes from {@code position}, up to the end of the
+     * file, and returns how many there were.
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        measure(position);
+        // Keep one segment behind the read position, which a rewind usually lands in
+        while (!segments.isEmpty() && segments.peekFirst().end() + SEGMENT_SIZE <= position) {
+            release(segments.pollFirst());
+        }
+
+        int start = dst.position();
+        while (dst.hasRemaining() && position < size) {
+            Segment segment = find(position);
+            if (segment == null) break;
+            int length = segment.length();
+            if (position >= segment.start + length) break;
+            int count = (int) Math.min(dst.remaining(), segment.start + length - position);
+            dst.put(segment.buffer.slice((int) (position - segment.start), count));
+            position += count;
+        }
+        // Whatever is not held is read directly
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) break;
+            position += n;
+        }
+
+        prefetch(position);
+        return dst.position() - start;
+    }
+
+    /**
+     * Whether {@link #read} of the bytes from {@code from} up to {@code to} can go ahead
+     * without waiting for a segment still being read. Bytes not held are read directly.
+     */
+    public boolean ready(long from, long to) {
+        for (Segment segment : segments) {
+            if (segment.start >= to) break;
+            if (segment.end() > from && !segment.read.isDone()) return false;
+        }
+        return true;
+    }
+
+    /** Gives back every segment; reads still running give theirs back when they end. */
+    @Override
+    public void close() {
+        Segment segment;
+        while ((segment = segments.pollFirst()) != null) {
+            release(segment);
+        }
+    }
+
+    private Segment find(long position) {
+        for (Segment segment : segments) {
+            if (position < segment.start) return null;
+            if (position < segment.end()) return segment;
+        }
+        return null;
+    }
+
+    private void prefetch(long position) {
+        nextPrefetch = Math.max(nextPrefetch, position - position % SEGMENT_SIZE);
+        long wanted = Math.max(MIN_SEGMENTS, Math.min(MAX_SEGMENTS, (long) Math.ceil(bytesPerNano * LEAD_NANOS / SEGMENT_SIZE)));
+        long horizon = position + wanted * SEGMENT_SIZE;
+        while (nextPrefetch < size && nextPrefetch < horizon && BUDGET.tryAcquire()) {
+            long start = nextPrefetch;
+            ByteBuffer idle = IDLE.poll();
+            ByteBuffer buffer = idle != null ? idle.clear() : ByteBuffer.allocateDirect(SEGMENT_SIZE);
+            CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> fill(buffer, start), IO);
+            segments.addLast(new Segment(start, buffer, read));
+            nextPrefetch += SEGMENT_SIZE;
+        }
+    }
+
+    private int fill(ByteBuffer buffer, long start) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) break;
+            }
+            return buffer.position();
+        } catch (IOException e) {
+            // Left to the direct read, which reports it
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Tracks how fast the sender moves through the file; rewinds do not count
+    private void measure(long position) {
+        long now = System.nanoTime();
+        if (position > furthest) {
+            sampleBytes += position - furthest;
+            furthest = position;
+        }
+        if (sampleStart == 0) {
+            sampleStart = now;
+            return;
+        }
+        long elapsed = now - sampleStart;
+        if (elapsed >= RATE_SAMPLE_NANOS) {
+            double rate = (double) sampleBytes / elapsed;
+            bytesPerNano = bytesPerNano == 0 ? rate : 0.75 * bytesPerNano + 0.25 * rate;
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+    }
+
+    private static void release(Segment segment) {
+        segment.read.whenComplete((length, failure) -> {
+            IDLE.offer(segment.buffer);
+            BUDGET.release();
+        });
+    }
+}
@@ -0,0 +1,304 @@
+package com.tftp.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * The files the UDP and TCP servers hand out. With {@code -Dtftp.root=<dir>} requested
+ * names are resolved inside that directory, a leading slash included, and anything that
+ * would lead out of it is refused. The size and modification time of every regular file
+ * under the root are kept in memory, so a request is answered from a hash lookup instead
+ * of path lookups and stat calls. A {@link WatchService} keeps the index current.
+ * Symbolic links are not followed, so they cannot lead out of the root either. A digest
+ * of each file, {@code -Dtftp.root.digest} (SHA-256 by default, {@code none} to skip),
+ * is worked out in the background once the file is indexed, and goes out with TCP
+ * session downloads so that clients can check what they received.
+ *
+ * <p>Without a root, any path the server can read may be requested, as before, and each
+ * lookup asks the file system. Uploads go to {@code -Dtftp.upload.dir} if it is given
+ * and to the server's own upload directory otherwise, never to the root unless that
+ * property names it, so an upload cannot overwrite a served file or be served half
+ * written.
+ */
+public class ServedRoot {
+    private static final Logger LOG = Logger.getLogger(ServedRoot.class.getName());
+    private static final ServedRoot SHARED = configured();
+
+    /**
+     * A file as the index knows it; {@code path} is its real path. {@code digest} is the hex
+     * digest of its content in the root's {@link #digestAlgorithm()}, or null until that has
+     * been worked out, or without digests.
+     */
+    public record FileInfo(Path path, long size, long lastModified, String digest) {
+    }
+
+    private final Path root;
+    private final String digestAlgorithm;
+    // By path relative to the root, with forward slashes
+    private final Map<String, FileInfo> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private final ExecutorService digester;
+
+    /**
+     * Indexes everything under {@code root} and watches it from then on. A null
+     * {@code digestAlgorithm} skips digests.
+     */
+    public ServedRoot(Path root, String digestAlgorithm) throws IOException {
+        if (digestAlgorithm != null && !FileDigest.supported(digestAlgorithm)) {
+            throw new IllegalArgumentException("Unknown digest: " + digestAlgorithm);
+        }
+        this.root = root.toRealPath();
+        this.digestAlgorithm = digestAlgorithm;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.digester = digestAlgorithm == null ? null : Executors.newSingleThreadExecutor(
+                Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("tftp-root-digest").factory());
+        long start = System.nanoTime();
+        scan(this.root, null);
+        LOG.info(String.format("Serving %s: %d files indexed in %.1f s", this.root, entries.size(),
+                (System.nanoTime() - start) / 1e9));
+        Thread.ofPlatform().daemon().name("tftp-root-watch").start(this::watch);
+    }
+
+    // No root: lookups go to the file system, with no index, watcher or digests
+    private ServedRoot() {
+        this.root = null;
+        this.digestAlgorithm = null;
+        this.watcher = null;
+        this.digester = null;
+    }
+
+    private static ServedRoot configured() {
+        String root = System.getProperty("tftp.root");
+        if (root == null || root.isBlank()) return new ServedRoot();
+        String digest = System.getProperty("tftp.root.digest", "SHA-256");
+        try {
+            return new ServedRoot(Path.of(root), digest.equalsIgnoreCase("none") ? null : digest);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serve " + root + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static ServedRoot shared() {
+        return SHARED;
+    }
+
+    /**
+     * Where uploads go: {@code -Dtftp.upload.dir}, else the server's {@code fallback}
+     * directory under the working directory, whether or not there is a root.
+     */
+    public static String uploadDirectory(String fallback) {
+        return System.getProperty("tftp.upload.dir", fallback);
+    }
+
+    /**
+     * {@code name} resolved inside {@code directory}, leading slashes and all, without
+     * touching the file system.
+     *
+     * @throws AccessDeniedException if it would lead out of the directory
+     */
+    public static Path resolveWithin(Path directory, String name) throws AccessDeniedException {
+        String relative = name.replaceFirst("^[/\\\\]+", "");
+        Path resolved;
+        try {
+            resolved = directory.resolve(relative).normalize();
+        } catch (InvalidPathException e) {
+            throw new AccessDeniedException(name, null, "Invalid path");
+        }
+        if (!resolved.startsWith(directory.normalize())) {
+            throw new AccessDeniedException(name, null, "Outside the served directory");
+        }
+        return resolved;
+    }
+
+    /** The served directory, or null if any readable path is served. */
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * The regular file a client asked for by {@code name}, or null if there is none.
+     *
+     * @throws AccessDeniedException if the name leads out of the root
+     */
+    public FileInfo lookup(String name) throws AccessDeniedException {
+        if (root == null) return stat(name);
+        return entries.get(key(resolveWithin(root, name)));
+    }
+
+    /** The algorithm of the files' digests, or null if they are not worked out. */
+    public String digestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /** Files in the index; 0 without a root. */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Reads one file's metadata again, as the server does once it has stored an upload so
+     * that the file can be requested straight away. Paths outside the root are ignored.
+     */
+    public void refresh(Path file) {
+        if (root == null) return;
+        Path path = file.toAbsolutePath().normalize();
+        if (path.startsWith(root)) {
+            update(path);
+        }
+    }
+
+    // The file system's answer, for a server without a root
+    private static FileInfo stat(String name) {
+        try {
+            Path path = Path.of(name).toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return new FileInfo(path, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private String key(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    // Indexes and watches everything under directory; names found go into seen if it is given
+    private void scan(Path directory, Set<String> seen) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                directories.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    String key = key(file);
+                    put(key, file, attributes);
+                    if (seen != null) seen.add(key);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                LOG.warning("Cannot index " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void put(String key, Path file, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        FileInfo current = entries.get(key);
+        // Unchanged, so its digest still holds
+        if (current != null && current.size() == size && current.lastModified() == lastModified
+                && current.path().equals(file)) return;
+        FileInfo info = new FileInfo(file, size, lastModified, null);
+        entries.put(key, info);
+        if (digester != null) {
+            digester.execute(() -> digest(key, info));
+        }
+    }
+
+    // Fills in the digest, unless the file changed again while waiting or while being read
+    private void digest(String key, FileInfo info) {
+        if (entries.get(key) != info) return;
+        try {
+            String digest = FileDigest.of(info.path(), digestAlgorithm);
+            entries.replace(key, info, new FileInfo(info.path(), info.size(), info.lastModified(), digest));
+        } catch (IOException e) {
+            LOG.fine(() -> "No digest for " + key + ": " + e.getMessage());
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = directories.get(watchKey);
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (directory == null) continue;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan();
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    forget(directory.resolve((Path) event.context()));
+                } else {
+                    update(directory.resolve((Path) event.context()));
+                }
+            }
+            if (!watchKey.reset()) {
+                directories.remove(watchKey);
+            }
+        }
+    }
+
+    private void update(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isDirectory()) {
+                scan(path, null);
+            } else if (attributes.isRegularFile()) {
+                put(key(path), path, attributes);
+            } else {
+                forget(path);
+            }
+        } catch (NoSuchFileException e) {
+            forget(path);
+        } catch (IOException e) {
+            LOG.warning("Cannot index " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Drops a file, or a directory and everything that was under it
+    private void forget(Path path) {
+        String key = key(path);
+        entries.remove(key);
+        String prefix = key + "/";
+        entries.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    // Events were lost, so the whole tree is read again
+    private void rescan() {
+        LOG.warning("Missed changes under " + root + "; indexing it again");
+        Set<String> seen = new HashSet<>();
+        try {
+            scan(root, seen);
+            entries.keySet().retainAll(seen);
+        } catch (IOException e) {
+            LOG.warning("Cannot index " + root + ": " + e.getMessage());
+        }
+    }
+}
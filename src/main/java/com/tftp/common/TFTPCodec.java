@@ -0,0 +1,123 @@
+package com.tftp.common;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Packet layout shared by the UDP client, UDP server and the TCP transport.
+ * Encoders write into a caller-supplied buffer (cleared first, flipped on return)
+ * and decoders read in place, so the data path allocates nothing per packet.
+ * Strings are single-byte (ISO-8859-1), as RFC 1350 netascii/octet names are.
+ */
+public class TFTPCodec {
+    public static final short OP_RRQ = 1;
+    public static final short OP_WRQ = 2;
+    public static final short OP_DATA = 3;
+    public static final short OP_ACK = 4;
+    public static final short OP_ERROR = 5;
+    public static final short OP_OACK = 6;
+
+    public static final short ERR_UNDEFINED = 0;
+    public static final short ERR_FILE_NOT_FOUND = 1;
+    public static final short ERR_ACCESS_VIOLATION = 2;
+    public static final short ERR_DISK_FULL = 3;
+    public static final short ERR_ILLEGAL_OPERATION = 4;
+    public static final short ERR_UNKNOWN_TID = 5;
+    public static final short ERR_FILE_EXISTS = 6;
+    public static final short ERR_OPTION_REFUSED = 8;
+
+    /** Size of the opcode + block number header of DATA and ACK packets. */
+    public static final int HEADER_SIZE = 4;
+
+    private TFTPCodec() {
+    }
+
+    public static ByteBuffer encodeRequest(ByteBuffer buffer, short opcode, String filename, String mode,
+                                           Map<String, String> options) {
+        buffer.clear();
+        buffer.putShort(opcode);
+        putString(buffer, filename);
+        putString(buffer, mode);
+        putOptions(buffer, options);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeAck(ByteBuffer buffer, int blockNumber) {
+        buffer.clear();
+        buffer.putShort(OP_ACK);
+        buffer.putShort((short) blockNumber);
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a DATA header in front of {@code length} payload bytes that the caller has
+     * already placed at offset {@link #HEADER_SIZE}, and limits the buffer to the packet.
+     */
+    public static ByteBuffer encodeData(ByteBuffer buffer, int blockNumber, int length) {
+        buffer.clear();
+        buffer.putShort(0, OP_DATA);
+        buffer.putShort(2, (short) blockNumber);
+        return buffer.limit(HEADER_SIZE + length);
+    }
+
+    /** Writes an ERROR packet, cutting {@code message} short if it would not fit in the buffer. */
+    public static ByteBuffer encodeError(ByteBuffer buffer, short errorCode, String message) {
+        buffer.clear();
+        buffer.putShort(OP_ERROR);
+        buffer.putShort(errorCode);
+        int room = buffer.remaining() - 1; // Less the terminator
+        putString(buffer, message.length() > room ? message.substring(0, room) : message);
+        return buffer.flip();
+    }
+
+    public static ByteBuffer encodeOack(ByteBuffer buffer, Map<String, String> options) {
+        buffer.clear();
+        buffer.putShort(OP_OACK);
+        putOptions(buffer, options);
+        return buffer.flip();
+    }
+
+    /** Opcode of the packet starting at the buffer's position, without consuming it. */
+    public static short opcode(ByteBuffer packet) {
+        return packet.remaining() < 2 ? -1 : packet.getShort(packet.position());
+    }
+
+    /**
+     * Block number of a DATA or ACK packet (unsigned), without consuming it; -1 if the
+     * packet is too short to have one.
+     */
+    public static int blockNumber(ByteBuffer packet) {
+        return packet.remaining() < HEADER_SIZE ? -1 : packet.getShort(packet.position() + 2) & 0xFFFF;
+    }
+
+    /** Message of an ERROR packet, empty if it is truncated; consumes the packet. */
+    public static String errorMessage(ByteBuffer packet) {
+        packet.position(Math.min(packet.limit(), packet.position() + HEADER_SIZE));
+        return readString(packet);
+    }
+
+    /** Reads a null-terminated string, leaving the buffer just past the terminator. */
+    public static String readString(ByteBuffer buffer) {
+        StringBuilder sb = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c == 0) break;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static void putOptions(ByteBuffer buffer, Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putString(buffer, option.getKey());
+            putString(buffer, option.getValue());
+        }
+    }
+}
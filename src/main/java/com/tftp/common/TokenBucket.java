@@ -0,0 +1,41 @@
+package com.tftp.common;
+
+/**
+ * Rate limit of so many bytes per second, with bursts of up to {@code burstBytes}.
+ * Callers reserve the bytes they are about to move and are told how long to wait
+ * first, so a blocking sender can sleep it off and an event loop can set a timer
+ * instead. Reservations are never refused; one that runs ahead of the rate only
+ * makes the callers after it wait longer.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    // When the bucket would be full again if nothing more were reserved
+    private long fullAt = Long.MIN_VALUE;
+
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = nanosFor(Math.max(1, burstBytes));
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /** Takes {@code bytes} from the bucket and returns the nanoseconds to wait before moving them. */
+    public long reserve(long bytes) {
+        return reserve(bytes, System.nanoTime());
+    }
+
+    synchronized long reserve(long bytes, long now) {
+        fullAt = Math.max(fullAt, now) + nanosFor(bytes);
+        return Math.max(0, fullAt - now - burstNanos);
+    }
+
+    private long nanosFor(long bytes) {
+        return (long) ((double) bytes * NANOS_PER_SECOND / bytesPerSecond);
+    }
+}
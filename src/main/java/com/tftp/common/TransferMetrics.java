@@ -0,0 +1,333 @@
+package com.tftp.common;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and histograms of one server's transfers, shared by all its engines and
+ * exported through JMX and the {@link MetricsEndpoint}. Everything recorded on the
+ * data path is a striped {@link LongAdder} increment, so transfers on different
+ * threads do not contend; rates and percentiles are only worked out when read.
+ *
+ * <p>Transfers in progress register themselves so that slow clients can be listed;
+ * their {@code toString()} is what {@link #getActiveTransferDetails()} shows. The
+ * {@link FileCache} counts are those of the cache shared by every server in the JVM.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+    private static final Logger LOG = Logger.getLogger(TransferMetrics.class.getName());
+    private static final Map<String, TransferMetrics> SERVERS = new ConcurrentHashMap<>();
+    private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Counts of a server's listening sockets, for servers that have several on one port. */
+    public interface Listeners {
+        int shards();
+
+        long received(int shard);
+
+        /** Datagrams the system dropped for want of room in the shard's buffer, or -1 if not known. */
+        long dropped(int shard);
+    }
+
+    private final String server;
+    private final Set<Object> active = ConcurrentHashMap.newKeySet();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder duplicateRequests = new LongAdder();
+    private final LongAdder expiredSessions = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    // Round trips and times to first byte are kept in microseconds
+    private final Histogram ackRtt = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+    private final Histogram retransmissionsPerTransfer = new Histogram();
+
+    private volatile Listeners listeners;
+
+    // Guarded by this: last sample of the byte counters for the rate
+    private long rateSampledAt = System.nanoTime();
+    private long rateSampledBytes;
+    private double bytesPerSecond;
+
+    private TransferMetrics(String server) {
+        this.server = server;
+    }
+
+    /** Metrics of the named server, created and registered with the platform MBean server on first use. */
+    public static TransferMetrics forServer(String server) {
+        return SERVERS.computeIfAbsent(server, name -> {
+            TransferMetrics metrics = new TransferMetrics(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                        new ObjectName("com.tftp:type=TransferMetrics,server=" + name));
+            } catch (JMException e) {
+                LOG.log(Level.WARNING, "Could not register metrics MBean for " + name, e);
+            }
+            return metrics;
+        });
+    }
+
+    /** Every server's metrics in this JVM, by name. */
+    public static Map<String, TransferMetrics> all() {
+        return new TreeMap<>(SERVERS);
+    }
+
+    public String server() {
+        return server;
+    }
+
+    public void transferStarted(Object transfer) {
+        active.add(transfer);
+        started.increment();
+    }
+
+    /** Records the end of a transfer; a failed one should also have reported an {@link #error}. */
+    public void transferFinished(Object transfer, boolean succeeded, long retransmittedPackets) {
+        if (!active.remove(transfer)) return;
+        (succeeded ? completed : failed).increment();
+        retransmissionsPerTransfer.record(retransmittedPackets);
+    }
+
+    public void error(String type) {
+        errors.computeIfAbsent(type, key -> new LongAdder()).increment();
+    }
+
+    public void dataSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void dataReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void packetSent() {
+        packetsSent.increment();
+    }
+
+    public void packetReceived() {
+        packetsReceived.increment();
+    }
+
+    public void retransmitted(int packets) {
+        retransmissions.add(packets);
+    }
+
+    /** Reports {@code listeners}' counts along with the rest, replacing any given before. */
+    public void listeners(Listeners listeners) {
+        this.listeners = listeners;
+    }
+
+    /** A request was taken on; it counts as a session until {@link #sessionClosed}. */
+    public void sessionOpened() {
+        sessions.increment();
+    }
+
+    /** A session ended with its transfer, or was given up on as stale if {@code expired}. */
+    public void sessionClosed(boolean expired) {
+        sessions.decrement();
+        if (expired) {
+            expiredSessions.increment();
+        }
+    }
+
+    /** A retransmitted request arrived for a session still open, and was dropped. */
+    public void duplicateRequest() {
+        duplicateRequests.increment();
+    }
+
+    public void ackRtt(long nanos) {
+        ackRtt.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** Time from receiving a request to the first byte of file data moving. */
+    public void timeToFirstByte(long nanos) {
+        timeToFirstByte.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /** ACK round trips in microseconds. */
+    public Histogram ackRttHistogram() {
+        return ackRtt;
+    }
+
+    /** Times to first byte in microseconds. */
+    public Histogram timeToFirstByteHistogram() {
+        return timeToFirstByte;
+    }
+
+    public Histogram retransmissionsPerTransferHistogram() {
+        return retransmissionsPerTransfer;
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return active.size();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return started.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        // Re-sampled at most once per interval, so frequent readers still see a steady rate
+        long now = System.nanoTime();
+        long elapsed = now - rateSampledAt;
+        if (elapsed >= RATE_INTERVAL_NANOS) {
+            long bytes = bytesSent.sum() + bytesReceived.sum();
+            bytesPerSecond = (bytes - rateSampledBytes) * 1e9 / elapsed;
+            rateSampledBytes = bytes;
+            rateSampledAt = now;
+        }
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getSessions() {
+        return sessions.sum();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return duplicateRequests.sum();
+    }
+
+    @Override
+    public long getExpiredSessions() {
+        return expiredSessions.sum();
+    }
+
+    @Override
+    public long[] getListenerRequests() {
+        Listeners current = listeners;
+        long[] counts = new long[current == null ? 0 : current.shards()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = current.received(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long[] getListenerDrops() {
+        Listeners current = listeners;
+        long[] counts = new long[current == null ? 0 : current.shards()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = current.dropped(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return FileCache.shared().hits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return FileCache.shared().misses();
+    }
+
+    @Override
+    public long getCachedFiles() {
+        return FileCache.shared().size();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return FileCache.shared().cachedBytes();
+    }
+
+    @Override
+    public long getRetransmissionsPerTransferP99() {
+        return retransmissionsPerTransfer.percentile(0.99);
+    }
+
+    @Override
+    public double getAckRttP50Millis() {
+        return ackRtt.percentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getAckRttP99Millis() {
+        return ackRtt.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getTimeToFirstByteP50Millis() {
+        return timeToFirstByte.percentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getTimeToFirstByteP99Millis() {
+        return timeToFirstByte.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        errors.forEach((type, count) -> snapshot.put(type, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public List<String> getActiveTransferDetails() {
+        Collection<Object> snapshot = new ArrayList<>(active);
+        List<String> details = new ArrayList<>(snapshot.size());
+        for (Object transfer : snapshot) {
+            details.add(transfer.toString());
+        }
+        return details;
+    }
+}
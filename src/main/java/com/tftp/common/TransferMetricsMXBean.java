@@ -0,0 +1,72 @@
+package com.tftp.common;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of a server's {@link TransferMetrics}, registered as
+ * {@code com.tftp:type=TransferMetrics,server=<udp|tcp>}.
+ */
+public interface TransferMetricsMXBean {
+    long getActiveTransfers();
+
+    long getTransfersStarted();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /** File bytes moved per second in either direction, over the last second or so. */
+    double getBytesPerSecond();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    long getRetransmissions();
+
+    /** Requests being served, from their arrival until their transfer ends (UDP only). */
+    long getSessions();
+
+    /** Retransmitted requests dropped because the first copy was still being served (UDP only). */
+    long getDuplicateRequests();
+
+    /** Sessions given up on after going quiet without their transfer ending (UDP only). */
+    long getExpiredSessions();
+
+    /** Requests received by each listening socket, when several share the port (UDP only). */
+    long[] getListenerRequests();
+
+    /** Requests the system dropped on each listening socket for want of buffer room, -1 if not known (UDP only). */
+    long[] getListenerDrops();
+
+    /** Downloads served from a mapping already in the {@link FileCache}. */
+    long getCacheHits();
+
+    /** Downloads that had to map their file, or could not be cached. */
+    long getCacheMisses();
+
+    long getCachedFiles();
+
+    long getCachedBytes();
+
+    long getRetransmissionsPerTransferP99();
+
+    double getAckRttP50Millis();
+
+    double getAckRttP99Millis();
+
+    double getTimeToFirstByteP50Millis();
+
+    double getTimeToFirstByteP99Millis();
+
+    /** Failed or refused requests by error type. */
+    Map<String, Long> getErrors();
+
+    /** One line per transfer in progress: peer, file, progress, rate and round trip. */
+    List<String> getActiveTransferDetails();
+}
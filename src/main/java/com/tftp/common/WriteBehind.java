@@ -0,0 +1,239 @@
+package com.tftp.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Write-behind stage of an upload. Received data is copied into a few large pooled
+ * buffers, contiguous blocks coalescing into one, and a writer thread of its own puts
+ * each full buffer on disk while the transfer goes on receiving. Only when every
+ * buffer is waiting for the disk does {@link #write} block, so a slow disk throttles
+ * the sender instead of adding its latency to every block.
+ * <p>
+ * A failed write is reported by the next call to {@link #write}, {@link #drain} or
+ * {@link #finish}. Data reaches the disk with {@link #finish}, and also every
+ * {@code -Dtftp.upload.syncBytes} bytes if that is positive; a negative value skips
+ * syncing altogether.
+ * <p>
+ * A caller whose thread serves others too, such as an event loop, calls {@link #neverWait}.
+ * Writes then take more buffers rather than wait for one, the caller holds back its
+ * sender while {@link #backlogged}, and it ends with {@link #finishAsync}.
+ */
+public class WriteBehind implements Closeable {
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_BUFFERS = 8;
+    private static final long SYNC_BYTES = Long.getLong("tftp.upload.syncBytes", 0);
+
+    private record Write(ByteBuffer buffer, long position) {
+    }
+
+    private static final Write STOP = new Write(null, -1);
+
+    private final FileChannel channel;
+    private final String name;
+    // Never holds more than MAX_BUFFERS writes and the STOP
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile IOException failure;
+
+    // Owned by the receiving thread
+    private int allocated;
+    private ByteBuffer current;
+    private long currentPosition;
+    private boolean closed;
+    private boolean mayWait = true;
+
+    public WriteBehind(FileChannel channel, String name) {
+        this.channel = channel;
+        this.name = name;
+        this.writer = Thread.ofVirtual().name("write-behind " + name).start(this::writeLoop);
+    }
+
+    /** Queues the remaining bytes of {@code data} for writing at {@code position}, consuming them. */
+    public void write(ByteBuffer data, long position) throws IOException {
+        checkFailure();
+        while (data.hasRemaining()) {
+            if (current != null && (!current.hasRemaining() || position != currentPosition + current.position())) {
+                handOff();
+            }
+            if (current == null) {
+                current = takeFree();
+                currentPosition = position;
+            }
+            int length = Math.min(current.remaining(), data.remaining());
+            current.put(current.position(), data, data.position(), length);
+            current.position(current.position() + length);
+            data.position(data.position() + length);
+            position += length;
+        }
+    }
+
+    /** Waits until everything queued so far has been written. */
+    public void drain() throws IOException {
+        if (current != null) {
+            if (current.position() > 0) {
+                handOff();
+            } else {
+                free.add(current);
+                current = null;
+            }
+        }
+        // Every buffer is back once the writer has nothing left to write
+        List<ByteBuffer> buffers = new ArrayList<>(allocated);
+        try {
+            while (buffers.size() < allocated) {
+                buffers.add(free.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing");
+        } finally {
+            free.addAll(buffers);
+        }
+        checkFailure();
+    }
+
+    /** Makes {@link #write} take buffers beyond the usual number rather than wait for one. */
+    public void neverWait() {
+        mayWait = false;
+    }
+
+    /** Whether every usual buffer is queued or being filled, so that the sender should pause. */
+    public boolean backlogged() {
+        return allocated - free.size() >= MAX_BUFFERS;
+    }
+
+    /**
+     * Trims the file to {@code size}, then does what {@link #finish} does, on a thread of its
+     * own. Nothing else may be called until the future completes; it fails with the error.
+     */
+    public CompletableFuture<Void> finishAsync(long size) {
+        CompletableFuture<Void> finished = new CompletableFuture<>();
+        Thread.ofVirtual().name("finish " + name).start(() -> {
+            try {
+                drain();
+                channel.truncate(size);
+                finish();
+                finished.complete(null);
+            } catch (IOException e) {
+                finished.completeExceptionally(e);
+            }
+        });
+        return finished;
+    }
+
+    /** Writes everything queued and forces it to disk. */
+    public void finish() throws IOException {
+        drain();
+        if (SYNC_BYTES >= 0) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    /** Whether a write has failed, telling a failure of this stage apart from the caller's own. */
+    public boolean failed() {
+        return failure != null;
+    }
+
+    /** Stops the writer once it has written what is queued, and returns the buffers to the pool. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.add(STOP);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (current != null) {
+            BufferPool.shared().release(current);
+            current = null;
+        }
+        for (ByteBuffer buffer; (buffer = free.poll()) != null; ) {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    private void handOff() {
+        queue.add(new Write(current.flip(), currentPosition));
+        current = null;
+    }
+
+    private ByteBuffer takeFree() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) return buffer;
+        if (allocated < MAX_BUFFERS || !mayWait) {
+            allocated++;
+            return BufferPool.shared().acquire(BUFFER_SIZE);
+        }
+        try {
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing");
+        }
+        checkFailure();
+        return buffer;
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Never interrupted: an interrupt during a write would close the file
+    private void writeLoop() {
+        long unsynced = 0;
+        while (true) {
+            Write write;
+            try {
+                write = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (write == STOP) return;
+
+            ByteBuffer buffer = write.buffer;
+            try {
+                // After a failure the rest is dropped; the transfer fails at its next call
+                if (failure == null) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, write.position + buffer.position());
+                    }
+                    unsynced += buffer.limit();
+                    if (SYNC_BYTES > 0 && unsynced >= SYNC_BYTES) {
+                        channel.force(false);
+                        unsynced = 0;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                free.add(buffer.clear());
+            }
+        }
+    }
+}
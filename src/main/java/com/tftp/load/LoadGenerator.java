@@ -0,0 +1,459 @@
+package com.tftp.load;
+
+import com.tftp.common.Logging;
+import com.tftp.tcp.client.SessionClientTCP;
+import com.tftp.udp.client.TransferClientUDP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Puts a server under the load of many clients at once, the way a rack of machines
+ * booting together would. Each simulated client reads or writes one file, arriving at
+ * random (a Poisson process) at a rate that ramps up linearly and then holds. The server
+ * runs in a JVM of its own on the usual loopback port, so its threads and sockets can be
+ * counted; nothing leaves the machine, which makes the run fit for CI.
+ * <p>
+ * Usage: {@code LoadGenerator udp|tcp [engine]}, where the engine is passed on to the
+ * server ({@code threads}, {@code virtual} or {@code nio} for UDP; {@code platform} or
+ * {@code virtual} for TCP). The run is set with system properties:
+ * <ul>
+ *     <li>{@code tftp.load.clients}: transfers in flight at most (1000)</li>
+ *     <li>{@code tftp.load.rate}: arrivals per second once ramped up (200)</li>
+ *     <li>{@code tftp.load.rampSeconds}: seconds to ramp up from nothing (10)</li>
+ *     <li>{@code tftp.load.seconds}: seconds of arrivals, ramp included (30)</li>
+ *     <li>{@code tftp.load.drainSeconds}: seconds left to finish after that (60)</li>
+ *     <li>{@code tftp.load.mix}: file sizes and their weights ({@code 1k:60,64k:30,1m:9,16m:1})</li>
+ *     <li>{@code tftp.load.writes}: share of arrivals that upload rather than download (0.2)</li>
+ *     <li>{@code tftp.load.blksize}, {@code tftp.load.windowsize}: UDP options asked for (1428, 1)</li>
+ *     <li>{@code tftp.load.serverOptions}: JVM options for the server, such as {@code -Dtftp.cache.bytes=0}</li>
+ *     <li>{@code tftp.load.server}: {@code host:port} of a server already running, to load it instead;
+ *     its threads and sockets are then not reported, and it must be able to read this machine's
+ *     temporary directory</li>
+ *     <li>{@code tftp.load.maxFailures}: share of failed transfers above which the run fails (0.01)</li>
+ *     <li>{@code tftp.load.seed}: seed for arrivals and file contents (1)</li>
+ * </ul>
+ * {@code -Dtftp.udp.impair} puts the UDP clients on a simulated lossy network, and the
+ * server it starts as well, so that both directions are impaired. The run exits with status 1 when too many transfers failed or the server died.
+ */
+public class LoadGenerator {
+    private static final long PROGRESS_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long SAMPLE_MILLIS = 250;
+
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final Map<String, LongAdder> reasons = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<Long>> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile int peakInFlight;
+
+    public static void main(String[] args) throws Exception {
+        Logging.configure();
+        if (args.length < 1 || !(args[0].equals("udp") || args[0].equals("tcp"))) {
+            System.err.println("Usage: LoadGenerator udp|tcp [engine]");
+            System.exit(2);
+        }
+        System.exit(new LoadGenerator().run(args[0], args.length > 1 ? args[1] : null) ? 0 : 1);
+    }
+
+    // A size of file, how often it is asked for, and the file itself
+    private record SizeClass(String name, long bytes, int weight, Path source) {
+    }
+
+    // What the client library offers, trimmed to what a run needs
+    private interface Traffic extends AutoCloseable {
+        CompletableFuture<Long> get(String filename, Path target);
+
+        CompletableFuture<Long> put(Path source, String filename);
+
+        @Override
+        void close();
+    }
+
+    private boolean run(String protocol, String engine) throws IOException, InterruptedException {
+        int clients = Integer.getInteger("tftp.load.clients", 1000);
+        double rate = Double.parseDouble(System.getProperty("tftp.load.rate", "200"));
+        double rampSeconds = Double.parseDouble(System.getProperty("tftp.load.rampSeconds", "10"));
+        double seconds = Double.parseDouble(System.getProperty("tftp.load.seconds", "30"));
+        long drainSeconds = Long.getLong("tftp.load.drainSeconds", 60);
+        double writes = Double.parseDouble(System.getProperty("tftp.load.writes", "0.2"));
+        double maxFailures = Double.parseDouble(System.getProperty("tftp.load.maxFailures", "0.01"));
+        long seed = Long.getLong("tftp.load.seed", 1);
+        String external = System.getProperty("tftp.load.server");
+
+        Path scratch = Files.createTempDirectory("tftp-load-");
+        ServerProcess server = null;
+        try {
+            List<SizeClass> mix = createFiles(System.getProperty("tftp.load.mix", "1k:60,64k:30,1m:9,16m:1"),
+                    scratch.resolve("files"), seed);
+            for (SizeClass size : mix) {
+                stats.put(key(size, false), new Stats());
+                stats.put(key(size, true), new Stats());
+            }
+            Path downloads = Files.createDirectories(scratch.resolve("downloads"));
+            Path uploads = Files.createDirectories(scratch.resolve("uploads"));
+
+            InetSocketAddress address;
+            if (external != null) {
+                int colon = external.lastIndexOf(':');
+                address = new InetSocketAddress(external.substring(0, colon),
+                        Integer.parseInt(external.substring(colon + 1)));
+            } else {
+                address = new InetSocketAddress(InetAddress.getLoopbackAddress(), protocol.equals("udp")
+                        ? TransferClientUDP.DEFAULT_PORT : SessionClientTCP.DEFAULT_PORT);
+                String serverOptions = System.getProperty("tftp.load.serverOptions", "").trim();
+                List<String> jvmOptions = new ArrayList<>();
+                if (!serverOptions.isEmpty()) jvmOptions.addAll(Arrays.asList(serverOptions.split("\\s+")));
+                // An impaired network is impaired both ways
+                String impair = System.getProperty("tftp.udp.impair");
+                if (impair != null) jvmOptions.add("-Dtftp.udp.impair=" + impair);
+                try {
+                    server = ServerProcess.start(protocol, protocol.equals("udp")
+                                    ? "com.tftp.udp.server.TFTPServerUDP" : "com.tftp.tcp.server.TFTPServerTCP",
+                            engine == null ? List.of() : List.of(engine), address, uploads,
+                            scratch.resolve("server.log"), jvmOptions);
+                } catch (IOException e) {
+                    Path log = scratch.resolve("server.log");
+                    if (Files.exists(log)) {
+                        Files.copy(log, System.err);
+                    }
+                    throw e;
+                }
+            }
+
+            System.out.printf(Locale.ROOT, "Loading %s server%s at %s: %.0f arrivals/s after a %.0fs ramp, %.0fs in all,"
+                            + " up to %d in flight, %.0f%% writes%n", protocol, engine == null ? "" : " (" + engine + ")",
+                    address, rate, rampSeconds, seconds, clients, writes * 100);
+
+            long begin = System.nanoTime();
+            Thread sampler = startSampler(server, begin);
+            try (Traffic traffic = protocol.equals("udp") ? udp(address, clients) : tcp(address, clients)) {
+                offer(traffic, mix, rate, rampSeconds, seconds, writes, seed, downloads, uploads, external == null);
+                drain(drainSeconds);
+                long elapsed = System.nanoTime() - begin;
+                sampler.interrupt();
+                sampler.join();
+                if (server != null) server.sample();
+                boolean serverAlive = server == null || server.alive();
+                boolean passed = report(mix, elapsed, server, maxFailures) && serverAlive;
+                if (!serverAlive) {
+                    System.out.println("Server died during the run; its output follows");
+                    Files.copy(server.log(), System.out);
+                }
+                // Stopping the server first ends whatever is still running against it
+                if (server != null) server.close();
+                return passed;
+            }
+        } finally {
+            if (server != null) server.close();
+            deleteRecursively(scratch);
+        }
+    }
+
+    // Arrivals come at random; thinning arrivals at the full rate gives the ramp
+    private void offer(Traffic traffic, List<SizeClass> mix, double rate, double rampSeconds, double seconds,
+                       double writes, long seed, Path downloads, Path uploads, boolean ownServer)
+            throws InterruptedException {
+        Random random = new Random(seed);
+        int totalWeight = mix.stream().mapToInt(SizeClass::weight).sum();
+        long begin = System.nanoTime();
+        double at = 0;
+        while (true) {
+            at += -Math.log(1 - random.nextDouble()) / rate;
+            if (at >= seconds) break;
+            if (rampSeconds > 0 && at < rampSeconds && random.nextDouble() >= at / rampSeconds) continue;
+
+            long due = begin + (long) (at * 1e9);
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            int pick = random.nextInt(totalWeight);
+            SizeClass size = mix.get(0);
+            for (SizeClass candidate : mix) {
+                size = candidate;
+                if ((pick -= candidate.weight()) < 0) break;
+            }
+            boolean write = random.nextDouble() < writes;
+            long n = started.incrementAndGet();
+            String name = "load-" + n + "-" + size.name() + ".bin";
+            Path local = write ? uploads.resolve(name) : downloads.resolve(name);
+
+            long arrival = System.nanoTime();
+            peakInFlight = Math.max(peakInFlight, inFlight.incrementAndGet());
+            CompletableFuture<Long> transfer = write
+                    ? traffic.put(size.source(), name)
+                    : traffic.get(size.source().toString(), local);
+            pending.add(transfer);
+            Stats stats = this.stats.get(key(size, write));
+            transfer.whenComplete((bytes, failure) -> {
+                long latency = System.nanoTime() - arrival;
+                if (failure == null) {
+                    stats.succeeded(latency, bytes);
+                } else {
+                    stats.failed();
+                    failed.incrementAndGet();
+                    reasons.computeIfAbsent(reason(failure), r -> new LongAdder()).increment();
+                }
+                // Uploads land in the server's directory, which is only ours when we started it
+                if (!write || ownServer) deleteQuietly(local);
+                inFlight.decrementAndGet();
+                finished.incrementAndGet();
+                pending.remove(transfer);
+            });
+        }
+    }
+
+    // Waits for the transfers still running; those that do not finish in time count as failed
+    private void drain(long drainSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        for (CompletableFuture<Long> transfer : List.copyOf(pending)) {
+            transfer.cancel(false);
+        }
+    }
+
+    private Thread startSampler(ServerProcess server, long begin) {
+        return Thread.ofPlatform().daemon().name("load-sampler").start(() -> {
+            long nextProgress = begin + PROGRESS_NANOS;
+            try {
+                while (true) {
+                    Thread.sleep(SAMPLE_MILLIS);
+                    if (server != null) server.sample();
+                    long now = System.nanoTime();
+                    if (now >= nextProgress) {
+                        nextProgress += PROGRESS_NANOS;
+                        System.out.printf(Locale.ROOT, "%5ds  started %d, finished %d, failed %d, in flight %d%n",
+                                TimeUnit.NANOSECONDS.toSeconds(now - begin), started.get(), finished.get(),
+                                failed.get(), inFlight.get());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Run over
+            }
+        });
+    }
+
+    private boolean report(List<SizeClass> mix, long elapsed, ServerProcess server, double maxFailures) {
+        double seconds = elapsed / 1e9;
+        long bytes = stats.values().stream().mapToLong(s -> s.bytes).sum();
+        long total = finished.get();
+        double failedShare = total == 0 ? 0 : (double) failed.get() / total;
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%d transfers in %.1fs, %d failed (%.2f%%), at most %d in flight%n",
+                total, seconds, failed.get(), failedShare * 100, peakInFlight);
+        System.out.printf(Locale.ROOT, "Throughput: %.1f MB/s, %.1f transfers/s%n",
+                bytes / seconds / 1e6, (total - failed.get()) / seconds);
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-10s %8s %7s %9s %9s %9s %9s %9s%n",
+                "", "count", "failed", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (SizeClass size : mix) {
+            for (boolean write : new boolean[]{false, true}) {
+                String key = key(size, write);
+                Stats s = stats.get(key);
+                if (s.count() == 0) continue;
+                long[] latencies = s.sortedLatencies();
+                System.out.printf(Locale.ROOT, "%-10s %8d %7d %9.1f %9s %9s %9s %9s%n", key, s.count(), s.failures,
+                        s.bytes / seconds / 1e6, millis(latencies, 0.50), millis(latencies, 0.90),
+                        millis(latencies, 0.99), millis(latencies, 1.0));
+            }
+        }
+
+        if (!reasons.isEmpty()) {
+            System.out.println();
+            System.out.println("Failures:");
+            reasons.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+                    .limit(10)
+                    .forEach(e -> System.out.printf("%8d  %s%n", e.getValue().sum(), e.getKey()));
+        }
+
+        if (server != null) {
+            System.out.println();
+            System.out.println("Server: at most " + server.peakThreads() + " threads and "
+                    + server.peakSockets() + " sockets");
+            for (String counter : server.counters()) {
+                System.out.println("  " + counter);
+            }
+        }
+
+        if (failedShare > maxFailures) {
+            System.out.printf(Locale.ROOT, "%nFAILED: %.2f%% of transfers failed, more than the %.2f%% allowed%n",
+                    failedShare * 100, maxFailures * 100);
+            return false;
+        }
+        return true;
+    }
+
+    private static Traffic udp(InetSocketAddress address, int clients) {
+        TransferClientUDP client = new TransferClientUDP(address, null, clients);
+        TransferClientUDP.Options options = new TransferClientUDP.Options(
+                Integer.getInteger("tftp.load.blksize", 1428), Integer.getInteger("tftp.load.windowsize", 1), false);
+        return new Traffic() {
+            @Override
+            public CompletableFuture<Long> get(String filename, Path target) {
+                return client.get(filename, target, options).thenApply(TransferClientUDP.Result::bytes);
+            }
+
+            @Override
+            public CompletableFuture<Long> put(Path source, String filename) {
+                return client.put(source, filename, options).thenApply(TransferClientUDP.Result::bytes);
+            }
+
+            @Override
+            public void close() {
+                client.close();
+            }
+        };
+    }
+
+    private static Traffic tcp(InetSocketAddress address, int clients) {
+        SessionClientTCP client = new SessionClientTCP(address, 0, null, clients);
+        return new Traffic() {
+            @Override
+            public CompletableFuture<Long> get(String filename, Path target) {
+                return client.get(filename, target).thenApply(SessionClientTCP.Result::transferred);
+            }
+
+            @Override
+            public CompletableFuture<Long> put(Path source, String filename) {
+                return client.put(source, filename, false).thenApply(SessionClientTCP.Result::transferred);
+            }
+
+            @Override
+            public void close() {
+                client.close();
+            }
+        };
+    }
+
+    // Parses "1k:60,64k:30" and writes one file of each size for every transfer of it to share
+    private static List<SizeClass> createFiles(String spec, Path directory, long seed) throws IOException {
+        Files.createDirectories(directory);
+        Random random = new Random(seed);
+        List<SizeClass> mix = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) throw new IllegalArgumentException("Bad size in tftp.load.mix: " + entry);
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            long bytes = parseSize(name);
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight <= 0) continue;
+            Path source = directory.resolve(name + ".bin");
+            byte[] chunk = new byte[64 * 1024];
+            try (OutputStream out = Files.newOutputStream(source)) {
+                for (long left = bytes; left > 0; left -= chunk.length) {
+                    random.nextBytes(chunk);
+                    out.write(chunk, 0, (int) Math.min(chunk.length, left));
+                }
+            }
+            mix.add(new SizeClass(name, bytes, weight, source));
+        }
+        if (mix.isEmpty()) throw new IllegalArgumentException("tftp.load.mix has no sizes: " + spec);
+        return mix;
+    }
+
+    private static long parseSize(String size) {
+        long unit = switch (size.charAt(size.length() - 1)) {
+            case 'k' -> 1024;
+            case 'm' -> 1024 * 1024;
+            case 'g' -> 1024 * 1024 * 1024;
+            default -> 1;
+        };
+        String digits = unit == 1 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+
+    private static String key(SizeClass size, boolean write) {
+        return size.name() + (write ? " put" : " get");
+    }
+
+    private static String reason(Throwable failure) {
+        while (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof CancellationException) return "Unfinished when the run ended";
+        String message = failure.getMessage();
+        return failure.getClass().getSimpleName() + (message == null ? "" : ": " + message);
+    }
+
+    // The latency below which a share q of the transfers finished, nearest rank
+    private static String millis(long[] sorted, double q) {
+        if (sorted.length == 0) return "-";
+        int rank = (int) Math.ceil(q * sorted.length) - 1;
+        return String.format(Locale.ROOT, "%.1f", sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1e6);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(Path.of(path + ".part"));
+        } catch (IOException e) {
+            // Goes with the scratch directory at the end
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Outcomes of one size and direction. Latencies are kept whole, for exact percentiles.
+    private static final class Stats {
+        private long[] latencies = new long[1024];
+        private int successes;
+        private int failures;
+        private long bytes;
+
+        synchronized void succeeded(long latency, long transferred) {
+            if (successes == latencies.length) {
+                latencies = Arrays.copyOf(latencies, successes * 2);
+            }
+            latencies[successes++] = latency;
+            bytes += transferred;
+        }
+
+        synchronized void failed() {
+            failures++;
+        }
+
+        synchronized int count() {
+            return successes + failures;
+        }
+
+        synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, successes);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
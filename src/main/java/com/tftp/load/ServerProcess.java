@@ -0,0 +1,203 @@
+package com.tftp.load;
+
+import com.tftp.common.TFTPCodec;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A server under load, started as a JVM of its own so that its threads and sockets can
+ * be counted apart from the generator's. It listens on the server's usual loopback
+ * port, stores uploads in a scratch directory and serves its metrics on a free port,
+ * which is read once the run is over. Thread and socket counts come from
+ * {@code /proc}, so they are only reported on Linux.
+ */
+class ServerProcess implements AutoCloseable {
+    private static final long START_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(20);
+
+    private final Process process;
+    private final Path log;
+    private final int metricsPort;
+    private final String server;
+    // Sampled from one thread, read from another
+    private volatile int peakThreads;
+    private volatile int peakSockets;
+
+    private ServerProcess(Process process, Path log, int metricsPort, String server) {
+        this.process = process;
+        this.log = log;
+        this.metricsPort = metricsPort;
+        this.server = server;
+    }
+
+    /**
+     * Starts {@code mainClass} with {@code args} and waits until it answers on
+     * {@code address}. {@code jvmOptions} are added to the command line, for settings
+     * such as {@code -Dtftp.cache.bytes=0} that the run is meant to try.
+     */
+    static ServerProcess start(String protocol, String mainClass, List<String> args, InetSocketAddress address,
+                               Path uploads, Path log, List<String> jvmOptions) throws IOException {
+        if (answers(protocol, address)) {
+            throw new IOException("Something already answers on " + address
+                    + "; stop it, or point tftp.load.server at it to load it instead");
+        }
+        int metricsPort = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse(Path.of(System.getProperty("java.home"), "bin", "java").toString()));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dtftp.upload.dir=" + uploads);
+        command.add("-Dtftp.metrics.port=" + metricsPort);
+        // The servers log every transfer at INFO, which would only fill the disk here
+        command.add("-Dtftp.log.level=WARNING");
+        command.addAll(jvmOptions);
+        command.add(mainClass);
+        command.addAll(args);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        ServerProcess server = new ServerProcess(process, log, metricsPort, protocol);
+        long deadline = System.nanoTime() + START_TIMEOUT_NANOS;
+        while (!answers(protocol, address)) {
+            if (!process.isAlive() || System.nanoTime() > deadline) {
+                server.close();
+                throw new IOException("Server did not start; its output is in " + log);
+            }
+        }
+        return server;
+    }
+
+    /** Takes a sample of the server's threads and open sockets, keeping the peaks. */
+    void sample() {
+        Path proc = Path.of("/proc", Long.toString(process.pid()));
+        try {
+            for (String line : Files.readAllLines(proc.resolve("status"))) {
+                if (line.startsWith("Threads:")) {
+                    peakThreads = Math.max(peakThreads, Integer.parseInt(line.substring(8).trim()));
+                }
+            }
+            int sockets = 0;
+            try (Stream<Path> fds = Files.list(proc.resolve("fd"))) {
+                for (Path fd : (Iterable<Path>) fds::iterator) {
+                    try {
+                        if (Files.readSymbolicLink(fd).toString().startsWith("socket:")) sockets++;
+                    } catch (IOException e) {
+                        // Closed while we looked
+                    }
+                }
+            }
+            peakSockets = Math.max(peakSockets, sockets);
+        } catch (IOException | RuntimeException e) {
+            // No /proc, or the process is gone
+        }
+    }
+
+    int peakThreads() {
+        return peakThreads;
+    }
+
+    int peakSockets() {
+        return peakSockets;
+    }
+
+    boolean alive() {
+        return process.isAlive();
+    }
+
+    Path log() {
+        return log;
+    }
+
+    /** The server's own counters for this protocol, as served on its metrics endpoint. */
+    List<String> counters() {
+        List<String> counters = new ArrayList<>();
+        try (HttpClient http = HttpClient.newHttpClient()) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + metricsPort + "/metrics")).build();
+            String label = "server=\"" + server + "\"";
+            for (String line : http.send(request, HttpResponse.BodyHandlers.ofString()).body().split("\n")) {
+                if (line.startsWith("#") || line.contains("_bucket") || !line.contains(label)) continue;
+                if (line.startsWith("tftp_transfers_") || line.startsWith("tftp_errors_total")
+                        || line.startsWith("tftp_retransmissions_total")
+                        || line.startsWith("tftp_duplicate_requests_total")
+                        || line.startsWith("tftp_listener_drops_total")) {
+                    counters.add(line);
+                }
+            }
+        } catch (IOException e) {
+            counters.add("(metrics unavailable: " + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return counters;
+    }
+
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A UDP server answers a request for a file that is not there with an ERROR; a TCP one accepts
+    private static boolean answers(String protocol, InetSocketAddress address) {
+        if (protocol.equals("tcp")) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 200);
+                return true;
+            } catch (IOException e) {
+                sleep();
+                return false;
+            }
+        }
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(200);
+            ByteBuffer request = TFTPCodec.encodeRequest(ByteBuffer.allocate(516), TFTPCodec.OP_RRQ,
+                    "/load-generator-probe-" + System.nanoTime(), "octet", Map.of());
+            socket.send(new DatagramPacket(request.array(), request.limit(), address));
+            byte[] reply = new byte[516];
+            socket.receive(new DatagramPacket(reply, reply.length));
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            sleep();
+            return false;
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
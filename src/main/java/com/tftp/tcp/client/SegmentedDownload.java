@@ -0,0 +1,143 @@
+package com.tftp.tcp.client;
+
+import com.tftp.tcp.utils.FrameInputTCP;
+import com.tftp.tcp.utils.TFTPFrameTCP;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Downloads one file as a set of byte ranges fetched at the same time, each over its
+ * own connection. One TCP stream is held back by its congestion window on a long,
+ * fast link, while several share it between them. Every range is written in place
+ * into a file sized up front, so the ranges can arrive in any order, and a range
+ * whose connection fails is fetched again from where it stopped.
+ */
+class SegmentedDownload {
+    private static final Logger LOG = Logger.getLogger(SegmentedDownload.class.getName());
+    // Below this a range is not worth its own connection
+    private static final long MIN_SEGMENT = 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    // Pause before the next attempt, times the attempts so far, so a restarting server can come back
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final InetSocketAddress server;
+    private final String filename;
+    private final long size;
+    private final AtomicInteger retries = new AtomicInteger();
+
+    SegmentedDownload(InetSocketAddress server, String filename, long size) {
+        this.server = server;
+        this.filename = filename;
+        this.size = size;
+    }
+
+    /**
+     * Fetches the file into {@code target} over up to {@code connections} connections.
+     * Returns the number of connections used; on failure nothing is left at {@code target}.
+     */
+    int download(Path target, int connections) throws IOException {
+        int segments = (int) Math.max(1, Math.min(connections, size / MIN_SEGMENT));
+        boolean complete = false;
+        try (RandomAccessFile output = new RandomAccessFile(target.toFile(), "rw")) {
+            output.setLength(size);
+            FileChannel file = output.getChannel();
+
+            List<Future<?>> ranges = new ArrayList<>(segments);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < segments; i++) {
+                    long start = size * i / segments;
+                    long end = size * (i + 1) / segments;
+                    ranges.add(executor.submit(() -> {
+                        fetch(file, start, end);
+                        return null;
+                    }));
+                }
+            }
+            // Every range has finished by now; report the first that could not be fetched
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+            complete = true;
+            return segments;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + filename);
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    /** Ranges that had to be fetched again after their connection failed. */
+    int retries() {
+        return retries.get();
+    }
+
+    // Fetches [start, end) into the file, reconnecting from the last byte written when a connection fails
+    private void fetch(FileChannel file, long start, long end) throws IOException {
+        long position = start;
+        for (int attempt = 1; ; attempt++) {
+            try (SocketChannel channel = SocketChannel.open(server)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+                // Uncompressed, so the ranges are limited by the link and not by the CPU
+                TFTPFrameTCP.writeSessionStart(out, 0);
+                TFTPFrameTCP.writeReadRequest(out, filename, position, end - position);
+                out.flush();
+
+                FrameInputTCP in = new FrameInputTCP(channel);
+                if (in.readInt() == TFTPFrameTCP.STATUS_ERROR) {
+                    throw new IOException(in.readUTF());
+                }
+                if (in.readLong() != size) {
+                    throw new IOException(filename + " changed size during the download");
+                }
+                in.readUTF(); // The digest, checked once the whole file is in
+                in.readUTF();
+                long rangeEnd = position + in.readLong();
+                in.readByte(); // Raw, as no compression was offered
+                while (position < rangeEnd) {
+                    int received = in.copyChunk(file, position, rangeEnd - position);
+                    if (received < 0) break;
+                    position += received;
+                }
+                if (position < end) {
+                    throw new EOFException("Connection closed at byte " + position);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw new IOException("Range " + start + "-" + end + " of " + filename + " failed: " + e.getMessage(), e);
+                }
+                retries.incrementAndGet();
+                LOG.warning("Range " + start + "-" + end + " of " + filename + " failed at byte " + position
+                        + " (" + e.getMessage() + "), retrying");
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while retrying " + filename, e);
+                }
+            }
+        }
+    }
+}
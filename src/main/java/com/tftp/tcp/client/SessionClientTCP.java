@@ -0,0 +1,465 @@
+package com.tftp.tcp.client;
+
+import com.tftp.common.BoundedExecutor;
+import com.tftp.common.FileDigest;
+import com.tftp.tcp.utils.DeflateTCP;
+import com.tftp.tcp.utils.FrameInputTCP;
+import com.tftp.tcp.utils.SendFileTCP;
+import com.tftp.tcp.utils.TFTPFrameTCP;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Client for TCP sessions, for use from other programs. Each call runs in the
+ * background and completes a {@link CompletableFuture}; no more than
+ * {@code maxSessions} run at a time, the rest waiting in a queue without holding a
+ * thread. Sessions are kept open between calls, so most transfers skip the connection
+ * setup, and a batch of downloads is pipelined over as many sessions as it may use.
+ * <p>
+ * Downloads arrive in a {@code .part} file next to the target that is renamed once
+ * complete, and pick up from it the next time they are asked for. When the server sends
+ * a digest of the file, the {@code .part} file must match it before it is renamed, so a
+ * download resumed after the file changed on the server fails instead. A failed call
+ * completes its future with the {@link IOException}, carrying the server's message if
+ * it answered with an error.
+ */
+public class SessionClientTCP implements Closeable {
+    public static final int DEFAULT_PORT = 9876;
+    public static final int DEFAULT_MAX_SESSIONS = 16;
+
+    private static final Logger LOG = Logger.getLogger(SessionClientTCP.class.getName());
+
+    /**
+     * A finished transfer: the local file, the size of the whole file, the offset it
+     * resumed from, and the bytes the body took on the wire, over how many connections.
+     */
+    public record Result(String filename, Path path, long size, long offset, long wireBytes, int connections,
+                         int retries, long nanos) {
+        /** Bytes moved by this transfer, leaving out what an earlier one had moved already. */
+        public long transferred() {
+            return size - offset;
+        }
+    }
+
+    private static final class Session implements Closeable {
+        final SocketChannel channel;
+        final DataOutputStream out;
+        final FrameInputTCP in;
+
+        Session(SocketChannel channel, DataOutputStream out, FrameInputTCP in) {
+            this.channel = channel;
+            this.out = out;
+            this.in = in;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
+    // An error status from the server. The reply was read in full, so the session can go on.
+    private static final class ErrorReply extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ErrorReply(String message) {
+            super(message);
+        }
+    }
+
+    private interface SessionWork<T> {
+        T run(Session session) throws IOException;
+    }
+
+    // The whole file as a download reply describes it; the digest is empty if the server has none
+    private record FileHeader(long size, String algorithm, String digest) {
+    }
+
+    // A file of a pipelined batch and where its result goes
+    private record Download(String filename, Path target, CompletableFuture<Result> result) {
+    }
+
+    private final InetSocketAddress server;
+    private final int compressionLevel;
+    private final int maxSessions;
+    private final BoundedExecutor calls;
+    // Null when the caller supplied the executor
+    private final ExecutorService ownExecutor;
+    private final ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * A client running up to {@link #DEFAULT_MAX_SESSIONS} calls at a time, each on a
+     * virtual thread, offering deflate at {@code compressionLevel} (1-9) or none (0).
+     */
+    public SessionClientTCP(InetSocketAddress server, int compressionLevel) {
+        this(server, compressionLevel, null, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * A client running up to {@code maxSessions} calls at a time on {@code executor}, which
+     * may be shared with others; each call blocks its thread until it ends. With a null
+     * executor every call gets a virtual thread of its own.
+     */
+    public SessionClientTCP(InetSocketAddress server, int compressionLevel, Executor executor, int maxSessions) {
+        this.server = server;
+        this.compressionLevel = compressionLevel;
+        this.maxSessions = maxSessions;
+        this.ownExecutor = executor == null ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        this.calls = new BoundedExecutor(executor == null ? ownExecutor : executor, maxSessions);
+    }
+
+    /** Downloads {@code filename} into {@code target}, resuming from its {@code .part} file if there is one. */
+    public CompletableFuture<Result> get(String filename, Path target) {
+        Download download = new Download(filename, target, new CompletableFuture<>());
+        fetchAll(List.of(download));
+        return download.result;
+    }
+
+    /**
+     * Downloads each of {@code filenames} to the same name under {@code directory},
+     * pipelined over at most {@code parallelism} sessions. The futures are in the order of
+     * the names and complete as each file arrives; one file failing does not stop the others
+     * unless it takes its session down with it.
+     */
+    public List<CompletableFuture<Result>> getAll(List<String> filenames, Path directory, int parallelism) {
+        int groups = Math.max(1, Math.min(parallelism, filenames.size()));
+        List<List<Download>> batches = new ArrayList<>(groups);
+        for (int i = 0; i < groups; i++) {
+            batches.add(new ArrayList<>());
+        }
+        List<CompletableFuture<Result>> results = new ArrayList<>(filenames.size());
+        for (int i = 0; i < filenames.size(); i++) {
+            String filename = filenames.get(i);
+            Download download = new Download(filename, targetIn(directory, filename), new CompletableFuture<>());
+            batches.get(i % groups).add(download);
+            results.add(download.result);
+        }
+        for (List<Download> batch : batches) {
+            fetchAll(batch);
+        }
+        return results;
+    }
+
+    /**
+     * Downloads {@code filename} into {@code target} as byte ranges fetched over up to
+     * {@code connections} connections at once; see {@link SegmentedDownload}.
+     */
+    public CompletableFuture<Result> getSegmented(String filename, Path target, int connections) {
+        return calls.submit(() -> {
+            long start = System.nanoTime();
+            // An empty range: the reply carries just the size and digest
+            FileHeader header = withSession(session -> {
+                TFTPFrameTCP.writeReadRequest(session.out, filename, 0, 0);
+                session.out.flush();
+                checkStatus(session.in);
+                FileHeader file = new FileHeader(session.in.readLong(), session.in.readUTF(), session.in.readUTF());
+                session.in.readLong(); // No bytes follow
+                session.in.readByte();
+                return file;
+            });
+
+            Path partial = partFile(target);
+            createParent(partial);
+            SegmentedDownload download = new SegmentedDownload(server, filename, header.size);
+            int used = download.download(partial, Math.max(1, connections));
+            if (!matchesDigest(partial, header.algorithm, header.digest)) {
+                Files.deleteIfExists(partial);
+                throw digestMismatch(filename, header.algorithm);
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            return new Result(filename, target, header.size, 0, header.size, used, download.retries(),
+                    System.nanoTime() - start);
+        });
+    }
+
+    /** How much of {@code filename} the server has stored, 0 if nothing. */
+    public CompletableFuture<Long> storedSize(String filename) {
+        return calls.submit(() -> withSession(session -> querySize(session, filename)));
+    }
+
+    /**
+     * Uploads {@code source} to the server as {@code filename}. With {@code resume}, an
+     * upload the server has part of, from an earlier attempt, sends only the rest.
+     */
+    public CompletableFuture<Result> put(Path source, String filename, boolean resume) {
+        return calls.submit(() -> {
+            long start = System.nanoTime();
+            try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+                return withSession(session -> {
+                    long size = file.size();
+                    long stored = resume ? querySize(session, filename) : 0;
+                    long offset = stored > 0 && stored < size ? stored : 0;
+                    long wire = upload(session, file, filename, offset, size);
+                    return new Result(filename, source, size, offset, wire, 1, 0, System.nanoTime() - start);
+                });
+            }
+        });
+    }
+
+    /** Waits for the calls already made, then closes the sessions kept open. */
+    @Override
+    public void close() {
+        try {
+            calls.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        if (ownExecutor != null) {
+            ownExecutor.close();
+        }
+        for (Session session; (session = idle.poll()) != null; ) {
+            session.close();
+        }
+    }
+
+    /** The path a download of {@code filename} takes under {@code directory}, even if the name is absolute. */
+    public static Path targetIn(Path directory, String filename) {
+        return Path.of(directory.toString(), filename);
+    }
+
+    // Runs a batch over one session. Whatever the connection failing leaves unfinished fails with it.
+    private void fetchAll(List<Download> batch) {
+        if (batch.isEmpty()) return;
+        calls.submit(() -> withSession(session -> {
+            List<Download> restart = fetch(session, pending(batch));
+            if (!restart.isEmpty()) {
+                fetch(session, restart);
+            }
+            return null;
+        })).whenComplete((ignored, failure) -> {
+            for (Download download : batch) {
+                if (!download.result.isDone()) {
+                    download.result.completeExceptionally(failure != null ? failure
+                            : new IOException("Could not resume " + download.filename));
+                }
+            }
+        });
+    }
+
+    // The part of a batch still to do, after a session was lost partway through it
+    private static List<Download> pending(List<Download> batch) {
+        List<Download> pending = new ArrayList<>(batch.size());
+        for (Download download : batch) {
+            if (!download.result.isDone()) pending.add(download);
+        }
+        return pending;
+    }
+
+    /**
+     * Requests every file up front and then reads the replies in order. The requests are
+     * written from their own thread, so a long batch cannot fill both directions of the
+     * connection while each side waits for the other to read. A resume the server
+     * refuses, because its file is now shorter, is returned to start over.
+     */
+    private List<Download> fetch(Session session, List<Download> batch) throws IOException {
+        long[] offsets = new long[batch.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            Path partial = partFile(batch.get(i).target);
+            offsets[i] = Files.isRegularFile(partial) ? Files.size(partial) : 0;
+        }
+        Thread sender = Thread.ofVirtual().start(() -> {
+            try {
+                for (int i = 0; i < offsets.length; i++) {
+                    TFTPFrameTCP.writeReadRequest(session.out, batch.get(i).filename, offsets[i], -1);
+                }
+                session.out.flush();
+            } catch (IOException e) {
+                // The replies stop short, which the reads below report
+                LOG.fine(() -> "Error sending requests: " + e.getMessage());
+            }
+        });
+
+        List<Download> restart = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < offsets.length; i++) {
+                Download download = batch.get(i);
+                long offset = offsets[i];
+                Path partial = partFile(download.target);
+
+                if (session.in.readInt() == TFTPFrameTCP.STATUS_ERROR) {
+                    String message = session.in.readUTF();
+                    if (offset > 0) {
+                        LOG.info("Cannot resume " + download.filename + " (" + message + "), starting over");
+                        Files.deleteIfExists(partial);
+                        restart.add(download);
+                    } else {
+                        download.result.completeExceptionally(new IOException(message));
+                    }
+                    continue;
+                }
+                long size = session.in.readLong();
+                String algorithm = session.in.readUTF();
+                String digest = session.in.readUTF();
+                long count = session.in.readLong();
+                byte encoding = session.in.readByte();
+
+                // Save the file, appending to what an earlier attempt left
+                createParent(partial);
+                long wire = count;
+                try (FileChannel file = offset == 0
+                        ? FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING)
+                        : FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                    if (encoding == DeflateTCP.DEFLATE) {
+                        wire = DeflateTCP.receive(session.in, file, offset, count, bytes -> { });
+                    } else {
+                        long received = 0;
+                        while (received < count) {
+                            int n = session.in.copyChunk(file, offset + received, count - received);
+                            if (n < 0) throw new EOFException("Connection closed while downloading " + download.filename);
+                            received += n;
+                        }
+                    }
+                }
+
+                // The reply was read in full, so the session goes on to the next file
+                if (!matchesDigest(partial, algorithm, digest)) {
+                    Files.deleteIfExists(partial);
+                    download.result.completeExceptionally(digestMismatch(download.filename, algorithm));
+                    continue;
+                }
+                Files.move(partial, download.target, StandardCopyOption.REPLACE_EXISTING);
+                long now = System.nanoTime();
+                download.result.complete(new Result(download.filename, download.target, size, offset, wire, 1, 0,
+                        now - start));
+                start = now;
+            }
+        } finally {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return restart;
+    }
+
+    // Sends the file from offset and returns the bytes its body took on the wire
+    private long upload(Session session, FileChannel source, String filename, long offset, long size)
+            throws IOException {
+        boolean deflate = compressionLevel > 0
+                && DeflateTCP.worthCompressing(filename, DeflateTCP.sample(source, offset, size - offset));
+        TFTPFrameTCP.writeWriteRequest(session.out, filename, offset, size - offset,
+                deflate ? DeflateTCP.DEFLATE : DeflateTCP.RAW);
+
+        long wire = size - offset;
+        if (deflate) {
+            wire = DeflateTCP.send(source, offset, size - offset, compressionLevel, session.out, bytes -> { });
+            session.out.flush();
+        } else {
+            session.out.flush();
+            // The request announced the length, so the session cannot go on with fewer bytes
+            if (SendFileTCP.send(source, offset, size - offset, session.channel, bytes -> { }) < size - offset) {
+                throw new IOException("File shrank while uploading " + filename);
+            }
+        }
+
+        // The server answers once it has stored everything
+        checkStatus(session.in);
+        session.in.readLong(); // Stored size
+        return wire;
+    }
+
+    private static long querySize(Session session, String filename) throws IOException {
+        TFTPFrameTCP.writeSizeQuery(session.out, filename);
+        session.out.flush();
+        checkStatus(session.in);
+        return session.in.readLong();
+    }
+
+    // True as well when the server sent no digest, or one of an algorithm this JVM does not know
+    private static boolean matchesDigest(Path file, String algorithm, String digest) throws IOException {
+        if (digest.isEmpty() || !FileDigest.supported(algorithm)) return true;
+        return FileDigest.of(file, algorithm).equalsIgnoreCase(digest);
+    }
+
+    private static IOException digestMismatch(String filename, String algorithm) {
+        return new IOException(filename + " does not match the server's " + algorithm + " digest");
+    }
+
+    private static void checkStatus(FrameInputTCP in) throws IOException {
+        if (in.readInt() == TFTPFrameTCP.STATUS_ERROR) {
+            throw new ErrorReply(in.readUTF());
+        }
+    }
+
+    /**
+     * Runs {@code work} on an idle session, or a new one. A session that sat idle may have
+     * been dropped by the server meanwhile, so work that fails on one is tried once more on
+     * a fresh connection; the work must be safe to repeat.
+     */
+    private <T> T withSession(SessionWork<T> work) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Session session = attempt == 1 ? idle.poll() : null;
+            boolean reused = session != null;
+            if (session == null) session = open();
+            boolean clean = false;
+            try {
+                T result = work.run(session);
+                clean = true;
+                return result;
+            } catch (ErrorReply e) {
+                clean = true;
+                throw e;
+            } catch (IOException e) {
+                if (!reused) throw e;
+                LOG.fine(() -> "Idle session failed (" + e.getMessage() + "), reconnecting");
+            } finally {
+                if (clean && !closed && idle.size() < maxSessions) {
+                    idle.add(session);
+                } else {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private Session open() throws IOException {
+        SocketChannel channel = SocketChannel.open(server);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+            TFTPFrameTCP.writeSessionStart(out, compressionLevel);
+            return new Session(channel, out, new FrameInputTCP(channel));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    private static void createParent(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+}
@@ -1,36 +1,64 @@
 package com.tftp.tcp.client;
 
-import java.io.*;
-import java.net.Socket;
+import com.tftp.common.Logging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Interactive client: asks for one operation and runs it through a
+ * {@link SessionClientTCP}, which programs use directly.
+ */
 public class TFTPClientTCP {
     private static final String SERVER_IP = "localhost";
-    private static final int SERVER_PORT = 9876;
-    private static final String DOWNLOAD_DIRECTORY = "D:\\Courses\\New-Tasks\\JAVA TFTP Task\\TFTP-Implementation\\TFTP-Implementation\\tftp-tcp-download\\";
+    private static final int SERVER_PORT = SessionClientTCP.DEFAULT_PORT;
+    // Deflate level offered to the server for downloads and used for uploads, 0 for none
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("tftp.tcp.compression", 0);
+    // Connections for a segmented download, unless the user picks a number
+    private static final int DEFAULT_CONNECTIONS = Integer.getInteger("tftp.tcp.connections", 4);
+    private static final String DOWNLOAD_DIRECTORY = System.getProperty("tftp.download.dir", "tftp-tcp-download");
 
     public static void main(String[] args) {
+        Logging.configure();
         Scanner scanner = new Scanner(System.in);
         System.out.println("TFTP Client (TCP)");
         System.out.println("1. Download File (RRQ)");
         System.out.println("2. Upload File (WRQ)");
+        System.out.println("3. Download Files (batch over one connection)");
+        System.out.println("4. Download File (segmented over several connections)");
         System.out.print("Choice: ");
 
         int choice = scanner.nextInt();
         scanner.nextLine(); // Consume newline
 
-        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
+        try (SessionClientTCP client = new SessionClientTCP(new InetSocketAddress(SERVER_IP, SERVER_PORT),
+                COMPRESSION_LEVEL)) {
             if (choice == 1) {
                 System.out.print("Filename to download: ");
                 String filename = scanner.nextLine();
-                downloadFile(filename, out, in);
+                downloadFiles(client, List.of(filename));
             } else if (choice == 2) {
                 System.out.print("Full path of the file to upload: ");
                 String filePath = scanner.nextLine();
-                uploadFile(filePath, out);
+                uploadFile(client, filePath, scanner);
+            } else if (choice == 3) {
+                System.out.print("Filenames to download (separated by spaces, or @file listing one per line): ");
+                downloadFiles(client, parseBatch(scanner.nextLine()));
+            } else if (choice == 4) {
+                System.out.print("Filename to download: ");
+                String filename = scanner.nextLine();
+                System.out.print("Connections [" + DEFAULT_CONNECTIONS + "]: ");
+                String connections = scanner.nextLine().trim();
+                downloadSegmented(client, filename,
+                        connections.isEmpty() ? DEFAULT_CONNECTIONS : Integer.parseInt(connections));
             } else {
                 System.out.println("Invalid choice");
             }
@@ -40,59 +68,99 @@ public class TFTPClientTCP {
         }
     }
 
-    private static void downloadFile(String filename, DataOutputStream out, DataInputStream in)
-            throws IOException {
-        out.writeInt(1); // RRQ
-        out.writeUTF(filename);
-
-        // Check for error
-        if (in.readInt() == -1) {
-            System.err.println("Error: " + in.readUTF());
-            return;
-        }
-
-        // Create the output file in the download directory
-        String outputPath = DOWNLOAD_DIRECTORY + filename;
-        File outputFile = new File(outputPath);
-
-        // Ensure parent directories exist
-        File parentDir = outputFile.getParentFile();
-        if (parentDir != null && !parentDir.exists()) {
-            parentDir.mkdirs();
+    private static List<String> parseBatch(String line) throws IOException {
+        line = line.trim();
+        if (line.startsWith("@")) {
+            List<String> names = new ArrayList<>();
+            for (String name : Files.readAllLines(Path.of(line.substring(1)))) {
+                if (!name.isBlank()) names.add(name.trim());
+            }
+            return names;
         }
+        return Arrays.asList(line.split("\\s+"));
+    }
 
-        //Save the File
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+    // Pipelines the whole batch over one session, as the menu promises
+    private static void downloadFiles(SessionClientTCP client, List<String> filenames) {
+        long start = System.nanoTime();
+        List<CompletableFuture<SessionClientTCP.Result>> downloads =
+                client.getAll(filenames, Path.of(DOWNLOAD_DIRECTORY), 1);
+        long files = 0;
+        long bytes = 0;
+        for (CompletableFuture<SessionClientTCP.Result> download : downloads) {
+            SessionClientTCP.Result result = await(download);
+            if (result == null) continue;
+            files++;
+            bytes += result.transferred();
+            if (result.offset() > 0) {
+                System.out.println("Resumed " + result.filename() + " from byte " + result.offset() + " of "
+                        + result.size());
             }
-            System.out.println("File downloaded successfully to: " + outputFile.getAbsolutePath());
+            if (filenames.size() == 1) {
+                System.out.println("File downloaded successfully to: " + result.path().toAbsolutePath());
+            }
+        }
+        if (filenames.size() > 1) {
+            System.out.printf("Downloaded %d of %d files (%d bytes) in %.2f s%n", files, filenames.size(), bytes,
+                    (System.nanoTime() - start) / 1e9);
         }
     }
 
-    private static void uploadFile(String filePath, DataOutputStream out) throws IOException {
-        File file = new File(filePath);
+    private static void downloadSegmented(SessionClientTCP client, String filename, int connections) {
+        Path target = SessionClientTCP.targetIn(Path.of(DOWNLOAD_DIRECTORY), filename);
+        SessionClientTCP.Result result = await(client.getSegmented(filename, target, connections));
+        if (result == null) return;
+        double seconds = result.nanos() / 1e9;
+        System.out.printf("File downloaded successfully to: %s (%d bytes over %d connections in %.2f s, %.1f MB/s, %d retries)%n",
+                result.path().toAbsolutePath(), result.size(), result.connections(), seconds,
+                result.size() / 1e6 / seconds, result.retries());
+    }
 
-        if (!file.exists()) {
+    /**
+     * Uploads a file, first asking the server how much of it is already stored. If an
+     * earlier upload was cut short, the user can send just the rest.
+     */
+    private static void uploadFile(SessionClientTCP client, String filePath, Scanner scanner) {
+        Path file = Path.of(filePath);
+        if (!Files.exists(file)) {
             System.err.println("File not found: " + filePath);
             return;
         }
 
-        // Extract the filename from the full path
-        String filename = file.getName();
+        // Send only the filename, not the full path
+        String filename = file.getFileName().toString();
+        Long stored = await(client.storedSize(filename));
+        if (stored == null) return;
+        boolean resume = false;
+        try {
+            long size = Files.size(file);
+            if (stored > 0 && stored < size) {
+                System.out.print("Server already has " + stored + " of " + size + " bytes of " + filename
+                        + ". Resume (Y/n)? ");
+                resume = !scanner.nextLine().trim().equalsIgnoreCase("n");
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
 
-        out.writeInt(2); // WRQ
-        out.writeUTF(filename); // Send only the filename, not the full path
+        SessionClientTCP.Result result = await(client.put(file, filename, resume));
+        if (result == null) return;
+        if (result.wireBytes() != result.transferred()) {
+            System.out.println("Sent " + result.transferred() + " bytes deflated to " + result.wireBytes());
+        }
+        System.out.println("File uploaded successfully: " + file.toAbsolutePath());
+    }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-            System.out.println("File uploaded successfully: " + file.getAbsolutePath());
+    // Waits for the call; prints why it failed and returns null if it did
+    private static <T> T await(CompletableFuture<T> call) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            System.err.println("Error: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
     }
-}
\ No newline at end of file
+}
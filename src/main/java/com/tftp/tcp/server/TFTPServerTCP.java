@@ -1,24 +1,53 @@
 package com.tftp.tcp.server;
 
+import com.tftp.common.Logging;
+import com.tftp.common.MetricsEndpoint;
+import com.tftp.common.ServedRoot;
 import com.tftp.tcp.utils.ClientHandlerTCP;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.logging.Logger;
 
 public class TFTPServerTCP {
+    private static final Logger LOG = Logger.getLogger(TFTPServerTCP.class.getName());
     private static final int PORT = 9876;
+    private static final int METRICS_PORT = 9170;
 
+    /**
+     * Usage: {@code TFTPServerTCP [platform|virtual]}. Each connection is handled on its own
+     * thread; with {@code virtual} those are virtual threads, so blocking handlers scale to
+     * far more concurrent connections than platform threads allow. Metrics are served on
+     * {@code 127.0.0.1:9170/metrics} unless {@code -Dtftp.metrics.port} says otherwise.
+     * {@code -Dtftp.root} serves one directory only, see {@link ServedRoot}.
+     */
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("TFTP Server (TCP) running on port " + PORT);
+        Logging.configure();
+        MetricsEndpoint.start(METRICS_PORT);
+        ServedRoot.shared(); // Indexed before the first request rather than during it
+        String threads = args.length > 0 ? args[0] : "platform";
+        Thread.Builder threadBuilder = threads.equals("virtual")
+                ? Thread.ofVirtual().name("tftp-tcp-", 0)
+                : Thread.ofPlatform().name("tftp-tcp-", 0);
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandlerTCP(clientSocket)).start();
-            }
+        // Accepting through a channel gives every client socket a SocketChannel, which the
+        // handler needs for zero-copy transfers
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
+            LOG.info("TFTP Server (TCP, " + threads + " threads) running on port " + PORT);
+            serve(serverChannel, threadBuilder);
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            LOG.severe("Server error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /** Accepts connections on a bound {@code serverChannel} forever, one handler thread each. */
+    public static void serve(ServerSocketChannel serverChannel, Thread.Builder threadBuilder) throws IOException {
+        while (true) {
+            Socket clientSocket = serverChannel.accept().socket();
+            threadBuilder.start(new ClientHandlerTCP(clientSocket));
+        }
+    }
+}
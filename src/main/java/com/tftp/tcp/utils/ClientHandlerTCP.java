@@ -1,11 +1,46 @@
 package com.tftp.tcp.utils;
 
+import com.tftp.common.AdmissionControl;
+import com.tftp.common.FileCache;
+import com.tftp.common.ServedRoot;
+import com.tftp.common.TFTPCodec;
+import com.tftp.common.TransferMetrics;
+import com.tftp.common.WriteBehind;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
+/**
+ * Serves one TCP connection: a single request, or a session of pipelined requests
+ * framed as described in {@link TFTPFrameTCP}, answered in order on the same stream.
+ * Every transfer asks {@link AdmissionControl} first; a refused one gets an error
+ * straight away and the session goes on with the next request.
+ */
 public class ClientHandlerTCP implements Runnable {
-    private static final String UPLOAD_DIRECTORY = "D:/Courses/New-Tasks/JAVA TFTP Task/TFTP-Implementation/TFTP-Implementation/tftp-tcp-upload/";
+    private static final Logger LOG = Logger.getLogger(ClientHandlerTCP.class.getName());
+    private static final TransferMetrics METRICS = TransferMetrics.forServer("tcp");
+    private static final String UPLOAD_DIRECTORY = ServedRoot.uploadDirectory("tftp-tcp-upload");
     private final Socket clientSocket;
+    // Deflate level the client offered for its session, 0 for none
+    private int compressionLevel;
+    // The request being served
+    private String request = "connection";
+    private long requestedAt = System.nanoTime();
+    // Progress, read racily when listing active transfers
+    private long bytesMoved;
+    private boolean finished;
+    private AdmissionControl.Permit permit = AdmissionControl.UNLIMITED;
 
     public ClientHandlerTCP(Socket clientSocket) {
         this.clientSocket = clientSocket;
@@ -13,77 +48,342 @@ public class ClientHandlerTCP implements Runnable {
 
     @Override
     public void run() {
-        try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            // Read request type (1 = RRQ, 2 = WRQ)
-            int requestType = in.readInt();
-            String filePathOrName = in.readUTF(); // Full path for download, filename for upload
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), 512))) {
+            ReadableByteChannel source = clientSocket.getChannel() != null
+                    ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getInputStream());
+            FrameInputTCP in = new FrameInputTCP(source);
 
-            if (requestType == 1) {
-                handleDownload(filePathOrName, out); // Handle download request
-            } else if (requestType == 2) {
-                handleUpload(filePathOrName, in, out); // Handle upload request
+            // Either a session of framed requests or a single request (1 = RRQ, 2 = WRQ)
+            int first = in.readInt();
+            if (first == TFTPFrameTCP.SESSION) {
+                compressionLevel = Math.max(0, Math.min(Deflater.BEST_COMPRESSION, in.readInt()));
+                while (!in.atEnd()) {
+                    serve(in.readInt(), in, out, true);
+                }
             } else {
-                sendError(out, "Invalid request type");
+                serve(first, in, out, false);
             }
 
         } catch (IOException e) {
-            System.err.println("Client handler error: " + e.getMessage());
+            METRICS.error("io_error");
+            LOG.warning("Client handler error: " + e.getMessage());
         } finally {
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
+                LOG.warning("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(int requestType, FrameInputTCP in, DataOutputStream out, boolean framed) throws IOException {
+        String filePathOrName = in.readUTF(); // Full path for download, filename for upload
+        requestedAt = System.nanoTime();
+        bytesMoved = 0;
+        finished = false;
+        try {
+            if (requestType == TFTPCodec.OP_RRQ) {
+                // Session requests name a byte range; a one-shot request always gets the whole file
+                long offset = framed ? in.readLong() : 0;
+                long length = framed ? in.readLong() : -1;
+                handleDownload(filePathOrName, out, framed, offset, length); // Handle download request
+            } else if (requestType == TFTPCodec.OP_WRQ) {
+                if (framed) {
+                    long offset = in.readLong();
+                    handleRangedUpload(filePathOrName, in, out, offset, in.readLong());
+                } else {
+                    handleUpload(filePathOrName, in, out); // Handle upload request
+                }
+            } else {
+                METRICS.error("illegal_operation");
+                sendError(out, "Invalid request type");
+                // Nothing that follows in the session can be parsed reliably
+                if (framed) throw new IOException("Invalid request type " + requestType);
             }
+        } finally {
+            METRICS.transferFinished(this, finished, 0);
+            permit.close();
+            permit = AdmissionControl.UNLIMITED;
+        }
+    }
+
+    /** Request, peer and progress, as listed for active transfers. */
+    @Override
+    public String toString() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - requestedAt);
+        long bytes = bytesMoved;
+        return String.format("%s %s: %d bytes in %.1f s (%.2f MB/s)", request, clientSocket.getRemoteSocketAddress(),
+                bytes, elapsedNanos / 1e9, bytes * 1e3 / elapsedNanos);
+    }
+
+    private void started(String kind, String filename) {
+        request = kind + " " + filename;
+        METRICS.transferStarted(this);
+    }
+
+    // Takes a slot for the request, or tells the client why not and returns false
+    private boolean admit(DataOutputStream out) throws IOException {
+        AdmissionControl.Permit admitted = AdmissionControl.shared().admit(clientSocket.getInetAddress());
+        if (!admitted.granted()) {
+            METRICS.error("busy");
+            sendError(out, admitted.refusal());
+            return false;
+        }
+        permit = admitted;
+        return true;
+    }
+
+    // As countData, keeping the transfer to its rate limit where no paced channel does
+    private void countShaped(long bytes, boolean sent) {
+        countData(bytes, sent);
+        permit.pace(bytes);
+    }
+
+    private void countData(long bytes, boolean sent) {
+        if (bytesMoved == 0) {
+            METRICS.timeToFirstByte(System.nanoTime() - requestedAt);
+        }
+        bytesMoved += bytes;
+        if (sent) {
+            METRICS.dataSent(bytes);
+        } else {
+            METRICS.dataReceived(bytes);
         }
     }
 
-    private void handleDownload(String filePath, DataOutputStream out) throws IOException {
-        File file = new File(filePath);
+    private void handleDownload(String filePath, DataOutputStream out, boolean framed, long offset, long length)
+            throws IOException {
+        if (!admit(out)) return;
+        ServedRoot.FileInfo file;
+        try {
+            file = ServedRoot.shared().lookup(filePath);
+        } catch (AccessDeniedException e) {
+            accessViolation(out, filePath);
+            return;
+        }
+
+        // Hot files are sent straight from the shared mapping, others from the file
+        ByteBuffer content = null;
+        FileChannel opened = null;
+        boolean missing = file == null;
+        try {
+            if (!missing) {
+                content = FileCache.shared().get(file.path(), file.size(), file.lastModified());
+                opened = content == null ? FileChannel.open(file.path(), StandardOpenOption.READ) : null;
+            }
+        } catch (NoSuchFileException e) {
+            missing = true; // Deleted since the served root's index last heard of it
+        }
 
-        if (!file.exists() || !file.isFile()) {
+        if (missing) {
+            METRICS.error("file_not_found");
             sendError(out, "File not found: " + filePath);
             return;
         }
 
-        out.writeInt(0); // Success indicator
+        try (FileChannel fileChannel = opened) {
+            long size = content != null ? content.capacity() : fileChannel.size();
+            if (offset < 0 || offset > size) {
+                METRICS.error("illegal_operation");
+                sendError(out, "Offset " + offset + " is outside " + filePath + " (" + size + " bytes)");
+                return;
+            }
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+            ByteBuffer range = content != null ? content.slice((int) offset, (int) count) : null;
+            started("RRQ", count == size ? filePath : filePath + " [" + offset + ", " + (offset + count) + ")");
+
+            if (!framed) {
+                sendOk(out);
+            } else {
+                boolean deflate = compressionLevel > 0 && DeflateTCP.worthCompressing(filePath,
+                        range != null ? range : DeflateTCP.sample(fileChannel, offset, count));
+                out.writeInt(TFTPFrameTCP.STATUS_OK);
+                out.writeLong(size);
+                // Only a digest of the file as indexed, and not one that has changed since
+                String digest = size == file.size() ? file.digest() : null;
+                out.writeUTF(digest != null ? ServedRoot.shared().digestAlgorithm() : "");
+                out.writeUTF(digest != null ? digest : "");
+                out.writeLong(count);
+                out.writeByte(deflate ? DeflateTCP.DEFLATE : DeflateTCP.RAW);
+                if (deflate) {
+                    long wire = range != null
+                            ? DeflateTCP.send(range, compressionLevel, out, bytes -> countShaped(bytes, true))
+                            : DeflateTCP.send(fileChannel, offset, count, compressionLevel, out, bytes -> countShaped(bytes, true));
+                    out.flush();
+                    finished = true;
+                    LOG.info(() -> "File sent to client: " + file.path() + " (" + this + ", deflated to "
+                            + wire + " bytes)");
+                    return;
+                }
+                out.flush();
+            }
 
-        // Send the file to the client
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+            // Against a socket channel the kernel moves the bytes (sendfile), see SendFileTCP,
+            // unless the transfer is shaped
+            WritableByteChannel target = permit.paced(
+                    clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(out));
+            if (range != null) {
+                while (range.hasRemaining()) {
+                    countData(target.write(range), true);
+                }
+            } else {
+                long sent = SendFileTCP.send(fileChannel, offset, count, target, bytes -> countData(bytes, true));
+                // The session reply promised count bytes, so the stream cannot go on without them
+                if (framed && sent < count) {
+                    throw new IOException("File shrank while sending " + filePath);
+                }
             }
         }
-        System.out.println("File sent to client: " + file.getAbsolutePath());
+        finished = true;
+        LOG.info(() -> "File sent to client: " + file.path() + " (" + this + ")");
+    }
+
+    /** One-shot upload: replaces the file with everything until the client closes its side. */
+    private void handleUpload(String filename, FrameInputTCP in, DataOutputStream out) throws IOException {
+        File file;
+        try {
+            file = uploadFile(filename);
+        } catch (AccessDeniedException e) {
+            accessViolation(out, filename);
+            return;
+        }
+        if (!admit(out)) return;
+        sendOk(out); // The client waits for the go-ahead
+        started("WRQ", filename);
+        if (receive(file, in, out, DeflateTCP.RAW, 0, Long.MAX_VALUE) < 0) return;
+        finished = true;
+        ServedRoot.shared().refresh(file.toPath());
+        LOG.info(() -> "File received from client: " + file.getAbsolutePath() + " (" + this + ")");
+    }
+
+    /**
+     * Session upload of {@code length} bytes at {@code offset}. Offset 0 replaces the file,
+     * a later one continues an interrupted upload, and a negative one only asks how many
+     * bytes are stored. The reply carries the stored size.
+     */
+    private void handleRangedUpload(String filename, FrameInputTCP in, DataOutputStream out, long offset, long length)
+            throws IOException {
+        byte encoding = in.readByte();
+        File file;
+        try {
+            file = uploadFile(filename);
+        } catch (AccessDeniedException e) {
+            discardBody(in, encoding, length);
+            accessViolation(out, filename);
+            return;
+        }
+        long stored = file.isFile() ? file.length() : 0;
+        if (offset < 0) {
+            sendOk(out, stored);
+            return;
+        }
+        if (offset > stored) {
+            discardBody(in, encoding, length);
+            METRICS.error("illegal_operation");
+            sendError(out, "Offset " + offset + " is past the " + stored + " bytes stored for " + filename);
+            return;
+        }
+        if (!admit(out)) {
+            discardBody(in, encoding, length);
+            return;
+        }
+
+        started("WRQ", offset == 0 ? filename : filename + " from " + offset);
+        long size = receive(file, in, out, encoding, offset, length);
+        if (size < 0) return;
+        if (bytesMoved < length) {
+            throw new EOFException("Connection closed during upload of " + filename);
+        }
+        sendOk(out, size);
+        finished = true;
+        ServedRoot.shared().refresh(file.toPath());
+        LOG.info(() -> "File received from client: " + file.getAbsolutePath() + " (" + this + ")");
+    }
+
+    // The body is already on its way and has to be consumed before the next request
+    private static void discardBody(FrameInputTCP in, byte encoding, long length) throws IOException {
+        if (encoding == DeflateTCP.DEFLATE) {
+            DeflateTCP.discard(in);
+        } else {
+            in.discard(length);
+        }
     }
 
-    private void handleUpload(String filename, DataInputStream in, DataOutputStream out) throws IOException {
-        File file = new File(UPLOAD_DIRECTORY + filename);
+    // Names that would lead out of the upload directory are refused
+    private File uploadFile(String filename) throws AccessDeniedException {
+        File file = ServedRoot.resolveWithin(Path.of(UPLOAD_DIRECTORY), filename).toFile();
 
         // Ensure parent directories exist
         File parentDir = file.getParentFile();
         if (parentDir != null && !parentDir.exists()) {
             parentDir.mkdirs();
         }
+        return file;
+    }
 
-        out.writeInt(0); // Success
-
-        // Save the file received from the client
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+    /**
+     * Writes up to limit bytes of the stream at offset, inflating them first if the body is
+     * compressed and truncating the file first if starting over. The disk writes trail the
+     * socket reads, and everything is on disk before this returns the file size, so the
+     * reply can confirm it. If the file cannot be written, the rest of the body is read and
+     * dropped and the client gets an error instead; this then returns -1.
+     */
+    private long receive(File file, FrameInputTCP in, DataOutputStream out, byte encoding, long offset, long limit)
+            throws IOException {
+        try (FileChannel fileChannel = openForUpload(file, offset);
+             WriteBehind writer = new WriteBehind(fileChannel, file.getName())) {
+            long position = 0;
+            ByteBuffer chunk;
+            try {
+                if (encoding == DeflateTCP.DEFLATE) {
+                    // Reads the whole body even if a write fails
+                    DeflateTCP.receive(in, writer, offset, limit, bytes -> countShaped(bytes, false));
+                    position = limit;
+                }
+                while (position < limit && (chunk = in.readChunk(limit - position)) != null) {
+                    int received = chunk.remaining();
+                    position += received; // Consumed from the stream, whether or not it can be written
+                    writer.write(chunk, offset + position - received);
+                    countShaped(received, false);
+                }
+                writer.finish();
+            } catch (IOException e) {
+                if (!writer.failed()) throw e; // The connection, not the disk
+                if (encoding != DeflateTCP.DEFLATE) {
+                    in.discard(limit - position);
+                }
+                METRICS.error("io_error");
+                sendError(out, "Error writing " + file.getName() + ": " + e.getMessage());
+                return -1;
             }
+            return fileChannel.size();
+        }
+    }
+
+    private static FileChannel openForUpload(File file, long offset) throws IOException {
+        return offset == 0
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+    }
+
+    // Status and the reply's fields; flushed before any body goes out on the channel
+    private void sendOk(DataOutputStream out, long... fields) throws IOException {
+        out.writeInt(TFTPFrameTCP.STATUS_OK);
+        for (long field : fields) {
+            out.writeLong(field);
         }
-        System.out.println("File received from client: " + file.getAbsolutePath());
+        out.flush();
+    }
+
+    private void accessViolation(DataOutputStream out, String name) throws IOException {
+        METRICS.error("access_violation");
+        sendError(out, "Access violation: " + name);
     }
 
     private void sendError(DataOutputStream out, String message) throws IOException {
-        out.writeInt(-1); // Error indicator
+        out.writeInt(TFTPFrameTCP.STATUS_ERROR);
         out.writeUTF(message);
+        out.flush();
     }
 }
\ No newline at end of file
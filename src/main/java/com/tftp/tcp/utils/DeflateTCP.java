@@ -0,0 +1,222 @@
+package com.tftp.tcp.utils;
+
+import com.tftp.common.WriteBehind;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed file bodies for TCP sessions. A body is a run of chunks, each an int
+ * length and that many bytes of one deflate stream, ended by a zero length. The file
+ * is read, compressed and written a chunk at a time, so neither side ever holds more
+ * than a chunk of it, and the receiver inflates each chunk straight into the file, or
+ * into the write-behind stage of an upload.
+ */
+public class DeflateTCP {
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+
+    private static final int CHUNK = 64 * 1024;
+    // Ranges shorter than this are sent as they are, since the chunk framing would eat the gain
+    private static final int MIN_LENGTH = 512;
+    // A sample compressed at the fastest level must shrink below this share of its size
+    private static final double WORTHWHILE_RATIO = 0.9;
+    // Formats that are compressed already, so trying again only costs CPU
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "bz2", "xz", "txz", "zst", "lz4", "lzma", "zip", "jar", "war", "7z", "rar", "cab", "rpm",
+            "deb", "apk", "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "mkv", "webm", "ogg", "flac");
+
+    private DeflateTCP() {
+    }
+
+    /**
+     * Whether a file is worth compressing, judged by its name and then by how well the
+     * start of the range ({@code sample}, whose position is left alone) compresses.
+     */
+    public static boolean worthCompressing(String filename, ByteBuffer sample) {
+        if (sample.remaining() < MIN_LENGTH) return false;
+        int dot = filename.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+
+        int length = Math.min(sample.remaining(), CHUNK);
+        long budget = (long) (length * WORTHWHILE_RATIO);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample.slice(sample.position(), length));
+            deflater.finish();
+            byte[] output = new byte[CHUNK];
+            long compressed = 0;
+            while (!deflater.finished() && compressed <= budget) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed <= budget;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** The start of a range of the file, up to one chunk, for {@link #worthCompressing}. */
+    public static ByteBuffer sample(FileChannel file, long position, long count) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(count, CHUNK));
+        while (sample.hasRemaining() && file.read(sample, position + sample.position()) > 0) {
+            // Keep reading until the sample is full or the file ends
+        }
+        return sample.flip();
+    }
+
+    /**
+     * Compresses the remaining bytes of {@code content} as a chunked body. Reports each
+     * chunk's uncompressed size to {@code progress}; returns the bytes written.
+     */
+    public static long send(ByteBuffer content, int level, DataOutputStream out, LongConsumer progress)
+            throws IOException {
+        Deflater deflater = new Deflater(level);
+        byte[] output = new byte[CHUNK];
+        try {
+            long wire = 0;
+            for (int position = content.position(); position < content.limit(); position += CHUNK) {
+                int length = Math.min(CHUNK, content.limit() - position);
+                deflater.setInput(content.slice(position, length));
+                wire += deflate(deflater, output, out);
+                progress.accept(length);
+            }
+            return wire + finish(deflater, output, out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** As {@link #send(ByteBuffer, int, DataOutputStream, LongConsumer)}, for {@code count} bytes of a file. */
+    public static long send(FileChannel file, long position, long count, int level, DataOutputStream out,
+                            LongConsumer progress) throws IOException {
+        Deflater deflater = new Deflater(level);
+        ByteBuffer input = ByteBuffer.allocate(CHUNK);
+        byte[] output = new byte[CHUNK];
+        try {
+            long wire = 0;
+            for (long end = position + count; position < end; ) {
+                input.clear().limit((int) Math.min(CHUNK, end - position));
+                int read = file.read(input, position);
+                // The reply promised count bytes, so the stream cannot go on without them
+                if (read <= 0) throw new IOException("File shrank while compressing it");
+                position += read;
+                deflater.setInput(input.flip());
+                wire += deflate(deflater, output, out);
+                progress.accept(read);
+            }
+            return wire + finish(deflater, output, out);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Where inflated bytes go: all the remaining bytes of data, at position
+    private interface Sink {
+        void write(ByteBuffer data, long position) throws IOException;
+    }
+
+    /**
+     * Inflates a chunked body into the file at {@code position}, checking that it comes
+     * to exactly {@code count} bytes. Reports each write to {@code progress}; returns the
+     * bytes read. If the file cannot be written, the rest of the body is read and dropped
+     * before the error is thrown, so the stream is ready for the next request.
+     */
+    public static long receive(FrameInputTCP in, FileChannel file, long position, long count, LongConsumer progress)
+            throws IOException {
+        return receive(in, (data, at) -> {
+            while (data.hasRemaining()) {
+                file.write(data, at + data.position());
+            }
+        }, position, count, progress);
+    }
+
+    /** As above, through an upload's write-behind stage, whose {@link WriteBehind#finish} is still up to the caller. */
+    public static long receive(FrameInputTCP in, WriteBehind writer, long position, long count, LongConsumer progress)
+            throws IOException {
+        return receive(in, writer::write, position, count, progress);
+    }
+
+    private static long receive(FrameInputTCP in, Sink sink, long position, long count, LongConsumer progress)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] input = new byte[CHUNK];
+        ByteBuffer output = ByteBuffer.allocate(CHUNK);
+        long written = 0;
+        long wire = Integer.BYTES;
+        try {
+            int length;
+            while ((length = in.readInt()) > 0) {
+                if (length > CHUNK) throw new IOException("Compressed chunk of " + length + " bytes");
+                in.readFully(input, 0, length);
+                wire += Integer.BYTES + length;
+                inflater.setInput(input, 0, length);
+                int inflated;
+                while ((inflated = inflater.inflate(output.clear())) > 0) {
+                    if (written + inflated > count) throw new IOException("Compressed body is longer than " + count + " bytes");
+                    output.flip();
+                    try {
+                        sink.write(output, position + written);
+                    } catch (IOException e) {
+                        discard(in);
+                        throw e;
+                    }
+                    written += inflated;
+                    progress.accept(inflated);
+                }
+            }
+            if (!inflater.finished() || written != count) {
+                throw new IOException("Compressed body ended after " + written + " of " + count + " bytes");
+            }
+            return wire;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Reads past a chunked body without inflating it. */
+    public static void discard(FrameInputTCP in) throws IOException {
+        int length;
+        while ((length = in.readInt()) > 0) {
+            in.discard(length);
+        }
+    }
+
+    // Writes out everything the deflater can produce from its current input
+    private static long deflate(Deflater deflater, byte[] output, DataOutputStream out) throws IOException {
+        long wire = 0;
+        while (!deflater.needsInput()) {
+            wire += writeChunk(output, deflater.deflate(output), out);
+        }
+        return wire;
+    }
+
+    // Ends the stream and the body
+    private static long finish(Deflater deflater, byte[] output, DataOutputStream out) throws IOException {
+        deflater.finish();
+        long wire = 0;
+        while (!deflater.finished()) {
+            wire += writeChunk(output, deflater.deflate(output), out);
+        }
+        out.writeInt(0);
+        return wire + Integer.BYTES;
+    }
+
+    private static int writeChunk(byte[] output, int length, DataOutputStream out) throws IOException {
+        if (length == 0) return 0;
+        out.writeInt(length);
+        out.write(output, 0, length);
+        return Integer.BYTES + length;
+    }
+}
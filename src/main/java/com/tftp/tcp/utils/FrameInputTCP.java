@@ -0,0 +1,120 @@
+package com.tftp.tcp.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered reader of the TCP protocol over a blocking channel. Pipelined headers
+ * are parsed out of one direct buffer filled by large reads, rather than a read
+ * call per field, and file bodies are written from that same buffer straight to
+ * the file without passing through the heap.
+ */
+public class FrameInputTCP {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+
+    public FrameInputTCP(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** True once the peer has closed its side and everything it sent has been consumed. */
+    public boolean atEnd() throws IOException {
+        return !fill(1);
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    public int readInt() throws IOException {
+        require(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    /** Reads a string written by {@link java.io.DataOutput#writeUTF}. */
+    public String readUTF() throws IOException {
+        require(2);
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] encoded = new byte[2 + length];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        readFully(encoded, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        for (int copied = 0; copied < length; ) {
+            require(1);
+            int n = Math.min(buffer.remaining(), length - copied);
+            buffer.get(bytes, offset + copied, n);
+            copied += n;
+        }
+    }
+
+    /**
+     * Writes up to {@code maxCount} bytes of the stream to {@code file} at {@code position}.
+     * Returns how many were written, at most one buffer's worth, or -1 at the end of the stream.
+     */
+    public int copyChunk(FileChannel file, long position, long maxCount) throws IOException {
+        ByteBuffer chunk = readChunk(maxCount);
+        if (chunk == null) return -1;
+        while (chunk.hasRemaining()) {
+            file.write(chunk, position + chunk.position());
+        }
+        return chunk.limit();
+    }
+
+    /**
+     * Consumes up to {@code maxCount} bytes, at most one buffer's worth, and returns a view
+     * of them that is only valid until the next read; null at the end of the stream.
+     */
+    public ByteBuffer readChunk(long maxCount) throws IOException {
+        if (!buffer.hasRemaining() && !fill(1)) return null;
+        int count = (int) Math.min(buffer.remaining(), maxCount);
+        ByteBuffer chunk = buffer.slice(buffer.position(), count);
+        buffer.position(buffer.position() + count);
+        return chunk;
+    }
+
+    /** Reads and drops {@code count} bytes, returning fewer only if the stream ends first. */
+    public long discard(long count) throws IOException {
+        long discarded = 0;
+        while (discarded < count && (buffer.hasRemaining() || fill(1))) {
+            int n = (int) Math.min(buffer.remaining(), count - discarded);
+            buffer.position(buffer.position() + n);
+            discarded += n;
+        }
+        return discarded;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes)) throw new EOFException();
+    }
+
+    // Makes at least the given number of bytes available, unless the stream ends first
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return true;
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) return false;
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+}
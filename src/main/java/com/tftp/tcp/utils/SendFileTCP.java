@@ -0,0 +1,46 @@
+package com.tftp.tcp.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.LongConsumer;
+
+/**
+ * Sends a range of a file as it is. Against a socket channel {@code transferTo} lets the
+ * kernel move the bytes (sendfile) without copying them through the heap. On a virtual
+ * thread the socket is non-blocking underneath, though, and {@code transferTo} gives up
+ * with nothing sent whenever the send buffer is full; a plain write waits for room, so
+ * that chunk goes through the heap instead.
+ */
+public class SendFileTCP {
+    private static final int CHUNK = 64 * 1024;
+
+    private SendFileTCP() {
+    }
+
+    /**
+     * Sends {@code count} bytes of the file from {@code position}, reporting each write to
+     * {@code progress}. Returns the bytes sent, which are fewer only if the file shrank.
+     */
+    public static long send(FileChannel file, long position, long count, WritableByteChannel target,
+                            LongConsumer progress) throws IOException {
+        ByteBuffer chunk = null;
+        long sent = 0;
+        while (sent < count) {
+            long n = file.transferTo(position + sent, count - sent, target);
+            if (n == 0) {
+                if (chunk == null) chunk = ByteBuffer.allocate(CHUNK);
+                chunk.clear().limit((int) Math.min(CHUNK, count - sent));
+                if (file.read(chunk, position + sent) <= 0) break; // File shrank underneath us
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    n += target.write(chunk);
+                }
+            }
+            sent += n;
+            progress.accept(n);
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,77 @@
+package com.tftp.tcp.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Framing of persistent TCP sessions. A client opens a session by sending
+ * {@link #SESSION} where a one-shot connection would send its opcode, followed by the
+ * compression level it offers (0 for none), and may then send any number of requests
+ * back to back without waiting for the replies. The server answers them one at a
+ * time, in order:
+ *
+ * <pre>
+ * RRQ  int opcode, UTF filename, long offset, long length                      -> int status [long size, UTF algorithm, UTF digest, long count, byte encoding, body]
+ * WRQ  int opcode, UTF filename, long offset, long length, byte encoding, body -> int status [long stored]
+ * </pre>
+ *
+ * A body is {@code count} (or {@code length}) bytes as they are when its encoding is
+ * {@link DeflateTCP#RAW}, or those bytes compressed as described in {@link DeflateTCP}.
+ * Once compression is offered, the sender of each body decides whether that file is
+ * worth compressing.
+ *
+ * An RRQ asks for {@code length} bytes from {@code offset}, or everything after it when
+ * the length is negative; the reply gives the whole file's size and the {@code count}
+ * bytes that follow, which is less than asked for at the end of the file. It also gives
+ * the whole file's hex digest and the algorithm it was worked out with, such as
+ * {@code SHA-256}, when the server has one; both are empty otherwise. A WRQ at
+ * offset 0 replaces the file, while a later offset, at most the size already stored,
+ * continues an interrupted upload in place. A WRQ with a negative offset and no body
+ * only asks for the stored size. Both replies let a client resume where it stopped.
+ * <p>
+ * An error status is followed by a UTF message instead, and the session ends when
+ * the client closes its side. Connections that start with a bare opcode get the
+ * original one-request protocol, where closing the connection marks the end of the file.
+ */
+public class TFTPFrameTCP {
+    public static final int SESSION = 0x54465330; // "TFS0"
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = -1;
+
+    /** Opens a session, offering deflate at {@code compressionLevel} (1-9) or none (0). */
+    public static void writeSessionStart(DataOutputStream out, int compressionLevel) throws IOException {
+        out.writeInt(SESSION);
+        out.writeInt(compressionLevel);
+    }
+
+    private TFTPFrameTCP() {
+    }
+
+    /** RRQ for {@code length} bytes from {@code offset}; a negative length reads to the end. */
+    public static void writeReadRequest(DataOutputStream out, String filename, long offset, long length)
+            throws IOException {
+        out.writeInt(TFTPPacketTCP.OP_RRQ);
+        out.writeUTF(filename);
+        out.writeLong(offset);
+        out.writeLong(length);
+    }
+
+    /**
+     * Header of a WRQ; the caller sends {@code length} bytes of the file, from {@code offset},
+     * after it in the given encoding.
+     */
+    public static void writeWriteRequest(DataOutputStream out, String filename, long offset, long length,
+                                         byte encoding) throws IOException {
+        out.writeInt(TFTPPacketTCP.OP_WRQ);
+        out.writeUTF(filename);
+        out.writeLong(offset);
+        out.writeLong(length);
+        out.writeByte(encoding);
+    }
+
+    /** WRQ that stores nothing and is answered with the size already stored. */
+    public static void writeSizeQuery(DataOutputStream out, String filename) throws IOException {
+        writeWriteRequest(out, filename, -1, 0, DeflateTCP.RAW);
+    }
+}
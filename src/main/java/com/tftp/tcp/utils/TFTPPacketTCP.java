@@ -1,11 +1,14 @@
 package com.tftp.tcp.utils;
 
+import com.tftp.common.TFTPCodec;
+
 public class TFTPPacketTCP {
-    public static final int OP_RRQ = 1; // Read Request
-    public static final int OP_WRQ = 2; // Write Request
-    public static final int OP_DATA = 3; // Data Packet
-    public static final int OP_ACK = 4; // Acknowledgment
-    public static final int OP_ERROR = 5; // Error Packet
+    // Opcodes are defined once in TFTPCodec and shared with the UDP implementation
+    public static final int OP_RRQ = TFTPCodec.OP_RRQ; // Read Request
+    public static final int OP_WRQ = TFTPCodec.OP_WRQ; // Write Request
+    public static final int OP_DATA = TFTPCodec.OP_DATA; // Data Packet
+    public static final int OP_ACK = TFTPCodec.OP_ACK; // Acknowledgment
+    public static final int OP_ERROR = TFTPCodec.OP_ERROR; // Error Packet
 
     private int opcode;
     private String filename;
@@ -1,22 +1,27 @@
 package com.tftp.udp.client;
 
-import java.io.*;
-import java.net.*;
-import java.nio.ByteBuffer;
+import com.tftp.common.Logging;
+import com.tftp.udp.utils.TFTPOptions;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Interactive client: asks for one transfer at a time and runs it through a
+ * {@link TransferClientUDP}, which programs use directly.
+ */
 public class TFTPClientUDP {
-    private static final int TFTP_PORT = 1069;
-    private static final int BUFFER_SIZE = 516;
-    private static final short OP_RRQ = 1;
-    private static final short OP_WRQ = 2;
-    private static final short OP_DATA = 3;
-    private static final short OP_ACK = 4;
-    private static final short OP_ERROR = 5;
-    private static final int MAX_RETRIES = 5;
-    private static final String DOWNLOAD_DIRECTORY = "D:/Courses/New-Tasks/JAVA TFTP Task/TFTP-Implementation/TFTP-Implementation/tftp-download/";
+    private static final int TFTP_PORT = TransferClientUDP.DEFAULT_PORT;
+    private static final String DOWNLOAD_DIRECTORY = System.getProperty("tftp.download.dir", "tftp-download");
 
     public static void main(String[] args) throws IOException {
+        Logging.configure();
         Scanner scanner = new Scanner(System.in);
         System.out.println("TFTP Client");
 
@@ -39,197 +44,87 @@ public class TFTPClientUDP {
             System.out.print("Filename: ");
             String filename = scanner.nextLine();
 
-            if (choice == 1) {
-                downloadFile(serverAddress, filename);
-            } else if (choice == 2) {
-                uploadFile(serverAddress, filename);
-            } else {
-                System.out.println("Invalid choice!");
+            System.out.print("Block size (blank for 512, 'mtu' for path MTU): ");
+            int blockSize = parseBlockSize(scanner.nextLine(), serverAddress);
+
+            System.out.print("Window size (blank for 1): ");
+            int windowSize = parseWindowSize(scanner.nextLine());
+
+            try (TransferClientUDP client = new TransferClientUDP(new InetSocketAddress(serverAddress, TFTP_PORT))) {
+                if (choice == 1) {
+                    System.out.print("Multicast (y/N): ");
+                    boolean multicast = scanner.nextLine().trim().equalsIgnoreCase("y");
+                    downloadFile(client, filename, new TransferClientUDP.Options(blockSize, windowSize, multicast));
+                } else if (choice == 2) {
+                    uploadFile(client, filename, new TransferClientUDP.Options(blockSize, windowSize, false));
+                } else {
+                    System.out.println("Invalid choice!");
+                }
             }
         }
         scanner.close();
     }
 
-//    private static final String DOWNLOAD_DIRECTORY = "D:/Courses/New-Tasks/JAVA TFTP Task/TFTP-Implementation/TFTP-Implementation/tftp-download/";
-
-    private static void downloadFile(InetAddress serverAddress, String filename) throws IOException {
-        String outputFilename = DOWNLOAD_DIRECTORY + filename;
-        File outputFile = new File(outputFilename);
+    private static int parseBlockSize(String input, InetAddress serverAddress) {
+        input = input.trim();
+        if (input.isEmpty()) return TFTPOptions.DEFAULT_BLOCK_SIZE;
+        if (input.equalsIgnoreCase("mtu")) return TFTPOptions.pathMtuBlockSize(serverAddress);
 
-        // Ensure parent directories exist
-        File parentDir = outputFile.getParentFile();
-        if (parentDir != null && !parentDir.exists()) {
-            parentDir.mkdirs();
-        }
-
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(5000);
-            sendRequest(socket, serverAddress, OP_RRQ, filename);
-
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                int expectedBlock = 1;
-                int retries = 0;
-                final int MAX_RETRIES = 5;
-
-                while (true) {
-                    try {
-                        DatagramPacket dataPacket = receivePacket(socket);
-                        ByteBuffer buffer = ByteBuffer.wrap(dataPacket.getData());
-                        short opcode = buffer.getShort();
-
-                        if (opcode == OP_ERROR) {
-                            handleError(buffer);
-                            return;
-                        }
-
-                        if (opcode != OP_DATA) {
-                            throw new IOException("Unexpected opcode: " + opcode);
-                        }
-
-                        short blockNumber = buffer.getShort();
-                        if (blockNumber != (short) expectedBlock) {
-                            throw new IOException("Unexpected block number: " + blockNumber);
-                        }
-
-                        // Write data to file
-                        int dataLength = dataPacket.getLength() - 4;
-                        fos.write(dataPacket.getData(), 4, dataLength);
-
-                        // Send ACK to the server's port
-                        InetAddress serverAddr = dataPacket.getAddress();
-                        int serverPort = dataPacket.getPort();
-                        sendAck(socket, serverAddr, serverPort, (short) expectedBlock);
-
-                        if (dataLength < 512) break;
-                        expectedBlock++;
-                        retries = 0;
-                    } catch (SocketTimeoutException e) {
-                        if (++retries > MAX_RETRIES) {
-                            throw new IOException("Max retries exceeded");
-                        }
-                        System.out.println("Timeout, retrying... (" + retries + "/" + MAX_RETRIES + ")");
-                    }
-                }
-                System.out.println("File downloaded successfully: " + outputFile.getAbsolutePath());
-            }
+        int blockSize = TFTPOptions.negotiateBlockSize(input, TFTPOptions.MAX_BLOCK_SIZE);
+        if (blockSize < 0) {
+            System.out.println("Invalid block size, using " + TFTPOptions.DEFAULT_BLOCK_SIZE);
+            return TFTPOptions.DEFAULT_BLOCK_SIZE;
         }
+        return blockSize;
     }
 
-    private static void uploadFile(InetAddress serverAddress, String filename) throws IOException {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(5000);
-            File file = new File(filename);
-            if (!file.exists() || !file.isFile()) {
-                System.out.println("Error: File '" + filename + "' not found");
-                return;
-            }
-
-            sendRequest(socket, serverAddress, OP_WRQ, filename);
-            short blockNumber = 0;
-            int retries = 0;
-            int serverPort = -1; // New variable to track the server's port
-
-            // Wait for initial ACK (block 0)
-            while (true) {
-                try {
-                    DatagramPacket ackPacket = receivePacket(socket);
-                    serverPort = ackPacket.getPort(); // Capture the server's port
-                    if (validateAck(ackPacket, blockNumber)) break;
-                } catch (SocketTimeoutException e) {
-                    if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
-                    sendRequest(socket, serverAddress, OP_WRQ, filename);
-                }
-            }
+    private static int parseWindowSize(String input) {
+        input = input.trim();
+        if (input.isEmpty()) return 1;
 
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[512];
-                blockNumber = 1;
-
-                while (true) {
-                    int bytesRead = fis.read(buffer);
-                    if (bytesRead == -1) bytesRead = 0;
-
-                    // Send DATA to the server's port (not TFTP_PORT)
-                    sendDataPacket(socket, serverAddress, serverPort, blockNumber, buffer, bytesRead);
-                    retries = 0;
-
-                    while (true) {
-                        try {
-                            DatagramPacket ackPacket = receivePacket(socket);
-                            if (validateAck(ackPacket, blockNumber)) break;
-                        } catch (SocketTimeoutException e) {
-                            if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
-                            // Resend to the same server port
-                            sendDataPacket(socket, serverAddress, serverPort, blockNumber, buffer, bytesRead);
-                        }
-                    }
-
-                    if (bytesRead < 512) break;
-                    blockNumber++;
-                }
-            }
-            System.out.println("File uploaded successfully!");
+        int windowSize = TFTPOptions.negotiateWindowSize(input, TFTPOptions.MAX_WINDOW_SIZE);
+        if (windowSize < 0) {
+            System.out.println("Invalid window size, using 1");
+            return 1;
         }
+        return windowSize;
     }
 
-    private static void sendRequest(DatagramSocket socket, InetAddress server, short opcode, String filename) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeShort(opcode);
-        dos.write(filename.getBytes());
-        dos.writeByte(0);
-        dos.write("octet".getBytes());
-        dos.writeByte(0);
-        byte[] requestData = baos.toByteArray();
-
-        DatagramPacket requestPacket = new DatagramPacket(requestData, requestData.length, server, TFTP_PORT);
-        socket.send(requestPacket);
+    private static void downloadFile(TransferClientUDP client, String filename, TransferClientUDP.Options options) {
+        TransferClientUDP.Result result = await(client.get(filename,
+                TransferClientUDP.targetIn(Path.of(DOWNLOAD_DIRECTORY), filename), options));
+        if (result == null) return;
+        System.out.println("File downloaded successfully: " + result.path().toAbsolutePath());
+        report(result);
     }
 
-    private static void sendDataPacket(DatagramSocket socket, InetAddress server, int port,
-                                       short blockNumber, byte[] data, int length) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeShort(OP_DATA);
-        dos.writeShort(blockNumber);
-        dos.write(data, 0, length);
-        byte[] packetData = baos.toByteArray();
-
-        DatagramPacket dataPacket = new DatagramPacket(packetData, packetData.length, server, port);
-        socket.send(dataPacket);
-    }
-
-    private static DatagramPacket receivePacket(DatagramSocket socket) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        socket.receive(packet);
-        return packet;
-    }
-
-    private static boolean validateAck(DatagramPacket packet, short expectedBlock) {
-        ByteBuffer buffer = ByteBuffer.wrap(packet.getData());
-        return buffer.getShort() == OP_ACK && buffer.getShort() == expectedBlock;
+    private static void uploadFile(TransferClientUDP client, String filename, TransferClientUDP.Options options) {
+        if (!Files.isRegularFile(Path.of(filename))) {
+            System.out.println("Error: File '" + filename + "' not found");
+            return;
+        }
+        TransferClientUDP.Result result = await(client.put(Path.of(filename), filename, options));
+        if (result == null) return;
+        System.out.println("File uploaded successfully!");
+        report(result);
     }
 
-    private static void sendAck(DatagramSocket socket, InetAddress clientAddress, int port, short blockNumber) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeShort(OP_ACK);
-        dos.writeShort(blockNumber);
-        byte[] ackData = baos.toByteArray();
-
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, clientAddress, port);
-        socket.send(ackPacket);
+    private static void report(TransferClientUDP.Result result) {
+        if (result.timeouts() > 0) {
+            System.out.println("Timeouts: " + result.timeouts());
+        }
+        System.out.println("Round trip: " + result.rtt());
     }
 
-    private static void handleError(ByteBuffer buffer) {
-        buffer.position(4); // Skip opcode and error code
-        StringBuilder errorMsg = new StringBuilder();
-        while (buffer.hasRemaining()) {
-            char c = (char) buffer.get();
-            if (c == 0) break;
-            errorMsg.append(c);
+    // Waits for the transfer; prints why it failed and returns null if it did
+    private static TransferClientUDP.Result await(CompletableFuture<TransferClientUDP.Result> transfer) {
+        try {
+            return transfer.get();
+        } catch (ExecutionException e) {
+            System.out.println("Error received: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        System.out.println("Error received: " + errorMsg);
+        return null;
     }
-}
\ No newline at end of file
+}
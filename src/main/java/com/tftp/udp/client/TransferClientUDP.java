@@ -0,0 +1,754 @@
+package com.tftp.udp.client;
+
+import com.tftp.common.BoundedExecutor;
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.DatagramTransport;
+import com.tftp.udp.utils.RttEstimator;
+import com.tftp.udp.utils.SocketTransport;
+import com.tftp.udp.utils.TFTPOptions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * TFTP client for use from other programs. Downloads and uploads run in the
+ * background and complete a {@link CompletableFuture}, so one client can keep many
+ * transfers to its server going at once: no more than {@code maxConcurrent} run at a
+ * time and the rest wait in a queue without holding a thread. Sockets are kept between
+ * transfers, each one taking a new transfer ID from the server as RFC 1350 asks.
+ * <p>
+ * A transfer that fails completes its future with the {@link IOException}, carrying
+ * the server's message if it sent an ERROR, and leaves nothing at the download target.
+ * <p>
+ * Unicast transfers run on a {@link DatagramNetwork}, so they can be put through a
+ * simulated lossy path; multicast always uses real sockets.
+ */
+public class TransferClientUDP implements Closeable {
+    public static final int DEFAULT_PORT = 1069;
+    public static final int DEFAULT_MAX_CONCURRENT = 64;
+
+    private static final Logger LOG = Logger.getLogger(TransferClientUDP.class.getName());
+    private static final int BUFFER_SIZE = 516;
+    private static final int MAX_RETRIES = 5;
+
+    /** Options to ask the server for; it may lower the block and window sizes. */
+    public record Options(int blockSize, int windowSize, boolean multicast) {
+        public static final Options DEFAULT = new Options(TFTPOptions.DEFAULT_BLOCK_SIZE, 1, false);
+    }
+
+    /** A finished transfer: the local file, its size, and how the network behaved. */
+    public record Result(String filename, Path path, long bytes, long nanos, int timeouts, RttEstimator rtt) {
+    }
+
+    // A socket kept between transfers. Packets from its last transfer's server port may still
+    // arrive, so they must not be taken for the first reply of the next transfer.
+    private static final class Endpoint {
+        final DatagramTransport transport;
+        SocketAddress lastPeer;
+
+        Endpoint(DatagramTransport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final DatagramNetwork network;
+    private final BoundedExecutor transfers;
+    private final int maxConcurrent;
+    // Null when the caller supplied the executor
+    private final ExecutorService ownExecutor;
+    private final ConcurrentLinkedQueue<Endpoint> idle = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /** A client running up to {@link #DEFAULT_MAX_CONCURRENT} transfers at a time, each on a virtual thread. */
+    public TransferClientUDP(InetSocketAddress server) {
+        this(server, null, DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * A client running up to {@code maxConcurrent} transfers at a time on {@code executor},
+     * which may be shared with others; each transfer blocks its thread until it ends. With
+     * a null executor every transfer gets a virtual thread of its own.
+     */
+    public TransferClientUDP(InetSocketAddress server, Executor executor, int maxConcurrent) {
+        this(server, executor, maxConcurrent, DatagramNetwork.configured());
+    }
+
+    /** As above, with every unicast transfer on a transport from {@code network}. */
+    public TransferClientUDP(InetSocketAddress server, Executor executor, int maxConcurrent, DatagramNetwork network) {
+        this.server = server;
+        this.network = network;
+        this.maxConcurrent = maxConcurrent;
+        this.ownExecutor = executor == null ? Executors.newVirtualThreadPerTaskExecutor() : null;
+        this.transfers = new BoundedExecutor(executor == null ? ownExecutor : executor, maxConcurrent);
+    }
+
+    /** Downloads {@code filename} into {@code target}, creating its directory if need be. */
+    public CompletableFuture<Result> get(String filename, Path target, Options options) {
+        return transfers.submit(() -> options.multicast()
+                ? downloadMulticast(filename, target, options)
+                : download(filename, target, options));
+    }
+
+    public CompletableFuture<Result> get(String filename, Path target) {
+        return get(filename, target, Options.DEFAULT);
+    }
+
+    /**
+     * Downloads each of {@code filenames} to the same name under {@code directory}, with
+     * at most {@code parallelism} of them in flight at once. The futures are in the order
+     * of the names; one file failing does not stop the others.
+     */
+    public List<CompletableFuture<Result>> getAll(List<String> filenames, Path directory, Options options,
+                                                  int parallelism) {
+        List<CompletableFuture<Result>> results = new ArrayList<>(filenames.size());
+        for (int i = 0; i < filenames.size(); i++) {
+            results.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(Math.max(1, parallelism), filenames.size()); i++) {
+            getNext(filenames, directory, options, results, next);
+        }
+        return results;
+    }
+
+    /** Uploads {@code source} to the server as {@code filename}. */
+    public CompletableFuture<Result> put(Path source, String filename, Options options) {
+        return transfers.submit(() -> upload(source, filename, options));
+    }
+
+    public CompletableFuture<Result> put(Path source, String filename) {
+        return put(source, filename, Options.DEFAULT);
+    }
+
+    /** Waits for the transfers already handed over, then closes the sockets kept for reuse. */
+    @Override
+    public void close() {
+        try {
+            transfers.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        if (ownExecutor != null) {
+            ownExecutor.close();
+        }
+        for (Endpoint endpoint; (endpoint = idle.poll()) != null; ) {
+            closeQuietly(endpoint);
+        }
+    }
+
+    /** The path a download of {@code filename} takes under {@code directory}, even if the name is absolute. */
+    public static Path targetIn(Path directory, String filename) {
+        return Path.of(directory.toString(), filename);
+    }
+
+    // Starts the next download of a batch; each one finishing starts another
+    private void getNext(List<String> filenames, Path directory, Options options,
+                         List<CompletableFuture<Result>> results, AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i >= filenames.size()) return;
+        String filename = filenames.get(i);
+        get(filename, targetIn(directory, filename), options).whenComplete((result, failure) -> {
+            if (failure == null) {
+                results.get(i).complete(result);
+            } else {
+                results.get(i).completeExceptionally(failure);
+            }
+            getNext(filenames, directory, options, results, next);
+        });
+    }
+
+    private Endpoint acquire() throws IOException {
+        Endpoint endpoint = idle.poll();
+        return endpoint != null ? endpoint : new Endpoint(network.open());
+    }
+
+    // Keeps the socket for another transfer if it ended cleanly and there is room, else closes it
+    private void release(Endpoint endpoint, boolean clean) {
+        if (!clean || closed || idle.size() >= maxConcurrent) {
+            closeQuietly(endpoint);
+            return;
+        }
+        try {
+            endpoint.lastPeer = endpoint.transport.remoteAddress();
+            endpoint.transport.disconnect();
+            // Drop whatever of the last transfer is still queued
+            endpoint.transport.discardPending();
+            idle.add(endpoint);
+        } catch (IOException e) {
+            closeQuietly(endpoint);
+        }
+    }
+
+    private static void closeQuietly(Endpoint endpoint) {
+        endpoint.transport.close();
+    }
+
+    private Result download(String filename, Path target, Options requested) throws IOException {
+        Endpoint endpoint = acquire();
+        boolean clean = false;
+        try {
+            Result result = download(endpoint, filename, target, requested);
+            clean = true;
+            return result;
+        } finally {
+            release(endpoint, clean);
+        }
+    }
+
+    private Result download(Endpoint endpoint, String filename, Path target, Options requested) throws IOException {
+        long start = System.nanoTime();
+        createParent(target);
+        DatagramTransport transport = endpoint.transport;
+        sendRequest(transport, TFTPCodec.OP_RRQ, filename, requested, 0);
+        RttEstimator rtt = new RttEstimator();
+        // Time of the last request or ACK that has not been answered or repeated yet (Karn's rule)
+        long sentAt = System.nanoTime();
+        int timeouts = 0;
+
+        boolean complete = false;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long received = 0;
+            long written = 0;
+            int sinceAck = 0;
+            int retries = 0;
+            boolean gapReported = false;
+            int blockSize = TFTPOptions.DEFAULT_BLOCK_SIZE;
+            int windowSize = 1;
+
+            // Packets and buffers are reused for the whole transfer
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + Math.max(requested.blockSize(), TFTPOptions.DEFAULT_BLOCK_SIZE));
+            ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE);
+
+            while (true) {
+                try {
+                    ByteBuffer packet = receive(endpoint, receiveBuffer, rtt.rtoMillis());
+                    short opcode = TFTPCodec.opcode(packet);
+
+                    if (opcode == TFTPCodec.OP_ERROR) {
+                        throw new IOException(TFTPCodec.errorMessage(packet));
+                    }
+
+                    // The server accepted our options; ACK 0 starts the transfer
+                    if (opcode == TFTPCodec.OP_OACK && received == 0) {
+                        packet.position(2);
+                        Map<String, String> options = TFTPOptions.parse(packet);
+                        blockSize = acceptedBlockSize(options, requested.blockSize());
+                        windowSize = acceptedWindowSize(options, requested.windowSize());
+                        transport.reserveReceiveBuffer(windowBytes(blockSize, windowSize));
+                        preallocate(out, options);
+                        if (sentAt != 0) rtt.sample(System.nanoTime() - sentAt);
+                        transport.send(TFTPCodec.encodeAck(ackBuffer, 0), null);
+                        sentAt = System.nanoTime();
+                        continue;
+                    }
+
+                    if (opcode != TFTPCodec.OP_DATA) {
+                        throw new IOException("Unexpected opcode: " + opcode);
+                    }
+
+                    int blockNumber = TFTPCodec.blockNumber(packet);
+                    if (blockNumber != ((received + 1) & 0xFFFF)) {
+                        // Gap or duplicate: acknowledge the last good block so the server rewinds
+                        if (!gapReported || windowSize == 1) {
+                            transport.send(TFTPCodec.encodeAck(ackBuffer, (int) received), null);
+                            sentAt = 0;
+                            sinceAck = 0;
+                            gapReported = windowSize > 1;
+                        }
+                        continue;
+                    }
+
+                    // Write data to file
+                    int dataLength = packet.remaining() - TFTPCodec.HEADER_SIZE;
+                    packet.position(TFTPCodec.HEADER_SIZE);
+                    while (packet.hasRemaining()) {
+                        written += out.write(packet, written);
+                    }
+                    received++;
+                    retries = 0;
+                    gapReported = false;
+                    if (sentAt != 0) {
+                        rtt.sample(System.nanoTime() - sentAt);
+                        sentAt = 0;
+                    } else {
+                        rtt.resetBackoff();
+                    }
+
+                    // Only the last block of each window (or of the file) is acknowledged
+                    boolean lastBlock = dataLength < blockSize;
+                    if (lastBlock || ++sinceAck == windowSize) {
+                        transport.send(TFTPCodec.encodeAck(ackBuffer, blockNumber), null);
+                        sentAt = System.nanoTime();
+                        sinceAck = 0;
+                    }
+
+                    if (lastBlock) {
+                        out.truncate(written);
+                        break;
+                    }
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) {
+                        throw new IOException("Max retries exceeded");
+                    }
+                    timeouts++;
+                    rtt.backoff();
+                    sentAt = 0;
+                    LOG.fine(() -> "Timeout on " + filename + ", retrying (rto " + rtt.rtoMillis() + " ms)");
+                    if (transport.remoteAddress() != null) {
+                        transport.send(TFTPCodec.encodeAck(ackBuffer, (int) received), null);
+                        sinceAck = 0;
+                        gapReported = false;
+                    } else {
+                        sendRequest(transport, TFTPCodec.OP_RRQ, filename, requested, 0);
+                    }
+                }
+            }
+            complete = true;
+            return new Result(filename, target, written, System.nanoTime() - start, timeouts, rtt);
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    private Result upload(Path source, String filename, Options requested) throws IOException {
+        long start = System.nanoTime();
+        // Opened first, so a missing file fails before the server hears of it
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            Endpoint endpoint = acquire();
+            boolean clean = false;
+            try {
+                Result result = upload(endpoint, channel, source, filename, requested, start);
+                clean = true;
+                return result;
+            } finally {
+                release(endpoint, clean);
+            }
+        }
+    }
+
+    private Result upload(Endpoint endpoint, FileChannel channel, Path source, String filename, Options requested,
+                          long start) throws IOException {
+        DatagramTransport transport = endpoint.transport;
+        long size = channel.size();
+        sendRequest(transport, TFTPCodec.OP_WRQ, filename, requested, size);
+        RttEstimator rtt = new RttEstimator();
+        long sentAt = System.nanoTime();
+        boolean resent = false;
+        int retries = 0;
+        int timeouts = 0;
+        int blockSize = TFTPOptions.DEFAULT_BLOCK_SIZE;
+        int windowSize = 1;
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // Wait for initial ACK (block 0), or an OACK if the server accepted our options.
+        // The first reply also connects the socket to the server's transfer port.
+        while (true) {
+            try {
+                ByteBuffer reply = receive(endpoint, receiveBuffer, rtt.rtoMillis());
+                short opcode = TFTPCodec.opcode(reply);
+                if (opcode == TFTPCodec.OP_ERROR) {
+                    throw new IOException(TFTPCodec.errorMessage(reply));
+                }
+                if (opcode == TFTPCodec.OP_OACK) {
+                    reply.position(2);
+                    Map<String, String> options = TFTPOptions.parse(reply);
+                    blockSize = acceptedBlockSize(options, requested.blockSize());
+                    windowSize = acceptedWindowSize(options, requested.windowSize());
+                    break;
+                }
+                if (opcode == TFTPCodec.OP_ACK && TFTPCodec.blockNumber(reply) == 0) break;
+            } catch (SocketTimeoutException e) {
+                if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                timeouts++;
+                rtt.backoff();
+                resent = true;
+                sendRequest(transport, TFTPCodec.OP_WRQ, filename, requested, size);
+            }
+        }
+        if (!resent) rtt.sample(System.nanoTime() - sentAt);
+
+        // The last block is always short, so an exact multiple of the block size ends with an empty block
+        long lastBlock = size / blockSize + 1;
+        ByteBuffer packetBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + blockSize);
+        long acked = 0;
+        long highestSent = 0;
+        retries = 0;
+
+        // Send a window, then continue from whatever the server acknowledged
+        while (acked < lastBlock) {
+            // Karn's rule: an ACK for a window that repeats earlier blocks cannot be timed
+            resent = acked < highestSent;
+            sentAt = System.nanoTime();
+            long windowEnd = Math.min(acked + windowSize, lastBlock);
+            highestSent = Math.max(highestSent, windowEnd);
+            for (long block = acked + 1; block <= windowEnd; block++) {
+                int bytesRead = readBlock(channel, block, blockSize, packetBuffer);
+                transport.send(TFTPCodec.encodeData(packetBuffer, (int) block, bytesRead), null);
+            }
+
+            try {
+                long ackedBlock = waitForWindowAck(endpoint, receiveBuffer, rtt.rtoMillis(), acked, windowEnd, windowSize);
+                if (ackedBlock > acked) {
+                    if (resent) {
+                        rtt.resetBackoff();
+                    } else {
+                        rtt.sample(System.nanoTime() - sentAt);
+                    }
+                    acked = ackedBlock;
+                    retries = 0;
+                } else if (++retries > MAX_RETRIES) {
+                    throw new IOException("Max retries exceeded");
+                }
+            } catch (SocketTimeoutException e) {
+                if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                timeouts++;
+                rtt.backoff();
+            }
+        }
+        return new Result(filename, source, size, System.nanoTime() - start, timeouts, rtt);
+    }
+
+    /**
+     * RFC 2090 receiver. DATA arrives on the multicast group and may start anywhere in the
+     * file, so blocks are written where they belong and tracked in a bitmap. Only while
+     * this client is master does it acknowledge, reporting the block before its first gap.
+     * Falls back to a unicast download if the server does not offer multicast.
+     */
+    private Result downloadMulticast(String filename, Path target, Options requested) throws IOException {
+        long start = System.nanoTime();
+        createParent(target);
+        Map<String, String> options;
+        RttEstimator rtt = new RttEstimator();
+
+        // Not kept for reuse: the selector leaves it non-blocking
+        boolean complete = false;
+        try (DatagramChannel control = DatagramChannel.open()) {
+            Endpoint endpoint = new Endpoint(new SocketTransport(control));
+            DatagramTransport transport = endpoint.transport;
+            sendRequest(transport, TFTPCodec.OP_RRQ, filename, requested, 0);
+            long sentAt = System.nanoTime();
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            // The reply is an OACK carrying the group, or the server is sending by unicast
+            ByteBuffer reply = null;
+            for (int retries = 0; reply == null; ) {
+                try {
+                    reply = receive(endpoint, receiveBuffer, rtt.rtoMillis());
+                } catch (SocketTimeoutException e) {
+                    if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                    rtt.backoff();
+                    sentAt = 0;
+                    sendRequest(transport, TFTPCodec.OP_RRQ, filename, requested, 0);
+                }
+            }
+            if (sentAt != 0) rtt.sample(System.nanoTime() - sentAt);
+
+            short opcode = TFTPCodec.opcode(reply);
+            if (opcode == TFTPCodec.OP_ERROR) {
+                throw new IOException(TFTPCodec.errorMessage(reply));
+            }
+            options = opcode == TFTPCodec.OP_OACK ? TFTPOptions.parse(reply.position(2)) : Map.of();
+            if (!options.containsKey(TFTPOptions.MULTICAST)) {
+                // Stop the unicast transfer the server started and ask again without the option
+                LOG.info("Server does not offer multicast, downloading " + filename + " by unicast");
+                ByteBuffer error = TFTPCodec.encodeError(ByteBuffer.allocate(BUFFER_SIZE), TFTPCodec.ERR_OPTION_REFUSED, "Multicast only");
+                transport.send(error, null);
+                complete = true;
+                return download(filename, target, new Options(requested.blockSize(), requested.windowSize(), false));
+            }
+
+            int blockSize = acceptedBlockSize(options, requested.blockSize());
+            int windowSize = acceptedWindowSize(options, requested.windowSize());
+            String[] multicast = options.get(TFTPOptions.MULTICAST).split(",", -1);
+            if (multicast.length != 3) throw new IOException("Invalid multicast option: " + options.get(TFTPOptions.MULTICAST));
+            InetAddress group = InetAddress.getByName(multicast[0].trim());
+            int port = Integer.parseInt(multicast[1].trim());
+            boolean master = multicast[2].trim().equals("1");
+
+            ProtocolFamily family = group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+            long size;
+            try (DatagramChannel groupChannel = DatagramChannel.open(family);
+                 Selector selector = Selector.open();
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                NetworkInterface nif = TFTPOptions.multicastInterface(server.getAddress());
+                if (nif == null) throw new IOException("No multicast-capable interface");
+                groupChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                new SocketTransport(groupChannel).reserveReceiveBuffer(windowBytes(blockSize, windowSize));
+                groupChannel.bind(new InetSocketAddress(port));
+                groupChannel.join(group, nif);
+                LOG.info("Joined " + group.getHostAddress() + ":" + port + " on " + nif.getName()
+                        + (master ? " as master" : ""));
+
+                preallocate(out, options);
+                control.configureBlocking(false).register(selector, SelectionKey.OP_READ);
+                groupChannel.configureBlocking(false).register(selector, SelectionKey.OP_READ);
+                receiveMulticast(control, groupChannel, selector, out, blockSize, windowSize, master, rtt);
+                size = out.size();
+            }
+            complete = true;
+            return new Result(filename, target, size, System.nanoTime() - start, 0, rtt);
+        } finally {
+            if (!complete) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    private static void receiveMulticast(DatagramChannel control, DatagramChannel groupChannel, Selector selector,
+                                         FileChannel out, int blockSize, int windowSize, boolean master,
+                                         RttEstimator rtt) throws IOException {
+        // Group DATA carries the server's transfer port, but its source address is that of the
+        // server's multicast interface, which need not be the one we sent the request to
+        int serverPort = ((InetSocketAddress) control.getRemoteAddress()).getPort();
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + blockSize);
+        ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE);
+        BitSet have = new BitSet();
+        long lastBlock = -1;
+        int lastLength = 0;
+        long lastAcked = 0;
+        long sentAt = 0;
+        boolean gapReported = false;
+        int retries = 0;
+
+        if (master) {
+            control.write(TFTPCodec.encodeAck(ackBuffer, 0));
+            sentAt = System.nanoTime();
+        }
+
+        while (lastBlock < 0 || have.cardinality() < lastBlock) {
+            if (selector.select(rtt.rtoMillis()) == 0) {
+                if (++retries > MAX_RETRIES) throw new IOException("Max retries exceeded");
+                rtt.backoff();
+                sentAt = 0;
+                if (master) {
+                    lastAcked = Math.min(have.nextClearBit(1) - 1, lastAcked + windowSize);
+                    control.write(TFTPCodec.encodeAck(ackBuffer, (int) lastAcked));
+                    gapReported = false;
+                }
+                continue;
+            }
+            selector.selectedKeys().clear();
+
+            // Unicast from the server: being made master, or an error
+            while (control.read(receiveBuffer.clear()) > 0) {
+                ByteBuffer packet = receiveBuffer.flip();
+                short opcode = TFTPCodec.opcode(packet);
+                if (opcode == TFTPCodec.OP_ERROR) {
+                    throw new IOException("Transfer aborted by server: " + TFTPCodec.errorMessage(packet));
+                }
+                if (opcode == TFTPCodec.OP_OACK) {
+                    String value = TFTPOptions.parse(packet.position(2)).getOrDefault(TFTPOptions.MULTICAST, "");
+                    if (value.endsWith(",1") && !master) {
+                        LOG.info("Promoted to multicast master");
+                        master = true;
+                    }
+                    if (master) {
+                        lastAcked = have.nextClearBit(1) - 1;
+                        control.write(TFTPCodec.encodeAck(ackBuffer, (int) lastAcked));
+                        sentAt = System.nanoTime();
+                        retries = 0;
+                    }
+                }
+            }
+
+            // DATA from the group, in whatever order it comes
+            InetSocketAddress from;
+            while ((from = (InetSocketAddress) groupChannel.receive(receiveBuffer.clear())) != null) {
+                ByteBuffer packet = receiveBuffer.flip();
+                if (from.getPort() != serverPort || TFTPCodec.opcode(packet) != TFTPCodec.OP_DATA) continue;
+                int block = TFTPCodec.blockNumber(packet);
+                int dataLength = packet.remaining() - TFTPCodec.HEADER_SIZE;
+                if (block <= 0) continue;
+                if (retries > 0) {
+                    rtt.resetBackoff();
+                    retries = 0;
+                }
+
+                if (!have.get(block)) {
+                    packet.position(TFTPCodec.HEADER_SIZE);
+                    long position = (block - 1L) * blockSize;
+                    while (packet.hasRemaining()) {
+                        position += out.write(packet, position);
+                    }
+                    have.set(block);
+                }
+                if (dataLength < blockSize) {
+                    lastBlock = block;
+                    lastLength = dataLength;
+                }
+                if (!master) continue;
+
+                if (sentAt != 0 && block == lastAcked + 1) {
+                    rtt.sample(System.nanoTime() - sentAt);
+                    sentAt = 0;
+                }
+                // Acknowledge within the server's window: at its end, once we already have all
+                // of it, or once per gap so the server resends from the first missing block
+                long windowEnd = lastAcked + windowSize;
+                if (lastBlock > 0) windowEnd = Math.min(windowEnd, lastBlock);
+                long contiguous = have.nextClearBit(1) - 1;
+                boolean gap = block > contiguous + 1 && !gapReported;
+                if (block == windowEnd || contiguous >= windowEnd || gap) {
+                    lastAcked = Math.min(contiguous, windowEnd);
+                    control.write(TFTPCodec.encodeAck(ackBuffer, (int) lastAcked));
+                    sentAt = block == windowEnd || contiguous >= windowEnd ? System.nanoTime() : 0;
+                    gapReported = gap;
+                }
+            }
+        }
+
+        // Drop any excess preallocation; the last block is the short one
+        out.truncate((lastBlock - 1) * blockSize + lastLength);
+
+        // Master or not, tell the server we are done so it stops counting on us
+        control.write(TFTPCodec.encodeAck(ackBuffer, (int) lastBlock));
+    }
+
+    private static void createParent(Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+
+    // A socket buffer that holds a whole window, since it arrives in one burst, with room for
+    // the kernel's per-datagram overhead. It may be capped (net.core.rmem_max on Linux).
+    private static int windowBytes(int blockSize, int windowSize) {
+        return 2 * windowSize * (TFTPCodec.HEADER_SIZE + blockSize);
+    }
+
+    // Extends the output to the size announced in tsize so blocks never have to grow it.
+    // Java has no portable fallocate: this sets the length, the file system may still be sparse.
+    private static void preallocate(FileChannel out, Map<String, String> options) throws IOException {
+        String value = options.get(TFTPOptions.TSIZE);
+        long size = value == null ? -1 : TFTPOptions.parseTransferSize(value);
+        if (size > 0) {
+            out.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    // Reads a block straight into the payload area of the DATA packet buffer
+    private static int readBlock(FileChannel channel, long block, int blockSize, ByteBuffer packetBuffer) throws IOException {
+        long position = (block - 1) * blockSize;
+        packetBuffer.limit(TFTPCodec.HEADER_SIZE + blockSize).position(TFTPCodec.HEADER_SIZE);
+        while (packetBuffer.hasRemaining()) {
+            if (channel.read(packetBuffer, position + packetBuffer.position() - TFTPCodec.HEADER_SIZE) < 0) break;
+        }
+        return packetBuffer.position() - TFTPCodec.HEADER_SIZE;
+    }
+
+    // Waits for an ACK inside (acked, windowEnd]. Returns acked itself when the server
+    // re-acknowledged the last good block to report a gap; other stale ACKs are ignored.
+    private static long waitForWindowAck(Endpoint endpoint, ByteBuffer receiveBuffer, int timeoutMillis,
+                                         long acked, long windowEnd, int windowSize) throws IOException {
+        while (true) {
+            ByteBuffer packet = receive(endpoint, receiveBuffer, timeoutMillis);
+            short opcode = TFTPCodec.opcode(packet);
+            if (opcode == TFTPCodec.OP_ERROR) {
+                throw new IOException("Transfer aborted by server: " + TFTPCodec.errorMessage(packet));
+            }
+            int ackNumber = TFTPCodec.blockNumber(packet);
+            if (opcode != TFTPCodec.OP_ACK || ackNumber < 0) continue;
+
+            // Map the 16-bit block number onto the window that is in flight
+            long block = acked + ((ackNumber - acked) & 0xFFFF);
+            if (block > acked && block <= windowEnd) return block;
+            if (block == acked && windowSize > 1) return acked;
+        }
+    }
+
+    // tsize is 0 in an RRQ (asking the server for the size) and the file size in a WRQ;
+    // blksize and windowsize are only sent when we want something other than the default
+    private void sendRequest(DatagramTransport transport, short opcode, String filename, Options requested,
+                             long transferSize) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (requested.multicast()) {
+            options.put(TFTPOptions.MULTICAST, "");
+        }
+        options.put(TFTPOptions.TSIZE, String.valueOf(transferSize));
+        if (requested.blockSize() != TFTPOptions.DEFAULT_BLOCK_SIZE) {
+            options.put(TFTPOptions.BLKSIZE, String.valueOf(requested.blockSize()));
+        }
+        if (requested.windowSize() != 1) {
+            options.put(TFTPOptions.WINDOWSIZE, String.valueOf(requested.windowSize()));
+        }
+        ByteBuffer requestData = TFTPCodec.encodeRequest(ByteBuffer.allocate(BUFFER_SIZE), opcode, filename, "octet", options);
+
+        transport.send(requestData, server);
+    }
+
+    // Receives into the reusable buffer. The first reply fixes the server's transfer ID, so the
+    // transport is connected to it and later packets from anywhere else are dropped.
+    private static ByteBuffer receive(Endpoint endpoint, ByteBuffer receiveBuffer, int timeoutMillis)
+            throws IOException {
+        DatagramTransport transport = endpoint.transport;
+        while (true) {
+            SocketAddress from;
+            try {
+                from = transport.receive(receiveBuffer.clear(), timeoutMillis);
+            } catch (PortUnreachableException e) {
+                // A late or duplicate packet reached a transfer port that has closed since,
+                // perhaps one of a previous transfer; a server that is gone times out instead
+                continue;
+            }
+            if (transport.remoteAddress() == null) {
+                // Late from the previous transfer on this socket
+                if (from.equals(endpoint.lastPeer)) continue;
+                transport.connect(from);
+            }
+            return receiveBuffer;
+        }
+    }
+
+    private static int acceptedBlockSize(Map<String, String> options, int requestedBlockSize) throws IOException {
+        String value = options.get(TFTPOptions.BLKSIZE);
+        if (value == null) return TFTPOptions.DEFAULT_BLOCK_SIZE;
+
+        // A server may only lower the block size we asked for
+        int blockSize = TFTPOptions.negotiateBlockSize(value, requestedBlockSize);
+        if (blockSize < 0 || blockSize != Integer.parseInt(value.trim())) {
+            throw new IOException("Server returned invalid block size: " + value);
+        }
+        return blockSize;
+    }
+
+    private static int acceptedWindowSize(Map<String, String> options, int requestedWindowSize) throws IOException {
+        String value = options.get(TFTPOptions.WINDOWSIZE);
+        if (value == null) return 1;
+
+        // Same rule as blksize: the server may shrink the window but never grow it
+        int windowSize = TFTPOptions.negotiateWindowSize(value, requestedWindowSize);
+        if (windowSize < 0 || windowSize != Integer.parseInt(value.trim())) {
+            throw new IOException("Server returned invalid window size: " + value);
+        }
+        return windowSize;
+    }
+}
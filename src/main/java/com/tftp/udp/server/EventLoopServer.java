@@ -0,0 +1,275 @@
+package com.tftp.udp.server;
+
+import com.tftp.udp.utils.TFTPOptions;
+import com.tftp.udp.utils.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector-based UDP engine. Each transfer gets a non-blocking channel registered
+ * with one of a few event loops; a timer wheel per loop drives retransmissions.
+ * The protocol itself lives in {@link RequestHandler#createTransfer} and the
+ * {@link Transfer} subclasses, exactly as in the thread-per-transfer engine.
+ */
+public class EventLoopServer {
+    private static final Logger LOG = Logger.getLogger(EventLoopServer.class.getName());
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SLOTS = 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private boolean started;
+
+    public EventLoopServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /** Accepts requests on the listening port forever, handing each transfer to an event loop. */
+    public void run() throws IOException {
+        try (DatagramChannel listener = DatagramChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            LOG.info("TFTP Server (event loop x" + loops.length + ") listening on port " + port);
+            serve(listener);
+        }
+    }
+
+    /** Starts the event loops and accepts requests on an already bound, blocking {@code listener} forever. */
+    public void serve(DatagramChannel listener) throws IOException {
+        start();
+        ByteBuffer requestBuffer = ByteBuffer.allocate(TFTPServerUDP.BUFFER_SIZE);
+        while (true) {
+            requestBuffer.clear();
+            InetSocketAddress client = (InetSocketAddress) listener.receive(requestBuffer);
+            requestBuffer.flip();
+            try {
+                dispatch(requestBuffer, client);
+            } catch (IOException e) {
+                LOG.warning("Error handling request: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Starts the event loops and accepts requests on every shard's receive loop until they stop. */
+    void serve(ListenerShards shards) throws IOException {
+        start();
+        shards.serve(this::dispatch);
+    }
+
+    private synchronized void start() {
+        if (started) return;
+        started = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "tftp-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Creates the request's transfer and hands it to the next loop; safe from several listeners
+    private void dispatch(ByteBuffer request, InetSocketAddress client) throws IOException {
+        // A retransmission of a request still being served
+        SessionTable.Session session = SessionTable.shared().open(request, client);
+        if (session == null) return;
+        Transfer transfer = null;
+        try {
+            transfer = RequestHandler.createTransfer(request, client.getAddress(), client.getPort());
+        } catch (RuntimeException e) {
+            // A request nothing anticipated fails alone rather than taking the listener with it
+            LOG.log(Level.WARNING, "Error handling request from " + client, e);
+        } finally {
+            if (transfer != null) {
+                transfer.tracked(session);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].submit(transfer, client);
+            } else {
+                session.close();
+            }
+        }
+    }
+
+    public int activeTransfers() {
+        int total = 0;
+        for (EventLoop loop : loops) {
+            total += loop.active.get();
+        }
+        return total;
+    }
+
+    private static class Registration {
+        final Transfer transfer;
+        final InetSocketAddress client;
+
+        Registration(Transfer transfer, InetSocketAddress client) {
+            this.transfer = transfer;
+            this.client = client;
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+        private final TimerWheel<SelectionKey> timers = new TimerWheel<>(TICK_NANOS, WHEEL_SLOTS);
+        // One receive buffer per loop; transfers never keep a reference to it
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPOptions.MAX_BLOCK_SIZE + 4);
+        private final AtomicInteger active = new AtomicInteger();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void submit(Transfer transfer, InetSocketAddress client) {
+            pending.add(new Registration(transfer, client));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    registerPending();
+
+                    long waitNanos = timers.nanosUntilNextTick(System.nanoTime());
+                    if (waitNanos < 0) {
+                        selector.select();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            onReadable(key);
+                        }
+                    }
+
+                    timers.expire(System.nanoTime(), this::onTimer);
+                } catch (IOException e) {
+                    LOG.warning("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            Registration registration;
+            while ((registration = pending.poll()) != null) {
+                Transfer transfer = registration.transfer;
+                InetSocketAddress client = registration.client;
+                DatagramChannel channel = null;
+                SelectionKey key = null;
+                try {
+                    channel = DatagramChannel.open();
+                    channel.configureBlocking(false);
+                    channel.bind(null);
+                    if (transfer.socketBufferSize() > channel.getOption(StandardSocketOptions.SO_RCVBUF)) {
+                        channel.setOption(StandardSocketOptions.SO_RCVBUF, transfer.socketBufferSize());
+                    }
+                    // Only accept packets from the client's transfer ID
+                    channel.connect(client);
+                    key = channel.register(selector, SelectionKey.OP_READ, transfer);
+                    active.incrementAndGet();
+                    DatagramChannel transferChannel = channel;
+                    transfer.shareThread();
+                    transfer.start(transferChannel::write, client);
+                    afterEvent(key, transfer);
+                } catch (IOException e) {
+                    LOG.warning("Error starting transfer of " + transfer.filename + ": " + e.getMessage());
+                    if (key != null) {
+                        close(key, transfer);
+                    } else {
+                        closeQuietly(channel);
+                        transfer.close();
+                    }
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key) {
+            Transfer transfer = (Transfer) key.attachment();
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            try {
+                while (!transfer.isDone()) {
+                    receiveBuffer.clear();
+                    if (channel.read(receiveBuffer) <= 0) break;
+                    receiveBuffer.flip();
+                    transfer.onPacket(receiveBuffer);
+                }
+                afterEvent(key, transfer);
+            } catch (IOException e) {
+                LOG.warning("Error handling transfer of " + transfer.filename + ": " + e.getMessage());
+                close(key, transfer);
+            } catch (RuntimeException e) {
+                // Only this transfer fails; the loop goes on with the others
+                LOG.log(Level.WARNING, "Error handling transfer of " + transfer.filename, e);
+                close(key, transfer);
+            }
+        }
+
+        private void onTimer(SelectionKey key, long scheduledDeadline) {
+            Transfer transfer = (Transfer) key.attachment();
+            // A newer entry for this transfer is already on the wheel
+            if (!key.isValid() || scheduledDeadline != transfer.wheelDeadline) return;
+
+            transfer.wheelDeadline = Long.MAX_VALUE;
+            try {
+                if (transfer.deadline() <= System.nanoTime()) {
+                    transfer.onTimeout();
+                }
+                afterEvent(key, transfer);
+            } catch (IOException e) {
+                LOG.warning("Error handling transfer of " + transfer.filename + ": " + e.getMessage());
+                close(key, transfer);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Error handling transfer of " + transfer.filename, e);
+                close(key, transfer);
+            }
+        }
+
+        private void afterEvent(SelectionKey key, Transfer transfer) {
+            if (transfer.isDone()) {
+                close(key, transfer);
+                return;
+            }
+            // Deadlines normally only move later, so the existing wheel entry is kept and
+            // re-armed when it fires; a new entry is only needed if the deadline moved earlier
+            if (transfer.deadline() < transfer.wheelDeadline) {
+                transfer.wheelDeadline = transfer.deadline();
+                timers.schedule(key, transfer.deadline());
+            }
+        }
+
+        private void close(SelectionKey key, Transfer transfer) {
+            key.cancel();
+            closeQuietly((DatagramChannel) key.channel());
+            transfer.close();
+            active.decrementAndGet();
+        }
+
+        private void closeQuietly(DatagramChannel channel) {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warning("Error closing channel: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.TransferMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Several sockets bound to the server port with {@code SO_REUSEPORT}, each read by a
+ * receive loop on a thread of its own. The kernel hashes every client address to one
+ * of them, so a burst of requests is spread over as many socket buffers and cores
+ * instead of queuing behind a single thread. Each socket's receive buffer is set to
+ * {@code -Dtftp.udp.receiveBuffer} bytes if that is given.
+ *
+ * <p>Requests are counted per shard, and so are the datagrams the kernel dropped
+ * because a shard's buffer was full. Drops are read from {@code /proc/net/udp}, so
+ * they are only known on Linux. Any other process that binds the port with
+ * {@code SO_REUSEPORT} shares the requests, so only one server should run per port.
+ */
+class ListenerShards implements Closeable, TransferMetrics.Listeners {
+    private static final Logger LOG = Logger.getLogger(ListenerShards.class.getName());
+    private static final List<Path> PROC_NET_UDP = List.of(Path.of("/proc/net/udp"), Path.of("/proc/net/udp6"));
+
+    /** Where the receive loops hand requests; the buffer is only valid during the call. */
+    interface RequestSink {
+        void accept(ByteBuffer request, InetSocketAddress client) throws IOException;
+    }
+
+    private final int port;
+    private final DatagramChannel[] channels;
+    // Socket inode of each shard in /proc/net/udp, or -1 where it is not known
+    private final long[] inodes;
+    private final AtomicLongArray received;
+
+    private ListenerShards(int port, DatagramChannel[] channels, long[] inodes) {
+        this.port = port;
+        this.channels = channels;
+        this.inodes = inodes;
+        this.received = new AtomicLongArray(channels.length);
+    }
+
+    /** Binds {@code count} sockets to {@code port}, with receive buffers of {@code receiveBuffer} bytes if positive. */
+    static ListenerShards open(int port, int count, int receiveBuffer) throws IOException {
+        DatagramChannel[] channels = new DatagramChannel[count];
+        long[] inodes = new long[count];
+        Set<Long> seen = new HashSet<>(socketDrops(port).keySet());
+        try {
+            for (int i = 0; i < count; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this system");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                if (receiveBuffer > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+                }
+                channel.bind(new InetSocketAddress(port));
+                inodes[i] = newInode(port, seen);
+            }
+        } catch (IOException e) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            throw e;
+        }
+        if (receiveBuffer > 0) {
+            int actual = channels[0].getOption(StandardSocketOptions.SO_RCVBUF);
+            if (actual < receiveBuffer) {
+                LOG.warning("Asked for a " + receiveBuffer + " byte receive buffer and got " + actual
+                        + "; raise net.core.rmem_max for more");
+            }
+        }
+        ListenerShards shards = new ListenerShards(port, channels, inodes);
+        Transfer.METRICS.listeners(shards);
+        return shards;
+    }
+
+    /**
+     * Runs a receive loop per shard, the first on the calling thread, until the sockets
+     * are closed. An error handling one request is logged and the loop goes on.
+     */
+    void serve(RequestSink sink) throws IOException {
+        for (int i = 1; i < channels.length; i++) {
+            int shard = i;
+            Thread.ofPlatform().daemon().name("tftp-listener-" + shard).start(() -> {
+                try {
+                    receiveLoop(shard, sink);
+                } catch (IOException e) {
+                    LOG.warning("Listener " + shard + " stopped: " + e.getMessage());
+                }
+            });
+        }
+        receiveLoop(0, sink);
+    }
+
+    private void receiveLoop(int shard, RequestSink sink) throws IOException {
+        DatagramChannel channel = channels[shard];
+        ByteBuffer request = ByteBuffer.allocate(TFTPServerUDP.BUFFER_SIZE);
+        while (true) {
+            request.clear();
+            InetSocketAddress client = (InetSocketAddress) channel.receive(request);
+            request.flip();
+            received.incrementAndGet(shard);
+            try {
+                sink.accept(request, client);
+            } catch (IOException e) {
+                LOG.warning("Error handling request: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // One bad datagram must not stop the shard
+                LOG.log(Level.WARNING, "Error handling request from " + client, e);
+            }
+        }
+    }
+
+    @Override
+    public int shards() {
+        return channels.length;
+    }
+
+    @Override
+    public long received(int shard) {
+        return received.get(shard);
+    }
+
+    @Override
+    public long dropped(int shard) {
+        if (inodes[shard] < 0) return -1;
+        return socketDrops(port).getOrDefault(inodes[shard], -1L);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    // The socket that just appeared on the port; -1 if there is not exactly one
+    private static long newInode(int port, Set<Long> seen) {
+        Set<Long> fresh = new HashSet<>(socketDrops(port).keySet());
+        fresh.removeAll(seen);
+        seen.addAll(fresh);
+        return fresh.size() == 1 ? fresh.iterator().next() : -1;
+    }
+
+    // Drop counts by socket inode of the UDP sockets bound to the port; empty where /proc is missing
+    private static Map<Long, Long> socketDrops(int port) {
+        Map<Long, Long> drops = new HashMap<>();
+        String localPort = String.format(":%04X", port);
+        for (Path table : PROC_NET_UDP) {
+            if (!Files.isReadable(table)) continue;
+            try {
+                for (String line : Files.readAllLines(table)) {
+                    // sl local rem st tx:rx tr:when retrnsmt uid timeout inode ref pointer drops
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length < 13 || !fields[1].endsWith(localPort)) continue;
+                    drops.put(Long.parseLong(fields[9]), Long.parseLong(fields[12]));
+                }
+            } catch (IOException | NumberFormatException e) {
+                LOG.fine(() -> "Cannot read " + table + ": " + e.getMessage());
+            }
+        }
+        return drops;
+    }
+}
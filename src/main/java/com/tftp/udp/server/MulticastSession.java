@@ -0,0 +1,245 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.BufferPool;
+import com.tftp.common.ServedRoot;
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.TFTPOptions;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One RFC 2090 multicast transfer of a file. DATA goes once to a multicast group
+ * while a single master client acknowledges on behalf of everyone. Clients that join
+ * late keep whatever they overhear; when their turn as master comes they acknowledge
+ * the block before their first gap and sending resumes from there. A client that has
+ * the whole file acknowledges the last block and leaves.
+ *
+ * <p>Each session runs on its own thread with an unconnected socket, since all the
+ * clients of the group talk to the same transfer ID.
+ */
+class MulticastSession implements Runnable {
+    private static final Logger LOG = Logger.getLogger(MulticastSession.class.getName());
+    private static final int GROUP_PORT = Integer.getInteger("tftp.multicast.port", 1758);
+    private static final int TTL = Integer.getInteger("tftp.multicast.ttl", 1);
+
+    // Active sessions by file and transfer options; also guards every session's members
+    private static final Map<String, MulticastSession> SESSIONS = new HashMap<>();
+    private static int nextGroup;
+
+    private final String key;
+    private final InetSocketAddress group;
+    private final Map<String, String> options;
+    private final ReadTransfer transfer;
+    private final MulticastSocket socket;
+    private final ArrayDeque<InetSocketAddress> members = new ArrayDeque<>();
+
+    private InetSocketAddress master;
+    private boolean awaitingMaster;
+    private int masterRetries;
+    private long masterDeadline;
+
+    private MulticastSession(String key, InetSocketAddress group, Map<String, String> options, ReadTransfer transfer,
+                             InetSocketAddress master) throws IOException {
+        this.key = key;
+        this.group = group;
+        this.options = options;
+        this.transfer = transfer;
+        this.master = master;
+        this.socket = new MulticastSocket(0);
+        socket.setTimeToLive(TTL);
+        NetworkInterface nif = TFTPOptions.multicastInterface(null);
+        if (nif != null) {
+            socket.setNetworkInterface(nif);
+        }
+    }
+
+    /**
+     * Adds the client to the session for this file, starting one if needed. Returns
+     * false if the file cannot be sent by multicast, in which case the caller serves
+     * the RRQ by unicast and simply leaves the option out of its OACK.
+     */
+    static boolean join(ServedRoot.FileInfo file, String filename, int blockSize, int windowSize,
+                        Map<String, String> accepted, InetAddress clientAddress, int clientPort) throws IOException {
+        // Receivers place blocks by their 16-bit number, so it must not wrap
+        if (file.size() / blockSize + 1 > 0xFFFF) return false;
+
+        String key = file.path() + "|" + blockSize + "|" + windowSize;
+        InetSocketAddress client = new InetSocketAddress(clientAddress, clientPort);
+        MulticastSession session;
+        boolean started;
+        synchronized (SESSIONS) {
+            session = SESSIONS.get(key);
+            started = session == null;
+            if (started) {
+                ReadTransfer transfer = RequestHandler.openRead(file, filename, blockSize, windowSize, null);
+                session = new MulticastSession(key, nextGroupAddress(), accepted, transfer, client);
+                SESSIONS.put(key, session);
+            } else {
+                session.members.add(client);
+            }
+        }
+
+        if (started) {
+            LOG.info("Multicasting " + filename + " to " + session.group);
+            Thread.ofPlatform().daemon().name("tftp-mcast-" + session.group.getAddress().getHostAddress())
+                    .start(session);
+        } else {
+            // Late joiners listen to the group until they are made master
+            LOG.info(client + " joined multicast of " + filename);
+            session.sendOack(client, false);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer receiveBuffer = BufferPool.shared().acquire(TFTPServerUDP.BUFFER_SIZE);
+        try {
+            DatagramPacket groupPacket = new DatagramPacket(new byte[0], 0, group);
+            transfer.attach(packet -> {
+                groupPacket.setData(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+                socket.send(groupPacket);
+            }, group);
+            promote(master);
+            serve(receiveBuffer);
+        } catch (IOException e) {
+            LOG.warning("Multicast session for " + transfer.filename + " failed: " + e.getMessage());
+        } finally {
+            // However the session ended, later clients must not join it
+            synchronized (SESSIONS) {
+                SESSIONS.remove(key, this);
+            }
+            BufferPool.shared().release(receiveBuffer);
+            transfer.close();
+            socket.close();
+        }
+    }
+
+    private void serve(ByteBuffer receiveBuffer) throws IOException {
+        DatagramPacket receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+        while (master != null) {
+            long deadline = awaitingMaster ? masterDeadline : transfer.deadline();
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (waitMillis <= 0) {
+                onTimeout();
+                continue;
+            }
+
+            try {
+                socket.setSoTimeout((int) waitMillis);
+                receivePacket.setLength(receiveBuffer.capacity());
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                onTimeout();
+                continue;
+            }
+            onPacket((InetSocketAddress) receivePacket.getSocketAddress(),
+                    receiveBuffer.clear().limit(receivePacket.getLength()));
+        }
+    }
+
+    private void onPacket(InetSocketAddress from, ByteBuffer packet) throws IOException {
+        // The socket is not connected, so anyone can send it anything
+        if (packet.remaining() < TFTPCodec.HEADER_SIZE) return;
+        short opcode = TFTPCodec.opcode(packet);
+        boolean finished = opcode == TFTPCodec.OP_ACK && TFTPCodec.blockNumber(packet) == transfer.lastBlock();
+
+        if (!from.equals(master)) {
+            // Other members only speak up to say they are done or gave up
+            if (finished || opcode == TFTPCodec.OP_ERROR) {
+                synchronized (SESSIONS) {
+                    members.remove(from);
+                }
+            }
+            return;
+        }
+
+        if (finished) {
+            LOG.fine(() -> "Multicast client " + master + " has " + transfer.filename);
+            promote(nextMember());
+            return;
+        }
+        try {
+            if (awaitingMaster) {
+                // The new master reports the block before its first gap
+                if (opcode != TFTPCodec.OP_ACK) {
+                    transfer.checkForError(opcode, packet);
+                    return;
+                }
+                awaitingMaster = false;
+                transfer.restartFrom(TFTPCodec.blockNumber(packet));
+            } else {
+                transfer.onPacket(packet);
+            }
+        } catch (IOException e) {
+            dropMaster(e.getMessage());
+        }
+    }
+
+    private void onTimeout() throws IOException {
+        try {
+            if (awaitingMaster) {
+                if (++masterRetries > Transfer.MAX_RETRIES) {
+                    throw new IOException("Max retries exceeded for OACK");
+                }
+                transfer.rtt().backoff();
+                sendOack(master, true);
+            } else {
+                transfer.onTimeout();
+            }
+        } catch (IOException e) {
+            dropMaster(e.getMessage());
+        }
+    }
+
+    private void dropMaster(String reason) throws IOException {
+        LOG.info("Dropping multicast master " + master + ": " + reason);
+        promote(nextMember());
+    }
+
+    private void promote(InetSocketAddress client) throws IOException {
+        master = client;
+        if (client == null) return;
+        awaitingMaster = true;
+        masterRetries = 0;
+        sendOack(client, true);
+    }
+
+    // Next member in line for master, or null after closing the session when none is left
+    private InetSocketAddress nextMember() {
+        synchronized (SESSIONS) {
+            InetSocketAddress next = members.poll();
+            if (next == null) {
+                SESSIONS.remove(key);
+                LOG.info("Multicast of " + transfer.filename + " finished (" + transfer + ")");
+            }
+            return next;
+        }
+    }
+
+    private void sendOack(InetSocketAddress client, boolean asMaster) throws IOException {
+        Map<String, String> oackOptions = new LinkedHashMap<>(options);
+        oackOptions.put(TFTPOptions.MULTICAST, TFTPOptions.multicastValue(group.getAddress(), group.getPort(), asMaster));
+        ByteBuffer oack = TFTPCodec.encodeOack(ByteBuffer.allocate(TFTPServerUDP.BUFFER_SIZE), oackOptions);
+        socket.send(new DatagramPacket(oack.array(), oack.limit(), client));
+        if (asMaster) {
+            masterDeadline = System.nanoTime() + transfer.rtt().rtoNanos();
+        }
+    }
+
+    // Groups are handed out from -Dtftp.multicast.group upwards so concurrent sessions do not overlap
+    private static InetSocketAddress nextGroupAddress() throws UnknownHostException {
+        byte[] address = InetAddress.getByName(System.getProperty("tftp.multicast.group", "239.255.69.1")).getAddress();
+        int last = address.length - 1;
+        address[last] = (byte) (1 + ((address[last] & 0xFF) - 1 + nextGroup++) % 254);
+        return new InetSocketAddress(InetAddress.getByAddress(address), GROUP_PORT);
+    }
+}
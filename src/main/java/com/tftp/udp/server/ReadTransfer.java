@@ -0,0 +1,219 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.BufferPool;
+import com.tftp.common.ReadAhead;
+import com.tftp.common.TFTPCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Server side of an RRQ: sends windows of DATA blocks and rewinds to whatever the
+ * client acknowledged. Blocks come from a shared cached mapping of the file, or
+ * from the file itself through a {@link ReadAhead} that has the next blocks in memory
+ * before the client asks for them. Blocks sent again after a rewind are read again.
+ * A window the rate limit holds back goes out when the hold ends. On a thread shared
+ * with other transfers, so does a window whose blocks are still being read ahead.
+ */
+class ReadTransfer extends Transfer {
+    private static final Logger LOG = Logger.getLogger(ReadTransfer.class.getName());
+
+    private final FileChannel channel;
+    private final ReadAhead readAhead;
+    private final ByteBuffer content;
+    private final long lastBlock;
+    private final ByteBuffer packetBuffer;
+    private boolean awaitingOackAck;
+    private long acked;
+    private long windowEnd;
+    private long highestSent;
+    private long sentAt;
+    private boolean resent;
+
+    /** Reads blocks from the open {@code channel}. */
+    ReadTransfer(String filename, FileChannel channel, int blockSize, int windowSize, ByteBuffer oack) throws IOException {
+        this(filename, channel, new ReadAhead(channel), null, channel.size(), blockSize, windowSize, oack);
+    }
+
+    /** Slices blocks out of {@code content}, a cached view of the whole file. */
+    ReadTransfer(String filename, ByteBuffer content, int blockSize, int windowSize, ByteBuffer oack) {
+        this(filename, null, null, content, content.capacity(), blockSize, windowSize, oack);
+    }
+
+    private ReadTransfer(String filename, FileChannel channel, ReadAhead readAhead, ByteBuffer content, long size,
+                         int blockSize, int windowSize, ByteBuffer oack) {
+        super(filename, blockSize, windowSize, oack);
+        this.channel = channel;
+        this.readAhead = readAhead;
+        this.content = content;
+        // The last block is always short, so an exact multiple of the block size ends with an empty block
+        this.lastBlock = size / blockSize + 1;
+        this.packetBuffer = BufferPool.shared().acquire(TFTPCodec.HEADER_SIZE + blockSize);
+    }
+
+    @Override
+    protected void start() throws IOException {
+        // With negotiated options the client acknowledges the OACK with ACK 0 before DATA 1
+        if (oack != null) {
+            awaitingOackAck = true;
+            sendOack();
+            sentAt = System.nanoTime();
+            armTimer();
+        } else {
+            sendWindow();
+        }
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet) throws IOException {
+        METRICS.packetReceived();
+        short opcode = TFTPCodec.opcode(packet);
+        checkForError(opcode, packet);
+        if (opcode != TFTPCodec.OP_ACK) return;
+
+        int ackNumber = TFTPCodec.blockNumber(packet);
+        if (ackNumber < 0) return; // Truncated
+        if (awaitingOackAck) {
+            if (ackNumber != 0) return;
+            awaitingOackAck = false;
+            timeAck();
+            retries = 0;
+            sendWindow();
+            return;
+        }
+
+        // Map the 16-bit block number onto the window that is in flight
+        long block = acked + ((ackNumber - acked) & 0xFFFF);
+        if (block > acked && block <= windowEnd) {
+            acked = block;
+            retries = 0;
+            timeAck();
+            if (acked == lastBlock) {
+                finish();
+                LOG.info(() -> "File sent: " + this);
+            } else {
+                sendWindow();
+            }
+        } else if (block == acked && windowSize > 1) {
+            // The client re-acknowledged its last good block to report a gap
+            countRetry("block " + (acked + 1));
+            sendWindow();
+        }
+        // Anything else is a stale duplicate and is ignored
+    }
+
+    @Override
+    void onTimeout() throws IOException {
+        if (resume()) {
+            transmitWindow();
+            return;
+        }
+        rtt.backoff();
+        if (awaitingOackAck) {
+            countRetry("OACK");
+            sendOack();
+            countRetransmissions(1);
+            resent = true;
+            armTimer();
+            return;
+        }
+        countRetry("block " + (acked + 1));
+        LOG.fine(() -> "Retrying " + filename + " from block " + (acked + 1) + " (" + retries + "/" + MAX_RETRIES
+                + ", rto " + rtt.rtoMillis() + " ms)");
+        sendWindow();
+    }
+
+    /**
+     * Hands the transfer to a multicast master client that holds every block up to
+     * {@code block}, and resumes sending from the block after it.
+     */
+    void restartFrom(long block) throws IOException {
+        reopen();
+        awaitingOackAck = false;
+        acked = Math.min(block, lastBlock);
+        if (acked == lastBlock) {
+            finish();
+        } else {
+            sendWindow();
+        }
+    }
+
+    long lastBlock() {
+        return lastBlock;
+    }
+
+    @Override
+    int receiveBufferSize() {
+        return TFTPServerUDP.BUFFER_SIZE;
+    }
+
+    @Override
+    String kind() {
+        return "RRQ";
+    }
+
+    @Override
+    protected void release() {
+        BufferPool.shared().release(packetBuffer);
+        if (channel == null) return;
+        readAhead.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warning("Error closing " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private void sendWindow() throws IOException {
+        // A held window goes out from whatever was acknowledged by the time the hold ends
+        if (held() || hold((Math.min(acked + windowSize, lastBlock) - acked) * blockSize)) return;
+        transmitWindow();
+    }
+
+    private void transmitWindow() throws IOException {
+        long end = Math.min(acked + windowSize, lastBlock);
+        if (readAhead != null && !mayBlock() && !readAhead.ready(acked * blockSize, end * blockSize)) {
+            pause();
+            return;
+        }
+        // Karn's rule: an ACK for a window that repeats earlier blocks cannot be timed
+        resent = acked < highestSent;
+        sentAt = System.nanoTime();
+        windowEnd = end;
+        long previouslySent = highestSent;
+        highestSent = Math.max(highestSent, windowEnd);
+        for (long block = acked + 1; block <= windowEnd; block++) {
+            int bytesRead = readBlock(block);
+            sink.send(TFTPCodec.encodeData(packetBuffer, (int) block, bytesRead));
+            if (block > previouslySent) {
+                countData(bytesRead, true);
+            }
+        }
+        if (resent) {
+            countRetransmissions((int) (Math.min(windowEnd, previouslySent) - acked));
+        }
+        armTimer();
+    }
+
+    private void timeAck() {
+        if (resent) {
+            rtt.resetBackoff();
+        } else {
+            sampleRtt(System.nanoTime() - sentAt);
+        }
+    }
+
+    private int readBlock(long block) throws IOException {
+        long position = (block - 1) * blockSize;
+        packetBuffer.limit(TFTPCodec.HEADER_SIZE + blockSize).position(TFTPCodec.HEADER_SIZE);
+        if (content != null) {
+            int offset = (int) Math.min(position, content.capacity());
+            int length = Math.min(blockSize, content.capacity() - offset);
+            packetBuffer.put(TFTPCodec.HEADER_SIZE, content, offset, length);
+            return length;
+        }
+        return readAhead.read(packetBuffer, position);
+    }
+}
@@ -0,0 +1,277 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.AdmissionControl;
+import com.tftp.common.BufferPool;
+import com.tftp.common.FileCache;
+import com.tftp.common.ServedRoot;
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.DatagramTransport;
+import com.tftp.udp.utils.TFTPOptions;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Thread-per-transfer engine: parses one RRQ/WRQ and runs the resulting
+ * {@link Transfer} on its own ephemeral transport with blocking receives.
+ */
+class RequestHandler implements Runnable {
+    private static final Logger LOG = Logger.getLogger(RequestHandler.class.getName());
+    private static final String UPLOAD_DIRECTORY = ServedRoot.uploadDirectory("tftp-uploads");
+
+    private final ByteBuffer request;
+    private final InetSocketAddress client;
+    private final DatagramNetwork network;
+    private final SessionTable.Session session;
+
+    RequestHandler(ByteBuffer request, InetSocketAddress client, DatagramNetwork network, SessionTable.Session session) {
+        this.request = request;
+        this.client = client;
+        this.network = network;
+        this.session = session;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Transfer transfer = createTransfer(request, client.getAddress(), client.getPort());
+            if (transfer == null) return;
+            transfer.tracked(session);
+
+            try (DatagramTransport transport = network.open()) {
+                // Only accept packets from the client's transfer ID
+                transport.connect(client);
+                transport.reserveReceiveBuffer(transfer.socketBufferSize());
+                runTransfer(transport, transfer);
+            } finally {
+                transfer.close();
+            }
+        } catch (IOException e) {
+            LOG.warning("Error handling request: " + e.getMessage());
+        } finally {
+            // Already closed with the transfer if there was one
+            session.close();
+        }
+    }
+
+    private void runTransfer(DatagramTransport transport, Transfer transfer) throws IOException {
+        transfer.start(packet -> transport.send(packet, null), client);
+
+        ByteBuffer receiveBuffer = BufferPool.shared().acquire(transfer.receiveBufferSize());
+        try {
+            receiveLoop(transport, transfer, receiveBuffer);
+        } finally {
+            BufferPool.shared().release(receiveBuffer);
+        }
+    }
+
+    private void receiveLoop(DatagramTransport transport, Transfer transfer, ByteBuffer receiveBuffer) throws IOException {
+        int capacity = receiveBuffer.limit();
+        while (!transfer.isDone()) {
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(transfer.deadline() - System.nanoTime());
+            if (waitMillis <= 0) {
+                transfer.onTimeout();
+                continue;
+            }
+
+            try {
+                transport.receive(receiveBuffer.clear().limit(capacity), (int) waitMillis);
+            } catch (SocketTimeoutException e) {
+                transfer.onTimeout();
+                continue;
+            }
+            transfer.onPacket(receiveBuffer);
+        }
+    }
+
+    /**
+     * Parses an RRQ/WRQ, negotiates its options and opens the file. Returns null after
+     * sending an ERROR to the client if the request cannot be served, also when
+     * {@link AdmissionControl} turns it away, or after handing a multicast RRQ to its
+     * {@link MulticastSession}. Shared by both server engines so they agree on every
+     * protocol decision.
+     */
+    static Transfer createTransfer(ByteBuffer buffer, InetAddress clientAddress, int clientPort) throws IOException {
+        // Refused before any file is touched, so that a busy server answers at once
+        AdmissionControl.Permit permit = AdmissionControl.shared().admit(clientAddress);
+        if (!permit.granted()) {
+            LOG.fine(() -> "Refusing request from " + clientAddress.getHostAddress() + ": " + permit.refusal());
+            sendError(clientAddress, clientPort, TFTPCodec.ERR_UNDEFINED, "busy", permit.refusal());
+            return null;
+        }
+        Transfer transfer = null;
+        try {
+            transfer = openTransfer(buffer, clientAddress, clientPort);
+        } finally {
+            if (transfer != null) {
+                transfer.admitted(permit);
+            } else {
+                permit.close();
+            }
+        }
+        return transfer;
+    }
+
+    private static Transfer openTransfer(ByteBuffer buffer, InetAddress clientAddress, int clientPort) throws IOException {
+        if (buffer.remaining() < 2) {
+            sendError(clientAddress, clientPort, TFTPCodec.ERR_ILLEGAL_OPERATION, "Malformed request");
+            return null;
+        }
+        short opcode = buffer.getShort();
+        String filename = TFTPCodec.readString(buffer);
+        String mode = TFTPCodec.readString(buffer).toLowerCase();
+        Map<String, String> options = TFTPOptions.parse(buffer);
+
+        if (!mode.equals("octet")) {
+            sendError(clientAddress, clientPort, TFTPCodec.ERR_ILLEGAL_OPERATION, "Unsupported mode");
+            return null;
+        }
+
+        // Only options we understand are echoed back in the OACK
+        Map<String, String> accepted = new LinkedHashMap<>();
+        int blockSize = TFTPOptions.DEFAULT_BLOCK_SIZE;
+        String requestedBlockSize = options.get(TFTPOptions.BLKSIZE);
+        if (requestedBlockSize != null) {
+            int negotiated = TFTPOptions.negotiateBlockSize(requestedBlockSize, TFTPOptions.MAX_BLOCK_SIZE);
+            if (negotiated > 0) {
+                blockSize = negotiated;
+                accepted.put(TFTPOptions.BLKSIZE, String.valueOf(negotiated));
+            }
+        }
+        int windowSize = 1;
+        String requestedWindowSize = options.get(TFTPOptions.WINDOWSIZE);
+        if (requestedWindowSize != null) {
+            int negotiated = TFTPOptions.negotiateWindowSize(requestedWindowSize, TFTPOptions.MAX_WINDOW_SIZE);
+            if (negotiated > 0) {
+                windowSize = negotiated;
+                accepted.put(TFTPOptions.WINDOWSIZE, String.valueOf(negotiated));
+            }
+        }
+        String requestedSize = options.get(TFTPOptions.TSIZE);
+        long transferSize = requestedSize == null ? -1 : TFTPOptions.parseTransferSize(requestedSize);
+
+        if (opcode == TFTPCodec.OP_RRQ) {
+            ServedRoot.FileInfo file;
+            try {
+                file = ServedRoot.shared().lookup(filename);
+            } catch (AccessDeniedException e) {
+                LOG.info(() -> "Refusing RRQ outside the served root: " + filename);
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_ACCESS_VIOLATION, "Access violation");
+                return null;
+            }
+            if (file == null) {
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_FILE_NOT_FOUND, "File not found");
+                return null;
+            }
+            // Tell the client how much is coming so it can allocate the file up front
+            if (transferSize >= 0) {
+                accepted.put(TFTPOptions.TSIZE, String.valueOf(file.size()));
+            }
+            try {
+                if (options.containsKey(TFTPOptions.MULTICAST)
+                        && MulticastSession.join(file, filename, blockSize, windowSize, accepted, clientAddress, clientPort)) {
+                    return null;
+                }
+                return openRead(file, filename, blockSize, windowSize, encodeOack(accepted));
+            } catch (NoSuchFileException e) {
+                // Deleted since the index last heard of it
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_FILE_NOT_FOUND, "File not found");
+                return null;
+            }
+        } else if (opcode == TFTPCodec.OP_WRQ) {
+            LOG.fine(() -> "Handling WRQ for file: " + filename);
+
+            // Extract the filename from the path (if any)
+            String simpleFilename = new File(filename).getName();
+
+            // Define the upload directory
+            File uploadDir = new File(UPLOAD_DIRECTORY);
+            if (!uploadDir.exists()) {
+                uploadDir.mkdirs(); // Create the upload directory if it doesn't exist
+            }
+
+            // Create the file in the upload directory
+            File file = new File(uploadDir, simpleFilename);
+            if (file.exists()) {
+                LOG.info(() -> "Refusing upload, file already exists: " + file.getAbsolutePath());
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_FILE_EXISTS, "File already exists");
+                return null;
+            }
+            // Refuse up front what would not fit rather than failing halfway through
+            if (transferSize > uploadDir.getUsableSpace()) {
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_DISK_FULL, "Not enough space for " + transferSize + " bytes");
+                return null;
+            }
+            if (transferSize >= 0) {
+                accepted.put(TFTPOptions.TSIZE, String.valueOf(transferSize));
+            }
+            try {
+                return new WriteTransfer(filename, file, blockSize, windowSize, transferSize, encodeOack(accepted));
+            } catch (IOException e) {
+                // Out of space or over a quota, most likely, since the file did not exist
+                LOG.warning("Cannot store " + file.getAbsolutePath() + ": " + e.getMessage());
+                sendError(clientAddress, clientPort, TFTPCodec.ERR_DISK_FULL, "Cannot store the file: " + e.getMessage());
+                return null;
+            }
+        } else {
+            sendError(clientAddress, clientPort, TFTPCodec.ERR_ILLEGAL_OPERATION, "Invalid operation");
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeOack(Map<String, String> accepted) {
+        return accepted.isEmpty() ? null
+                : TFTPCodec.encodeOack(ByteBuffer.allocate(TFTPServerUDP.BUFFER_SIZE), accepted);
+    }
+
+    static ReadTransfer openRead(ServedRoot.FileInfo file, String filename, int blockSize, int windowSize,
+                                 ByteBuffer oack) throws IOException {
+        // Hot files are served from the shared cache; empty or oversized files are read directly
+        ByteBuffer content = FileCache.shared().get(file.path(), file.size(), file.lastModified());
+        if (content != null) {
+            return new ReadTransfer(filename, content, blockSize, windowSize, oack);
+        }
+        FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ);
+        return new ReadTransfer(filename, channel, blockSize, windowSize, oack);
+    }
+
+    static void sendError(InetAddress clientAddress, int clientPort, short errorCode, String message) throws IOException {
+        sendError(clientAddress, clientPort, errorCode, errorType(errorCode), message);
+    }
+
+    /** As above, counted in the metrics as {@code type} rather than after the error code. */
+    static void sendError(InetAddress clientAddress, int clientPort, short errorCode, String type, String message)
+            throws IOException {
+        Transfer.METRICS.error(type);
+        ByteBuffer errorData = TFTPCodec.encodeError(ByteBuffer.allocate(TFTPServerUDP.BUFFER_SIZE), errorCode, message);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            DatagramPacket errorPacket = new DatagramPacket(errorData.array(), errorData.limit(), clientAddress, clientPort);
+            socket.send(errorPacket);
+        }
+    }
+
+    // Names of refused requests in the metrics, after the RFC 1350 error codes
+    private static String errorType(short errorCode) {
+        return switch (errorCode) {
+            case TFTPCodec.ERR_FILE_NOT_FOUND -> "file_not_found";
+            case TFTPCodec.ERR_ACCESS_VIOLATION -> "access_violation";
+            case TFTPCodec.ERR_DISK_FULL -> "disk_full";
+            case TFTPCodec.ERR_ILLEGAL_OPERATION -> "illegal_operation";
+            case TFTPCodec.ERR_UNKNOWN_TID -> "unknown_tid";
+            case TFTPCodec.ERR_FILE_EXISTS -> "file_exists";
+            case TFTPCodec.ERR_OPTION_REFUSED -> "option_refused";
+            default -> "undefined";
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.utils.TimerWheel;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Requests the UDP server is working on, keyed by the client's transfer ID and the
+ * filename, so that a client retransmitting its RRQ or WRQ before the first reply
+ * arrives does not get a second transfer with its own socket and a competing stream
+ * of packets. The listener opens a session before handing a request on and drops the
+ * request if one is already open; the session closes with its transfer.
+ *
+ * <p>A session whose transfer has neither armed a timer nor closed for
+ * {@code -Dtftp.session.staleSeconds} (120 by default, well past the longest
+ * retransmission timeout) is taken out of the table by a timer wheel, so a request
+ * that never got going cannot lock its client out for good.
+ */
+class SessionTable {
+    private static final Logger LOG = Logger.getLogger(SessionTable.class.getName());
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int WHEEL_SLOTS = 256;
+    private static final SessionTable SHARED =
+            new SessionTable(TimeUnit.SECONDS.toNanos(Long.getLong("tftp.session.staleSeconds", 120)));
+
+    /** A session that belongs to no table, for transfers started some other way. */
+    static final Session UNTRACKED = new Session(null, null);
+
+    private record Key(InetSocketAddress client, String filename) {
+    }
+
+    /** One request from its arrival until its transfer closes. */
+    static final class Session {
+        private final SessionTable table;
+        private final Key key;
+        private volatile long touchedAt = System.nanoTime();
+
+        private Session(SessionTable table, Key key) {
+            this.table = table;
+            this.key = key;
+        }
+
+        /** Marks the session as alive; its transfer calls this whenever it arms a timer. */
+        void touch(long nowNanos) {
+            touchedAt = nowNanos;
+        }
+
+        /** Takes the session out of the table; later calls do nothing. */
+        void close() {
+            if (table != null) {
+                table.remove(this, false);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key == null ? "untracked" : key.filename() + " from " + key.client();
+        }
+    }
+
+    private final long staleNanos;
+    private final ConcurrentHashMap<Key, Session> sessions = new ConcurrentHashMap<>();
+    // Guarded by itself: scheduled from the listener, expired by the sweeper thread
+    private final TimerWheel<Session> wheel = new TimerWheel<>(TICK_NANOS, WHEEL_SLOTS);
+    private Thread sweeper;
+
+    SessionTable(long staleNanos) {
+        this.staleNanos = staleNanos;
+    }
+
+    static SessionTable shared() {
+        return SHARED;
+    }
+
+    /**
+     * Opens a session for the RRQ or WRQ in {@code request}, which is left as it was.
+     * Returns null if the same client already has one open for the same file, in which
+     * case the request is a retransmission and should be dropped.
+     */
+    Session open(ByteBuffer request, InetSocketAddress client) {
+        ByteBuffer peek = request.duplicate();
+        if (peek.remaining() >= 2) {
+            peek.getShort();
+        }
+        Key key = new Key(client, TFTPCodec.readString(peek));
+        Session session = new Session(this, key);
+        if (sessions.putIfAbsent(key, session) != null) {
+            Transfer.METRICS.duplicateRequest();
+            LOG.fine(() -> "Dropping retransmitted request for " + key.filename() + " from " + client);
+            return null;
+        }
+        Transfer.METRICS.sessionOpened();
+        synchronized (wheel) {
+            wheel.schedule(session, session.touchedAt + staleNanos);
+            if (sweeper == null) {
+                sweeper = Thread.ofPlatform().daemon().name("tftp-sessions").start(this::sweep);
+            }
+        }
+        return session;
+    }
+
+    /** Sessions open right now. */
+    int size() {
+        return sessions.size();
+    }
+
+    private void remove(Session session, boolean expired) {
+        if (!sessions.remove(session.key, session)) return;
+        Transfer.METRICS.sessionClosed(expired);
+        if (expired) {
+            LOG.warning("Expired stale session for " + session);
+        }
+    }
+
+    private void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(TICK_NANOS));
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (wheel) {
+                wheel.expire(System.nanoTime(), this::onExpiry);
+            }
+        }
+    }
+
+    // Called with the wheel locked; a session that was touched since goes back on the wheel
+    private void onExpiry(Session session, long deadline) {
+        if (sessions.get(session.key) != session) return;
+        long due = session.touchedAt + staleNanos;
+        if (due > deadline) {
+            wheel.schedule(session, due);
+        } else {
+            remove(session, true);
+        }
+    }
+}
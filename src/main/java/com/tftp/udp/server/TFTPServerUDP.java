@@ -1,234 +1,115 @@
 package com.tftp.udp.server;
 
+import com.tftp.common.Logging;
+import com.tftp.common.MetricsEndpoint;
+import com.tftp.common.ServedRoot;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.DatagramTransport;
+
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.logging.Logger;
 
 public class TFTPServerUDP {
-    private static final int TFTP_PORT = 1069;
-    private static final int BUFFER_SIZE = 516;
-    private static final short OP_RRQ = 1;
-    private static final short OP_WRQ = 2;
-    private static final short OP_DATA = 3;
-    private static final short OP_ACK = 4;
-    private static final short OP_ERROR = 5;
-    private static final short MAX_BLOCK_SIZE = 512;
-
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();
-
+    private static final Logger LOG = Logger.getLogger(TFTPServerUDP.class.getName());
+
+    static final int TFTP_PORT = 1069;
+    static final int BUFFER_SIZE = 516;
+    static final int METRICS_PORT = 9169;
+    // Listening sockets on the port, 0 for one per core, and their receive buffer in bytes (0 leaves it alone)
+    private static final int LISTENERS = Integer.getInteger("tftp.udp.listeners", 1);
+    private static final int RECEIVE_BUFFER = Integer.getInteger("tftp.udp.receiveBuffer", 0);
+
+    /**
+     * Usage: {@code TFTPServerUDP [threads|virtual|nio] [event loops]}. The default engine
+     * runs every transfer on its own platform thread, {@code virtual} runs the same blocking
+     * handlers on virtual threads, and {@code nio} multiplexes all transfers over a few
+     * selector threads (one per core unless given). Metrics are served on
+     * {@code 127.0.0.1:9169/metrics} unless {@code -Dtftp.metrics.port} says otherwise.
+     * {@code -Dtftp.udp.impair} puts the blocking engines on a {@link com.tftp.udp.utils.LossyNetwork}.
+     * {@code -Dtftp.udp.listeners} spreads requests over that many sockets on the port, see
+     * {@link ListenerShards}, and {@code -Dtftp.udp.receiveBuffer} sizes the listening sockets' buffers.
+     * {@code -Dtftp.root} serves one directory only, see {@link ServedRoot}.
+     */
     public static void main(String[] args) throws IOException {
-        DatagramSocket serverSocket = new DatagramSocket(TFTP_PORT);
-        System.out.println("TFTP Server listening on port " + TFTP_PORT);
-
-        while (true) {
-            byte[] receiveData = new byte[BUFFER_SIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            serverSocket.receive(receivePacket);
-            threadPool.execute(new RequestHandler(receivePacket));
-        }
-    }
-
-    private static class RequestHandler implements Runnable {
-        private final DatagramPacket requestPacket;
-
-        RequestHandler(DatagramPacket packet) {
-            this.requestPacket = packet;
-        }
-
-        @Override
-        public void run() {
-            try {
-                ByteBuffer buffer = ByteBuffer.wrap(requestPacket.getData());
-                short opcode = buffer.getShort();
-                String filename = readNullTerminatedString(buffer);
-                String mode = readNullTerminatedString(buffer).toLowerCase();
-
-                if (!mode.equals("octet")) {
-                    sendError(requestPacket.getAddress(), requestPacket.getPort(), "Unsupported mode");
-                    return;
-                }
-
-                InetAddress clientAddress = requestPacket.getAddress();
-                int clientPort = requestPacket.getPort();
-
-                try (DatagramSocket transferSocket = new DatagramSocket()) {
-                    transferSocket.setSoTimeout(3000);
-
-                    if (opcode == OP_RRQ) {
-                        handleReadRequest(transferSocket, clientAddress, clientPort, filename);
-                    } else if (opcode == OP_WRQ) {
-                        handleWriteRequest(transferSocket, clientAddress, clientPort, filename);
-                    } else {
-                        sendError(clientAddress, clientPort, "Invalid operation");
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Error handling request: " + e.getMessage());
-            }
-        }
-
-        private void handleReadRequest(DatagramSocket socket, InetAddress clientAddress, int clientPort, String filename) throws IOException {
-            File file = new File(filename);
-            if (!file.exists() || !file.isFile()) {
-                sendError(clientAddress, clientPort, "File not found");
-                return;
-            }
-
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] fileBuffer = new byte[MAX_BLOCK_SIZE];
-                short blockNumber = 1;
-                final int MAX_RETRIES = 5;
-
-                while (true) {
-                    int bytesRead = fis.read(fileBuffer);
-                    if (bytesRead == -1) bytesRead = 0;
-
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    DataOutputStream dos = new DataOutputStream(baos);
-                    dos.writeShort(OP_DATA);
-                    dos.writeShort(blockNumber);
-                    dos.write(fileBuffer, 0, bytesRead);
-                    byte[] packetData = baos.toByteArray();
-
-                    DatagramPacket dataPacket = new DatagramPacket(packetData, packetData.length, clientAddress, clientPort);
-
-                    int retries = 0;
-                    boolean ackReceived = false;
-
-                    while (!ackReceived && retries < MAX_RETRIES) {
-                        try {
-                            socket.send(dataPacket);
-                            ackReceived = waitForAck(socket, blockNumber);
-                        } catch (SocketTimeoutException e) {
-                            retries++;
-                            System.out.println("[SERVER] Retrying DATA packet for block " + blockNumber + " (" + retries + "/" + MAX_RETRIES + ")");
-                        }
-                    }
-
-                    if (!ackReceived) {
-                        throw new IOException("Max retries exceeded for block " + blockNumber);
-                    }
-
-                    if (bytesRead < MAX_BLOCK_SIZE) break;
-                    blockNumber++;
-                }
-            }
-        }
-
-        private void handleWriteRequest(DatagramSocket socket, InetAddress clientAddress, int clientPort, String filename) throws IOException {
-            System.out.println("[SERVER] Handling WRQ for file: " + filename);
-
-            // Extract the filename from the path (if any)
-            String simpleFilename = new File(filename).getName();
-
-            // Define the upload directory
-            File uploadDir = new File("D:/Courses/New-Tasks/JAVA TFTP Task/TFTP-Implementation/TFTP-Implementation/tftp-uploads/");
-            if (!uploadDir.exists()) {
-                uploadDir.mkdirs(); // Create the upload directory if it doesn't exist
-            }
-
-            // Create the file in the upload directory
-            File file = new File(uploadDir, simpleFilename);
-            if (file.exists()) {
-                System.out.println("[SERVER] File already exists: " + file.getAbsolutePath());
-                sendError(clientAddress, clientPort, "File already exists");
-                return;
+        Logging.configure();
+        MetricsEndpoint.start(METRICS_PORT);
+        ServedRoot.shared(); // Indexed before the first request rather than during it
+        String engine = args.length > 0 ? args[0] : "threads";
+        if (engine.equals("nio")) {
+            if (System.getProperty("tftp.udp.impair") != null) {
+                LOG.warning("The nio engine runs on real sockets only; ignoring tftp.udp.impair");
             }
-
-            System.out.println("[SERVER] Sending ACK for block 0");
-            sendAck(socket, clientAddress, clientPort, (short) 0);
-
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                short expectedBlock = 1;
-
-                while (true) {
-                    byte[] receiveData = new byte[BUFFER_SIZE];
-                    DatagramPacket dataPacket = new DatagramPacket(receiveData, receiveData.length);
-                    System.out.println("[SERVER] Waiting for DATA packet for block " + expectedBlock);
-                    socket.receive(dataPacket);
-
-                    System.out.println("[SERVER] Received DATA packet from " + dataPacket.getAddress() + ":" + dataPacket.getPort());
-
-                    ByteBuffer buffer = ByteBuffer.wrap(dataPacket.getData());
-                    short opcode = buffer.getShort();
-
-                    if (opcode == OP_ERROR) {
-                        String errorMsg = readNullTerminatedString(buffer);
-                        throw new IOException("Server error: " + errorMsg);
-                    }
-
-                    if (opcode != OP_DATA) {
-                        throw new IOException("Unexpected opcode: " + opcode);
-                    }
-
-                    short blockNumber = buffer.getShort();
-                    if (blockNumber != expectedBlock) {
-                        throw new IOException("Unexpected block number: " + blockNumber);
-                    }
-
-                    int dataLength = dataPacket.getLength() - 4;
-                    fos.write(dataPacket.getData(), 4, dataLength);
-
-                    System.out.println("[SERVER] Sending ACK for block " + blockNumber);
-                    sendAck(socket, clientAddress, clientPort, blockNumber);
-
-                    if (dataLength < MAX_BLOCK_SIZE) break;
-                    expectedBlock++;
+            int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            EventLoopServer server = new EventLoopServer(TFTP_PORT, loops);
+            if (listenerCount() > 1 || RECEIVE_BUFFER > 0) {
+                try (ListenerShards shards = openShards()) {
+                    LOG.info("TFTP Server (event loop x" + loops + ") listening on port " + TFTP_PORT
+                            + " with " + shards.shards() + " listeners");
+                    server.serve(shards);
                 }
+            } else {
+                server.run();
             }
-            System.out.println("[SERVER] File upload completed: " + file.getAbsolutePath());
+            return;
         }
 
-
-        private boolean waitForAck(DatagramSocket socket, short blockNumber) throws IOException {
-            try {
-                byte[] ackBuffer = new byte[4];
-                DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-                socket.receive(ackPacket);
-
-                ByteBuffer buffer = ByteBuffer.wrap(ackPacket.getData());
-                return buffer.getShort() == OP_ACK && buffer.getShort() == blockNumber;
-            } catch (SocketTimeoutException e) {
-                return false;
+        ExecutorService threadPool = engine.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+
+        DatagramNetwork network = DatagramNetwork.configured();
+        String impaired = network == DatagramNetwork.SYSTEM ? "" : " on an impaired network: " + network;
+        // Requests arrive on real sockets either way; the network only carries the transfers
+        if (listenerCount() > 1 || RECEIVE_BUFFER > 0) {
+            try (ListenerShards shards = openShards()) {
+                LOG.info("TFTP Server (" + engine + ") listening on port " + TFTP_PORT + " with " + shards.shards()
+                        + " listeners" + impaired);
+                serve(shards, network, threadPool);
             }
+            return;
         }
+        DatagramTransport listener = network.bind(new InetSocketAddress(TFTP_PORT));
+        LOG.info("TFTP Server (" + engine + ") listening on port " + TFTP_PORT + impaired);
+        serve(listener, network, threadPool);
+    }
 
-        private void sendAck(DatagramSocket socket, InetAddress clientAddress, int clientPort, short blockNumber) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeShort(OP_ACK);
-            dos.writeShort(blockNumber);
-            byte[] ackData = baos.toByteArray();
-
-            DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, clientAddress, clientPort);
-            socket.send(ackPacket);
-        }
+    private static int listenerCount() {
+        return LISTENERS > 0 ? LISTENERS : Runtime.getRuntime().availableProcessors();
+    }
 
-        private void sendError(InetAddress clientAddress, int clientPort, String message) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeShort(OP_ERROR);
-            dos.writeShort(0); // Error code
-            dos.write(message.getBytes());
-            dos.writeByte(0);
-            byte[] errorData = baos.toByteArray();
+    private static ListenerShards openShards() throws IOException {
+        return ListenerShards.open(TFTP_PORT, listenerCount(), RECEIVE_BUFFER);
+    }
 
-            try (DatagramSocket socket = new DatagramSocket()) {
-                DatagramPacket errorPacket = new DatagramPacket(errorData, errorData.length, clientAddress, clientPort);
-                socket.send(errorPacket);
+    /**
+     * Receives requests on {@code listener} forever, running each transfer on
+     * {@code executor} with a transport of its own from {@code network}. A request
+     * repeated while the first copy is still being served is dropped.
+     */
+    public static void serve(DatagramTransport listener, DatagramNetwork network, Executor executor) throws IOException {
+        while (true) {
+            ByteBuffer request = ByteBuffer.allocate(BUFFER_SIZE);
+            InetSocketAddress client = (InetSocketAddress) listener.receive(request, 0);
+            SessionTable.Session session = SessionTable.shared().open(request, client);
+            if (session != null) {
+                executor.execute(new RequestHandler(request, client, network, session));
             }
         }
+    }
 
-        private String readNullTerminatedString(ByteBuffer buffer) {
-            StringBuilder sb = new StringBuilder();
-            while (buffer.hasRemaining()) {
-                char c = (char) buffer.get();
-                if (c == 0) break;
-                sb.append(c);
+    /** As above, but receiving on every shard's loop; each request gets a buffer of its own. */
+    static void serve(ListenerShards shards, DatagramNetwork network, Executor executor) throws IOException {
+        shards.serve((request, client) -> {
+            SessionTable.Session session = SessionTable.shared().open(request, client);
+            if (session != null) {
+                ByteBuffer copy = ByteBuffer.allocate(request.remaining()).put(request).flip();
+                executor.execute(new RequestHandler(copy, client, network, session));
             }
-            return sb.toString();
-        }
+        });
     }
-}
\ No newline at end of file
+}
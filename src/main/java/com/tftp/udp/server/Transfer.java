@@ -0,0 +1,271 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.AdmissionControl;
+import com.tftp.common.TFTPCodec;
+import com.tftp.common.TransferMetrics;
+import com.tftp.udp.utils.RttEstimator;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protocol state of a single RRQ or WRQ transfer, independent of how packets are
+ * moved. The blocking {@link RequestHandler} and the selector-based
+ * {@link EventLoopServer} both drive the same transfer objects: they call
+ * {@link #start}, feed every packet from the client to {@link #onPacket} and call
+ * {@link #onTimeout} once {@link #deadline()} has passed, until {@link #isDone()}.
+ * The retransmission timeout follows the transfer's own {@link RttEstimator}.
+ *
+ * <p>Every transfer reports to the UDP server's {@link TransferMetrics} from the
+ * moment it is attached until {@link #close}, whichever engine runs it. A transfer that
+ * went through {@link AdmissionControl} holds its permit until then as well, and is
+ * shaped by it: data that may not go out yet is held back until a timeout, see {@link #hold}.
+ * Its {@link SessionTable} session, if any, stays open until then too.
+ *
+ * <p>An engine that runs many transfers on one thread marks them with {@link #shareThread};
+ * such a transfer never waits for file I/O running elsewhere, and {@link #pause}s instead.
+ */
+abstract class Transfer {
+    static final int MAX_RETRIES = 5;
+    // How soon a paused transfer looks again whether its file I/O has caught up
+    private static final long IO_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    static final TransferMetrics METRICS = TransferMetrics.forServer("udp");
+
+    /** Where a transfer writes its outgoing packets; the buffer is only valid during the call. */
+    interface PacketSink {
+        void send(ByteBuffer packet) throws IOException;
+    }
+
+    protected final String filename;
+    protected final int blockSize;
+    protected final int windowSize;
+    protected final ByteBuffer oack;
+    protected PacketSink sink;
+    protected int retries;
+    protected final RttEstimator rtt = new RttEstimator();
+
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE);
+    private final long requestedAt = System.nanoTime();
+    private long deadline;
+    private boolean done;
+    private SocketAddress peer;
+    // Progress, read racily when listing active transfers; a slightly stale value is fine there
+    private long bytesMoved;
+    private long retransmitted;
+    private boolean firstByteMoved;
+    // Error type reported to the metrics if the transfer ends unfinished
+    private String failure;
+    private AdmissionControl.Permit permit = AdmissionControl.UNLIMITED;
+    private SessionTable.Session session = SessionTable.UNTRACKED;
+    // Whether data is held back by the rate limit, or for file I/O, until the deadline
+    private boolean held;
+    // Whether other transfers run on the same thread, which must then never wait on the disk
+    private boolean sharedThread;
+
+    // Owned by the event loop: deadline of this transfer's live timer wheel entry
+    long wheelDeadline = Long.MAX_VALUE;
+
+    Transfer(String filename, int blockSize, int windowSize, ByteBuffer oack) {
+        this.filename = filename;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        this.oack = oack;
+    }
+
+    final void start(PacketSink sink, SocketAddress peer) throws IOException {
+        attach(sink, peer);
+        start();
+    }
+
+    /** Sets the sink without starting, for transfers whose progress is driven from outside. */
+    final void attach(PacketSink sink, SocketAddress peer) {
+        this.peer = peer;
+        this.sink = packet -> {
+            sink.send(packet);
+            METRICS.packetSent();
+        };
+        METRICS.transferStarted(this);
+    }
+
+    /** Makes the transfer keep to {@code permit}'s limits, and give it back when closed. */
+    final void admitted(AdmissionControl.Permit permit) {
+        this.permit = permit;
+    }
+
+    /** Marks the transfer as run on a thread it shares with others; call before {@link #start}. */
+    final void shareThread() {
+        sharedThread = true;
+    }
+
+    /** Keeps {@code session} alive while the transfer makes progress, and closes it with the transfer. */
+    final void tracked(SessionTable.Session session) {
+        this.session = session;
+    }
+
+    protected abstract void start() throws IOException;
+
+    abstract void onPacket(ByteBuffer packet) throws IOException;
+
+    abstract void onTimeout() throws IOException;
+
+    /** Largest packet the client may legitimately send during this transfer. */
+    abstract int receiveBufferSize();
+
+    /** Socket receive buffer this transfer needs so that the client's packets are not dropped. */
+    int socketBufferSize() {
+        return receiveBufferSize();
+    }
+
+    /** Releases the transfer's file and buffers; called exactly once, however the transfer ended. */
+    final void close() {
+        if (!done) {
+            METRICS.error(failure != null ? failure : "io_error");
+        }
+        METRICS.transferFinished(this, done, retransmitted);
+        permit.close();
+        session.close();
+        release();
+    }
+
+    protected void release() {
+    }
+
+    /** Short name of the request this transfer serves, such as {@code RRQ}. */
+    abstract String kind();
+
+    long deadline() {
+        return deadline;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /** Current round-trip estimates of this transfer. */
+    RttEstimator rtt() {
+        return rtt;
+    }
+
+    protected void armTimer() {
+        long now = System.nanoTime();
+        deadline = now + rtt.rtoNanos();
+        session.touch(now);
+    }
+
+    /**
+     * Takes {@code bytes} from the rate limit, returning false if they may go out now.
+     * Otherwise the transfer is held: the deadline becomes the moment they may, and the
+     * subclass sends nothing until its {@link #onTimeout} finds {@link #resume} true.
+     */
+    protected boolean hold(long bytes) {
+        long waitNanos = permit.reserve(bytes);
+        if (waitNanos <= 0) return false;
+        held = true;
+        deadline = System.nanoTime() + waitNanos;
+        return true;
+    }
+
+    protected boolean held() {
+        return held;
+    }
+
+    /** Whether the transfer may wait on file I/O running on other threads, see {@link #pause}. */
+    protected boolean mayBlock() {
+        return !sharedThread;
+    }
+
+    /**
+     * Holds the transfer for a moment because file I/O it would otherwise wait for is still
+     * running. As with {@link #hold}, the subclass sends nothing until its {@link #onTimeout}
+     * finds {@link #resume} true, and then tries again.
+     */
+    protected void pause() {
+        held = true;
+        deadline = System.nanoTime() + IO_POLL_NANOS;
+    }
+
+    /** Ends a hold; true if the transfer was held, so that the timeout is not a lost packet. */
+    protected boolean resume() {
+        boolean wasHeld = held;
+        held = false;
+        return wasHeld;
+    }
+
+    protected void finish() {
+        done = true;
+    }
+
+    /** Makes a finished transfer resumable again, as a multicast transfer is for each new master. */
+    protected void reopen() {
+        done = false;
+        retries = 0;
+    }
+
+    protected void countRetry(String what) throws IOException {
+        if (++retries > MAX_RETRIES) {
+            failure = "timeout";
+            throw new IOException("Max retries exceeded for " + what);
+        }
+    }
+
+    protected void countRetransmissions(int packets) {
+        retransmitted += packets;
+        METRICS.retransmitted(packets);
+    }
+
+    /** Feeds a clean round-trip sample to the timer and to the ACK RTT histogram. */
+    protected void sampleRtt(long rttNanos) {
+        rtt.sample(rttNanos);
+        METRICS.ackRtt(rttNanos);
+    }
+
+    /** Counts file data that went out or came in for the first time. */
+    protected void countData(int bytes, boolean sent) {
+        if (!firstByteMoved) {
+            firstByteMoved = true;
+            METRICS.timeToFirstByte(System.nanoTime() - requestedAt);
+        }
+        bytesMoved += bytes;
+        if (sent) {
+            METRICS.dataSent(bytes);
+        } else {
+            METRICS.dataReceived(bytes);
+        }
+    }
+
+    protected void fail(String type, String message) throws IOException {
+        failure = type;
+        throw new IOException(message);
+    }
+
+    /** Tells the client why the transfer cannot go on, then fails it. */
+    protected void abort(short errorCode, String type, String message) throws IOException {
+        sink.send(TFTPCodec.encodeError(ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + message.length() + 1), errorCode, message));
+        fail(type, message);
+    }
+
+    protected void sendAck(long blockNumber) throws IOException {
+        sink.send(TFTPCodec.encodeAck(ackBuffer, (int) blockNumber));
+    }
+
+    protected void sendOack() throws IOException {
+        sink.send(oack.rewind());
+    }
+
+    protected void checkForError(short opcode, ByteBuffer packet) throws IOException {
+        if (opcode == TFTPCodec.OP_ERROR) {
+            fail("client_error", "Client error: " + TFTPCodec.errorMessage(packet));
+        }
+    }
+
+    /** Peer, file, progress, rate, round trip and retransmissions, as listed for active transfers. */
+    @Override
+    public String toString() {
+        long elapsedNanos = Math.max(1, System.nanoTime() - requestedAt);
+        long bytes = bytesMoved;
+        return String.format("%s %s %s: %d bytes in %.1f s (%.2f MB/s), %s, %d retransmitted",
+                kind(), filename, peer, bytes, elapsedNanos / 1e9, bytes * 1e3 / elapsedNanos, rtt, retransmitted);
+    }
+}
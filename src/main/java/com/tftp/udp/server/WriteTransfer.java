@@ -0,0 +1,272 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.ServedRoot;
+import com.tftp.common.TFTPCodec;
+import com.tftp.common.WriteBehind;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server side of a WRQ: acknowledges the last block of every window and reports a
+ * gap once by re-acknowledging the last block received in order. Blocks are written
+ * at their offset, into a file already extended to the announced tsize if any, by a
+ * {@link WriteBehind} stage so that the disk is not in the path of every ACK. The
+ * final ACK is only sent once the whole file is on disk, and a write that fails is
+ * reported to the client with an ERROR. The rate limit is kept by holding back the ACK
+ * that ends a window. On a thread shared with other transfers, so is a disk that falls
+ * behind, and the final sync runs elsewhere while the transfer polls for it.
+ */
+class WriteTransfer extends Transfer {
+    private static final Logger LOG = Logger.getLogger(WriteTransfer.class.getName());
+    private static final ByteBuffer ONE_BYTE = ByteBuffer.allocate(1);
+    // Less room than this left after a failed write counts as a full disk
+    private static final long DISK_FULL_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final WriteBehind writer;
+    private long written;
+    private long received;
+    private int sinceAck;
+    // Bytes received since the last ACK, charged to the rate limit before acknowledging them
+    private long sinceAckBytes;
+    private boolean gapReported;
+    // Time of the last fresh ACK, 0 once sampled or after it was repeated (Karn's rule)
+    private long ackSentAt;
+    // Storing of the last block on another thread, when this one may not wait for the disk
+    private CompletableFuture<Void> storing;
+
+    WriteTransfer(String filename, File file, int blockSize, int windowSize, long transferSize, ByteBuffer oack)
+            throws IOException {
+        super(filename, blockSize, windowSize, oack);
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            preallocate(channel, transferSize);
+        } catch (IOException e) {
+            channel.close();
+            file.delete();
+            throw e;
+        }
+        this.writer = new WriteBehind(channel, filename);
+    }
+
+    /**
+     * Extends the file to its final size in one step instead of one block at a time. Java
+     * has no portable fallocate, so on most file systems this reserves the length but not
+     * the blocks; the file is trimmed to what actually arrived when the transfer ends.
+     */
+    static void preallocate(FileChannel channel, long size) throws IOException {
+        if (size > 0) {
+            channel.write(ONE_BYTE.duplicate(), size - 1);
+        }
+    }
+
+    @Override
+    protected void start() throws IOException {
+        if (!mayBlock()) {
+            writer.neverWait();
+        }
+        acknowledgeRequest();
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet) throws IOException {
+        METRICS.packetReceived();
+        short opcode = TFTPCodec.opcode(packet);
+        checkForError(opcode, packet);
+        if (opcode != TFTPCodec.OP_DATA) {
+            fail("illegal_operation", "Unexpected opcode: " + opcode);
+        }
+
+        if (TFTPCodec.blockNumber(packet) != ((received + 1) & 0xFFFF)) {
+            // Out of order or duplicate: report the last good block once per gap so the
+            // client restarts the window from there. Lock-step peers get an ACK every time.
+            // An ACK held back by the rate limit answers the gap when it goes out.
+            if (!held() && (!gapReported || windowSize == 1)) {
+                sendAck(received);
+                countRetransmissions(1);
+                ackSentAt = 0;
+                sinceAck = 0;
+                gapReported = windowSize > 1;
+            }
+            return;
+        }
+
+        packet.position(packet.position() + TFTPCodec.HEADER_SIZE);
+        int dataLength = packet.remaining();
+        try {
+            writer.write(packet, written);
+        } catch (IOException e) {
+            abortOnDiskError(e);
+        }
+        written += dataLength;
+        sinceAckBytes += dataLength;
+        received++;
+        countData(dataLength, false);
+        retries = 0;
+        if (ackSentAt != 0) {
+            sampleRtt(System.nanoTime() - ackSentAt);
+            ackSentAt = 0;
+        } else {
+            rtt.resetBackoff();
+        }
+        gapReported = false;
+        armTimer();
+
+        if (dataLength < blockSize) {
+            // The final ACK tells the client the file is stored, so it has to be on disk first
+            sinceAck = 0;
+            sinceAckBytes = 0;
+            if (mayBlock()) {
+                try {
+                    writer.drain();
+                    channel.truncate(written);
+                    writer.finish();
+                } catch (IOException e) {
+                    abortOnDiskError(e);
+                }
+                complete();
+            } else {
+                storing = writer.finishAsync(written);
+                pause();
+            }
+            return;
+        }
+        if (++sinceAck == windowSize) {
+            // The rate limit slows the client down by holding the ACK it waits for
+            boolean held = hold(sinceAckBytes);
+            sinceAck = 0;
+            sinceAckBytes = 0;
+            if (!held) {
+                acknowledgeWindow();
+            }
+        }
+    }
+
+    @Override
+    void onTimeout() throws IOException {
+        if (resume()) {
+            if (storing == null) {
+                acknowledgeWindow();
+            } else if (!storing.isDone()) {
+                pause();
+            } else {
+                try {
+                    storing.join();
+                } catch (CompletionException e) {
+                    abortOnDiskError((IOException) e.getCause());
+                }
+                complete();
+            }
+            return;
+        }
+        countRetry("block " + (received + 1));
+        rtt.backoff();
+        countRetransmissions(1);
+        // Re-acknowledge so the client rewinds to the first missing block
+        if (received == 0) {
+            acknowledgeRequest();
+        } else {
+            sendAck(received);
+            armTimer();
+        }
+        ackSentAt = 0;
+        sinceAck = 0;
+        gapReported = false;
+    }
+
+    @Override
+    int receiveBufferSize() {
+        return TFTPCodec.HEADER_SIZE + blockSize;
+    }
+
+    @Override
+    int socketBufferSize() {
+        // A whole window may arrive before we get to read any of it, and the kernel charges
+        // each datagram's bookkeeping against the buffer too, so leave room for twice that
+        return 2 * windowSize * receiveBufferSize();
+    }
+
+    @Override
+    String kind() {
+        return "WRQ";
+    }
+
+    @Override
+    protected void release() {
+        if (storing != null && !storing.isDone()) {
+            // Not under the feet of the thread still storing the file
+            storing.whenComplete((ignored, e) -> closeFile());
+        } else {
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        writer.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warning("Error closing " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+        // A file cut short, possibly already at its full announced size, would otherwise pass
+        // for a finished upload and block the client's retry with FILE_EXISTS
+        if (!isDone() && !file.delete() && file.exists()) {
+            LOG.warning("Could not remove incomplete upload " + file.getAbsolutePath());
+        }
+    }
+
+    private void abortOnDiskError(IOException e) throws IOException {
+        String message = e.getMessage() != null ? e.getMessage() : e.toString();
+        // Disk full or allocation exceeded, in the words of RFC 1350. The exception does not
+        // tell in any portable way, so the file system is asked whether the room ran out.
+        if (file.getUsableSpace() < DISK_FULL_BYTES) {
+            abort(TFTPCodec.ERR_DISK_FULL, "disk_full", "Disk full writing " + filename + ": " + message);
+        }
+        abort(TFTPCodec.ERR_UNDEFINED, "io_error", "Error writing " + filename + ": " + message);
+    }
+
+    // Acknowledges the last block once the whole file is on disk
+    private void complete() throws IOException {
+        acknowledgeWindow();
+        finish();
+        // Downloadable at once if it landed in the served root, without waiting for the watcher
+        ServedRoot.shared().refresh(file.toPath());
+        LOG.info(() -> "File upload completed: " + file.getAbsolutePath() + " (" + this + ")");
+    }
+
+    private void acknowledgeWindow() throws IOException {
+        if (!mayBlock() && writer.backlogged()) {
+            // The disk is behind: the client waits for this ACK until it catches up
+            pause();
+            return;
+        }
+        if (LOG.isLoggable(Level.FINEST)) {
+            LOG.finest("Sending ACK for block " + received + " of " + filename);
+        }
+        sendAck(received);
+        ackSentAt = System.nanoTime();
+        armTimer();
+    }
+
+    private void acknowledgeRequest() throws IOException {
+        if (oack != null) {
+            LOG.fine(() -> "Sending OACK for " + filename + " (block size " + blockSize + ", window size " + windowSize + ")");
+            sendOack();
+        } else {
+            LOG.fine(() -> "Sending ACK for block 0 of " + filename);
+            sendAck(0);
+        }
+        ackSentAt = retries == 0 ? System.nanoTime() : 0;
+        armTimer();
+    }
+}
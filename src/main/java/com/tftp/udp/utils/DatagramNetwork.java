@@ -0,0 +1,41 @@
+package com.tftp.udp.utils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Where {@link DatagramTransport}s come from. {@link #SYSTEM} opens real sockets;
+ * {@link #configured()} is what the UDP client and server use unless told otherwise,
+ * which is an impaired network when {@code -Dtftp.udp.impair} is set (see
+ * {@link LossyNetwork#parse}).
+ */
+public interface DatagramNetwork {
+    DatagramNetwork SYSTEM = new DatagramNetwork() {
+        @Override
+        public DatagramTransport open() throws IOException {
+            return SocketTransport.open(null);
+        }
+
+        @Override
+        public DatagramTransport bind(SocketAddress local) throws IOException {
+            return SocketTransport.open(local);
+        }
+
+        @Override
+        public String toString() {
+            return "system";
+        }
+    };
+
+    /** A transport on an ephemeral port. */
+    DatagramTransport open() throws IOException;
+
+    /** A transport bound to {@code local}, such as a server's well-known port. */
+    DatagramTransport bind(SocketAddress local) throws IOException;
+
+    /** The system network, impaired as {@code -Dtftp.udp.impair} asks if it is set. */
+    static DatagramNetwork configured() {
+        String impair = System.getProperty("tftp.udp.impair");
+        return impair == null || impair.isBlank() ? SYSTEM : LossyNetwork.parse(SYSTEM, impair);
+    }
+}
@@ -0,0 +1,46 @@
+package com.tftp.udp.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * One UDP endpoint as the blocking client and server see it: send a datagram, wait a
+ * while for the next one. {@link SocketTransport} puts it on a real socket; a
+ * {@link LossyNetwork} makes the path lose, delay, duplicate and reorder packets on
+ * the way. Only heap buffers are passed in. A transport is used by one thread at a time.
+ */
+public interface DatagramTransport extends Closeable {
+
+    /** Sends the packet's remaining bytes to {@code target}, or to the connected peer if it is null. */
+    void send(ByteBuffer packet, SocketAddress target) throws IOException;
+
+    /**
+     * Receives one datagram into {@code buffer}, cut short at its limit, and returns who
+     * sent it; the buffer is left ready to read from 0 to the datagram's length. A
+     * connected transport only takes packets from its peer. Waits at most
+     * {@code timeoutMillis} (0 for ever), then throws {@link SocketTimeoutException}.
+     */
+    SocketAddress receive(ByteBuffer buffer, int timeoutMillis) throws IOException;
+
+    /** Takes only packets from {@code peer} from now on, and sends to it by default. */
+    void connect(SocketAddress peer) throws IOException;
+
+    void disconnect();
+
+    /** The connected peer, or null. */
+    SocketAddress remoteAddress();
+
+    SocketAddress localAddress();
+
+    /** Grows the receive buffer to at least {@code bytes}, as far as the system allows. */
+    void reserveReceiveBuffer(int bytes) throws IOException;
+
+    /** Throws away whatever has been received and not read yet. */
+    void discardPending() throws IOException;
+
+    @Override
+    void close();
+}
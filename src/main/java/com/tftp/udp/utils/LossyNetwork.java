@@ -0,0 +1,312 @@
+package com.tftp.udp.utils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A network that loses, delays, duplicates and reorders packets, like {@code tc netem}
+ * but inside the JVM and without root. It wraps another network and impairs what its
+ * transports send; what they receive passes untouched, so with both ends on a lossy
+ * network each direction is impaired once.
+ * <p>
+ * Every packet is dropped with probability {@code loss}. One that gets through is
+ * delayed by {@code latency} give or take up to {@code jitter} milliseconds, though
+ * never past a packet sent before it, as on a single path. A share {@code reorder}
+ * leaves the line and is held back a further {@code reorderDelay} milliseconds, so
+ * that later packets overtake it, and a share {@code duplicate} is sent twice. Delayed
+ * packets are sent from a timer thread; undelayed ones go out at once.
+ * <p>
+ * The n-th packet of the n-th transport opened always meets the same fate for a given
+ * seed. Which packets a run sends still depends on timing, as retransmissions follow
+ * the clock, so runs repeat closely rather than exactly.
+ */
+public class LossyNetwork implements DatagramNetwork {
+
+    /** How a path misbehaves. Probabilities are from 0 to 1, times in milliseconds. */
+    public record Impairment(double loss, int latency, int jitter, double duplicate, double reorder,
+                             int reorderDelay) {
+        public static final Impairment NONE = new Impairment(0, 0, 0, 0, 0, 0);
+
+        public Impairment {
+            checkProbability("loss", loss);
+            checkProbability("duplicate", duplicate);
+            checkProbability("reorder", reorder);
+            if (latency < 0 || jitter < 0 || reorderDelay < 0) {
+                throw new IllegalArgumentException("Delays cannot be negative");
+            }
+        }
+
+        private static void checkProbability(String name, double value) {
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException(name + " must be between 0 and 1: " + value);
+            }
+        }
+    }
+
+    private final DatagramNetwork network;
+    private final Impairment impairment;
+    private final long seed;
+    private final AtomicLong transports = new AtomicLong();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+    // Started with the first delayed packet
+    private volatile ScheduledExecutorService timer;
+
+    public LossyNetwork(DatagramNetwork network, Impairment impairment, long seed) {
+        this.network = network;
+        this.impairment = impairment;
+        this.seed = seed;
+    }
+
+    /**
+     * Parses a comma-separated setting such as
+     * {@code loss=0.02,latency=20,jitter=5,duplicate=0.001,reorder=0.01,reorderDelay=10,seed=7}.
+     * Anything left out is 0, except {@code reorderDelay}, which defaults to 5 ms, and
+     * {@code seed}, which defaults to 1.
+     */
+    public static LossyNetwork parse(DatagramNetwork network, String spec) {
+        double loss = 0, duplicate = 0, reorder = 0;
+        int latency = 0, jitter = 0, reorderDelay = 5;
+        long seed = 1;
+        for (String setting : spec.split(",")) {
+            if (setting.isBlank()) continue;
+            String[] pair = setting.split("=", 2);
+            if (pair.length != 2) throw new IllegalArgumentException("Expected name=value: " + setting);
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "loss" -> loss = Double.parseDouble(value);
+                case "latency" -> latency = Integer.parseInt(value);
+                case "jitter" -> jitter = Integer.parseInt(value);
+                case "duplicate" -> duplicate = Double.parseDouble(value);
+                case "reorder" -> reorder = Double.parseDouble(value);
+                case "reorderDelay" -> reorderDelay = Integer.parseInt(value);
+                case "seed" -> seed = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown impairment: " + pair[0].trim());
+            }
+        }
+        return new LossyNetwork(network, new Impairment(loss, latency, jitter, duplicate, reorder, reorderDelay), seed);
+    }
+
+    @Override
+    public DatagramTransport open() throws IOException {
+        return new LossyTransport(network.open(), random());
+    }
+
+    @Override
+    public DatagramTransport bind(SocketAddress local) throws IOException {
+        return new LossyTransport(network.bind(local), random());
+    }
+
+    public Impairment impairment() {
+        return impairment;
+    }
+
+    /** Packets handed to the network, dropped ones included. */
+    public long sent() {
+        return sent.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long duplicated() {
+        return duplicated.sum();
+    }
+
+    public long reordered() {
+        return reordered.sum();
+    }
+
+    @Override
+    public String toString() {
+        return impairment + " seed " + seed + " over " + network;
+    }
+
+    // Each transport draws from its own sequence, so one busy transfer does not shift another's
+    private Random random() {
+        return new Random(seed * 0x9E3779B97F4A7C15L + transports.getAndIncrement());
+    }
+
+    private ScheduledExecutorService timer() {
+        ScheduledExecutorService current = timer;
+        if (current == null) {
+            synchronized (this) {
+                current = timer;
+                if (current == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                            Thread.ofPlatform().daemon().name("lossy-network").factory());
+                    executor.setRemoveOnCancelPolicy(true);
+                    timer = current = executor;
+                }
+            }
+        }
+        return current;
+    }
+
+    private record Queued(ByteBuffer packet, SocketAddress to) {
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        return ByteBuffer.wrap(Arrays.copyOfRange(packet.array(),
+                packet.arrayOffset() + packet.position(), packet.arrayOffset() + packet.limit()));
+    }
+
+    private final class LossyTransport implements DatagramTransport {
+        private final DatagramTransport transport;
+        private final Random random;
+        // Packets still on their way, and whether the owner is done with the transport. The
+        // socket outlives close() until they are out, like packets already on the wire.
+        private int inFlight;
+        private boolean closed;
+        // Delayed packets that keep their place in line. Each has a timer task, but a task
+        // sends whatever is at the head, so packets due at the same moment cannot swap.
+        private final ArrayDeque<Queued> line = new ArrayDeque<>();
+        // When the last packet in line goes out; only the owner sends
+        private long lastDue = Long.MIN_VALUE;
+
+        LossyTransport(DatagramTransport transport, Random random) {
+            this.transport = transport;
+            this.random = random;
+        }
+
+        @Override
+        public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+            sent.increment();
+            // Every packet draws the same numbers whatever happens to it, so fates stay aligned
+            boolean drop = random.nextDouble() < impairment.loss();
+            boolean duplicate = random.nextDouble() < impairment.duplicate();
+            boolean reorder = random.nextDouble() < impairment.reorder();
+            long delay = delayNanos(reorder);
+            long copyDelay = delayNanos(false);
+            if (drop) {
+                dropped.increment();
+                return;
+            }
+            // The peer is fixed now, in case the transport is disconnected before a delayed send
+            SocketAddress to = target != null ? target : transport.remoteAddress();
+            if (reorder) {
+                reordered.increment();
+                outOfLine(packet, to, delay);
+            } else {
+                inLine(packet, to, delay);
+            }
+            if (duplicate) {
+                duplicated.increment();
+                inLine(packet, to, copyDelay);
+            }
+        }
+
+        private long delayNanos(boolean reorder) {
+            double jitter = impairment.jitter() * (2 * random.nextDouble() - 1);
+            double millis = Math.max(0, impairment.latency() + jitter);
+            if (reorder) millis += impairment.reorderDelay();
+            return (long) (millis * 1_000_000);
+        }
+
+        // Jitter varies the delay but, as on one path, never lets a packet pass an earlier one
+        private void inLine(ByteBuffer packet, SocketAddress to, long delayNanos) throws IOException {
+            long now = System.nanoTime();
+            lastDue = Math.max(lastDue, now + delayNanos);
+            synchronized (this) {
+                if (lastDue <= now && line.isEmpty()) {
+                    transport.send(packet, to);
+                    return;
+                }
+                line.add(new Queued(copy(packet), to));
+                inFlight++;
+            }
+            timer().schedule(() -> {
+                Queued head;
+                synchronized (this) {
+                    head = line.poll();
+                }
+                sendLater(head.packet(), head.to());
+            }, lastDue - now, TimeUnit.NANOSECONDS);
+        }
+
+        private void outOfLine(ByteBuffer packet, SocketAddress to, long delayNanos) throws IOException {
+            if (delayNanos == 0) {
+                transport.send(packet, to);
+                return;
+            }
+            ByteBuffer copy = copy(packet);
+            synchronized (this) {
+                inFlight++;
+            }
+            timer().schedule(() -> sendLater(copy, to), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void sendLater(ByteBuffer packet, SocketAddress to) {
+            try {
+                transport.send(packet, to);
+            } catch (IOException e) {
+                // Lost, as it would be on a real network
+            } finally {
+                landed();
+            }
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer buffer, int timeoutMillis) throws IOException {
+            return transport.receive(buffer, timeoutMillis);
+        }
+
+        @Override
+        public void connect(SocketAddress peer) throws IOException {
+            transport.connect(peer);
+        }
+
+        @Override
+        public void disconnect() {
+            transport.disconnect();
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return transport.remoteAddress();
+        }
+
+        @Override
+        public SocketAddress localAddress() {
+            return transport.localAddress();
+        }
+
+        @Override
+        public void reserveReceiveBuffer(int bytes) throws IOException {
+            transport.reserveReceiveBuffer(bytes);
+        }
+
+        @Override
+        public void discardPending() throws IOException {
+            transport.discardPending();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                if (inFlight > 0) return;
+            }
+            transport.close();
+        }
+
+        private void landed() {
+            synchronized (this) {
+                if (--inFlight > 0 || !closed) return;
+            }
+            transport.close();
+        }
+    }
+}
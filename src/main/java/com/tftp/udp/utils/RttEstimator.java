@@ -0,0 +1,86 @@
+package com.tftp.udp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-transfer retransmission timer in the style of RFC 6298: a smoothed round-trip
+ * time and its variance give the timeout, and each timeout doubles it. Callers apply
+ * Karn's rule by only sampling exchanges that were not retransmitted, and drop the
+ * backoff as soon as the peer acknowledges new data, as TCP stacks do; under steady
+ * loss a transfer that keeps rewinding might otherwise never get a clean sample.
+ *
+ * <p>Only the owning transfer updates an estimator, but the fields are volatile so
+ * the current values can be read from other threads for monitoring.
+ */
+public class RttEstimator {
+    public static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+    public static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final long CLOCK_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private volatile long srttNanos = -1;
+    private volatile long rttvarNanos;
+    private volatile long rtoNanos = INITIAL_RTO_NANOS;
+    private volatile long baseRtoNanos = INITIAL_RTO_NANOS;
+    private volatile long samples;
+
+    public void sample(long rttNanos) {
+        if (rttNanos < 0) return;
+        if (srttNanos < 0) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+        } else {
+            rttvarNanos = (3 * rttvarNanos + Math.abs(srttNanos - rttNanos)) / 4;
+            srttNanos = (7 * srttNanos + rttNanos) / 8;
+        }
+        samples++;
+        baseRtoNanos = clamp(srttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttvarNanos));
+        rtoNanos = baseRtoNanos;
+    }
+
+    /** Exponential backoff after a timeout. */
+    public void backoff() {
+        rtoNanos = clamp(rtoNanos * 2);
+    }
+
+    /** Returns to the estimated timeout once the peer has made progress again. */
+    public void resetBackoff() {
+        rtoNanos = baseRtoNanos;
+    }
+
+    public long rtoNanos() {
+        return rtoNanos;
+    }
+
+    /** Timeout in whole milliseconds, at least 1, as needed by {@code setSoTimeout}. */
+    public int rtoMillis() {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(rtoNanos));
+    }
+
+    /** Smoothed RTT, or -1 before the first sample. */
+    public long srttNanos() {
+        return srttNanos;
+    }
+
+    public long rttvarNanos() {
+        return rttvarNanos;
+    }
+
+    public long samples() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        if (srttNanos < 0) {
+            return String.format("rto=%.1fms (no samples)", rtoNanos / 1e6);
+        }
+        return String.format("srtt=%.2fms rttvar=%.2fms rto=%.1fms samples=%d",
+                srttNanos / 1e6, rttvarNanos / 1e6, rtoNanos / 1e6, samples);
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_NANOS, Math.min(rto, MAX_RTO_NANOS));
+    }
+}
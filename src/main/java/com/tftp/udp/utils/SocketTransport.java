@@ -0,0 +1,112 @@
+package com.tftp.udp.utils;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A {@link DatagramTransport} on a real socket. Receives go through the channel's socket
+ * adaptor, which has the timeouts the channel lacks.
+ */
+public class SocketTransport implements DatagramTransport {
+    private static final int DISCARD_SIZE = 516;
+
+    private final DatagramChannel channel;
+    private final DatagramSocket socket;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+
+    public SocketTransport(DatagramChannel channel) {
+        this.channel = channel;
+        this.socket = channel.socket();
+    }
+
+    /** Opens a socket bound to {@code local}, or to an ephemeral port if it is null. */
+    static SocketTransport open(SocketAddress local) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(local);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new SocketTransport(channel);
+    }
+
+    // Safe from several threads, as a delaying network's timer sends alongside the owner.
+    // The packet is left as it was, for callers that send it again.
+    @Override
+    public void send(ByteBuffer packet, SocketAddress target) throws IOException {
+        int position = packet.position();
+        try {
+            if (target == null) {
+                channel.write(packet);
+            } else {
+                channel.send(packet, target);
+            }
+        } finally {
+            packet.position(position);
+        }
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer buffer, int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        receivePacket.setData(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        socket.receive(receivePacket);
+        buffer.clear().limit(receivePacket.getLength());
+        return receivePacket.getSocketAddress();
+    }
+
+    @Override
+    public void connect(SocketAddress peer) throws IOException {
+        channel.connect(peer);
+    }
+
+    @Override
+    public void disconnect() {
+        socket.disconnect();
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress localAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void reserveReceiveBuffer(int bytes) throws SocketException {
+        if (bytes > socket.getReceiveBufferSize()) {
+            socket.setReceiveBufferSize(bytes);
+        }
+    }
+
+    @Override
+    public void discardPending() throws IOException {
+        channel.configureBlocking(false);
+        try {
+            ByteBuffer discard = ByteBuffer.allocate(DISCARD_SIZE);
+            while (channel.receive(discard.clear()) != null) {
+                // Keep reading until the queue is empty
+            }
+        } finally {
+            channel.configureBlocking(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with it
+        }
+    }
+}
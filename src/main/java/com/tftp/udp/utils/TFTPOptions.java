@@ -0,0 +1,147 @@
+package com.tftp.udp.utils;
+
+import com.tftp.common.TFTPCodec;
+
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Option extension helpers (RFC 2347) shared by the UDP client and server.
+ * Options are appended to RRQ/WRQ packets as name/value pairs of
+ * null-terminated strings and acknowledged by the server with an OACK.
+ */
+public class TFTPOptions {
+    public static final String BLKSIZE = "blksize";
+    public static final String WINDOWSIZE = "windowsize";
+    public static final String MULTICAST = "multicast";
+    public static final String TSIZE = "tsize";
+
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final int MAX_WINDOW_SIZE = 65535;
+
+    private static final int UDP_HEADER = 8;
+    private static final int TFTP_DATA_HEADER = 4;
+
+    private TFTPOptions() {
+    }
+
+    /**
+     * Reads option name/value pairs until the buffer is exhausted. Names are
+     * case-insensitive and are returned in lower case.
+     */
+    public static Map<String, String> parse(ByteBuffer buffer) {
+        Map<String, String> options = new LinkedHashMap<>();
+        while (buffer.hasRemaining()) {
+            String name = TFTPCodec.readString(buffer);
+            if (name.isEmpty() || !buffer.hasRemaining()) break;
+            options.put(name.toLowerCase(), TFTPCodec.readString(buffer));
+        }
+        return options;
+    }
+
+    /**
+     * Returns the block size to use for a requested blksize value, capped at
+     * {@code limit}, or -1 if the value is malformed or below the RFC 2348 minimum.
+     */
+    public static int negotiateBlockSize(String requested, int limit) {
+        int value;
+        try {
+            value = Integer.parseInt(requested.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (value < MIN_BLOCK_SIZE) return -1;
+        return Math.min(value, Math.min(limit, MAX_BLOCK_SIZE));
+    }
+
+    /**
+     * Returns the window size (RFC 7440) to use for a requested windowsize value,
+     * capped at {@code limit}, or -1 if the value is malformed or not positive.
+     */
+    public static int negotiateWindowSize(String requested, int limit) {
+        int value;
+        try {
+            value = Integer.parseInt(requested.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (value < 1) return -1;
+        return Math.min(value, Math.min(limit, MAX_WINDOW_SIZE));
+    }
+
+    /**
+     * Parses a tsize value (RFC 2349): the size of the file in bytes, or 0 in an RRQ
+     * asking the server for it. Returns -1 if the value is malformed or negative.
+     */
+    public static long parseTransferSize(String value) {
+        try {
+            long size = Long.parseLong(value.trim());
+            return size < 0 ? -1 : size;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Largest block size whose DATA packet fits in a single IP datagram on the
+     * interface used to reach {@code peer}. Falls back to the default block size
+     * when the interface MTU cannot be determined.
+     */
+    public static int pathMtuBlockSize(InetAddress peer) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            // Connecting a datagram socket only selects a route, nothing is sent
+            probe.connect(peer, 9);
+            NetworkInterface nif = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (nif == null || nif.getMTU() <= 0) return DEFAULT_BLOCK_SIZE;
+
+            int ipHeader = peer instanceof Inet6Address ? 40 : 20;
+            int blockSize = nif.getMTU() - ipHeader - UDP_HEADER - TFTP_DATA_HEADER;
+            return Math.max(MIN_BLOCK_SIZE, Math.min(blockSize, MAX_BLOCK_SIZE));
+        } catch (SocketException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /** Value of the RFC 2090 multicast option in an OACK: "address,port,mc". */
+    public static String multicastValue(InetAddress group, int port, boolean master) {
+        return group.getHostAddress() + "," + port + "," + (master ? 1 : 0);
+    }
+
+    /**
+     * Interface for multicast traffic: the one named by {@code -Dtftp.multicast.interface}
+     * if set, otherwise the interface used to reach {@code peer} when it supports
+     * multicast, otherwise the first multicast-capable interface that is up. Returns
+     * null to leave the choice to the operating system.
+     */
+    public static NetworkInterface multicastInterface(InetAddress peer) {
+        try {
+            String name = System.getProperty("tftp.multicast.interface");
+            if (name != null) return NetworkInterface.getByName(name);
+
+            if (peer != null) {
+                try (DatagramSocket probe = new DatagramSocket()) {
+                    probe.connect(peer, 9);
+                    NetworkInterface nif = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+                    if (nif != null && nif.isUp() && nif.supportsMulticast()) return nif;
+                }
+            }
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces.hasMoreElements()) {
+                NetworkInterface nif = interfaces.nextElement();
+                if (nif.isUp() && nif.supportsMulticast() && !nif.isLoopback()) return nif;
+            }
+        } catch (SocketException e) {
+            // Fall through to the system default
+        }
+        return null;
+    }
+}
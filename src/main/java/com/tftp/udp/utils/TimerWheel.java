@@ -0,0 +1,91 @@
+package com.tftp.udp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Hashed timer wheel for retransmission deadlines. Scheduling is O(1) and each tick
+ * only looks at one slot, so thousands of pending timers cost almost nothing when
+ * idle. Entries cannot be cancelled; callers skip stale ones when they fire.
+ * Not thread-safe: meant to be owned by a single event loop.
+ */
+public class TimerWheel<T> {
+    private static class Entry<T> {
+        final T item;
+        final long deadline;
+        final long tick;
+
+        Entry(T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<List<Entry<T>>> slots;
+    private final int mask;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos resolution of the wheel
+     * @param slotCount number of slots, rounded up to a power of two
+     */
+    public TimerWheel(long tickNanos, int slotCount) {
+        this.tickNanos = tickNanos;
+        int n = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.mask = n - 1;
+        this.currentTick = System.nanoTime() / tickNanos;
+    }
+
+    public void schedule(T item, long deadlineNanos) {
+        long tick = Math.max(deadlineNanos / tickNanos, currentTick);
+        slots.get((int) (tick & mask)).add(new Entry<>(item, deadlineNanos, tick));
+        size++;
+    }
+
+    /** Fires every entry due at or before {@code nowNanos}, passing the deadline it was scheduled with. */
+    public void expire(long nowNanos, BiConsumer<T, Long> action) {
+        long nowTick = nowNanos / tickNanos;
+        if (size == 0) {
+            currentTick = nowTick;
+            return;
+        }
+
+        List<Entry<T>> due = new ArrayList<>();
+        // Bound the sweep to one revolution after a long idle select
+        long from = Math.max(currentTick, nowTick - mask);
+        for (long tick = from; tick <= nowTick; tick++) {
+            List<Entry<T>> slot = slots.get((int) (tick & mask));
+            if (slot.isEmpty()) continue;
+            // Entries for later revolutions of the wheel stay where they are
+            slot.removeIf(entry -> {
+                if (entry.tick > nowTick) return false;
+                due.add(entry);
+                return true;
+            });
+        }
+        currentTick = nowTick + 1;
+        size -= due.size();
+
+        for (Entry<T> entry : due) {
+            action.accept(entry.item, entry.deadline);
+        }
+    }
+
+    /** Nanoseconds until the next tick boundary, or -1 if the wheel is empty. */
+    public long nanosUntilNextTick(long nowNanos) {
+        if (size == 0) return -1;
+        return tickNanos - (nowNanos % tickNanos);
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,128 @@
+package com.tftp.udp.server;
+
+import com.tftp.common.TFTPCodec;
+import com.tftp.udp.client.TransferClientUDP;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.TFTPOptions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Sparse files of more blocks than a 16-bit block number can count, sent both ways over
+ * loopback, so the block numbers wrap and both ends preallocate from tsize.
+ */
+class LargeFileTransferTest {
+    private static final int BLOCK_SIZE = 512;
+    private static final long BLOCKS = 70_000;
+    private static final TransferClientUDP.Options OPTIONS = new TransferClientUDP.Options(BLOCK_SIZE, 16, false);
+
+    private static LoopbackServer server;
+    private static TransferClientUDP client;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new LoopbackServer(DatagramNetwork.SYSTEM);
+        client = new TransferClientUDP(server.address(), null, 4, DatagramNetwork.SYSTEM);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void downloadPastBlockNumberWraparound() throws Exception {
+        Path source = sparseFile(directory.resolve("source.bin"), BLOCKS * BLOCK_SIZE + 123);
+        Path target = directory.resolve("download.bin");
+
+        client.get(source.toString(), target, OPTIONS).get(60, TimeUnit.SECONDS);
+
+        assertSameContent(source, target);
+    }
+
+    @Test
+    void uploadPastBlockNumberWraparound() throws Exception {
+        // A whole number of blocks, so the transfer ends with an empty DATA packet
+        Path source = sparseFile(directory.resolve("source.bin"), BLOCKS * BLOCK_SIZE);
+
+        client.put(source, "wraparound.bin", OPTIONS).get(60, TimeUnit.SECONDS);
+
+        assertSameContent(source, LoopbackServer.UPLOADS.resolve("wraparound.bin"));
+    }
+
+    @Test
+    void uploadIsTrimmedToWhatArrived() throws Exception {
+        byte[] content = "announced as far longer than it is\n".repeat(40).getBytes(StandardCharsets.US_ASCII);
+        Path stored = LoopbackServer.UPLOADS.resolve("trimmed.bin");
+
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            socket.setSoTimeout(5000);
+            ByteBuffer packet = ByteBuffer.allocate(TFTPCodec.HEADER_SIZE + BLOCK_SIZE);
+            TFTPCodec.encodeRequest(packet, TFTPCodec.OP_WRQ, "trimmed.bin", "octet",
+                    Map.of(TFTPOptions.TSIZE, "1000000"));
+            socket.send(new DatagramPacket(packet.array(), packet.limit(), server.address()));
+            SocketAddress transferId = receive(socket, packet, TFTPCodec.OP_OACK);
+
+            for (int block = 1, offset = 0; ; block++, offset += BLOCK_SIZE) {
+                int length = Math.min(BLOCK_SIZE, content.length - offset);
+                packet.clear().position(TFTPCodec.HEADER_SIZE);
+                packet.put(content, offset, length);
+                TFTPCodec.encodeData(packet, block, length);
+                socket.send(new DatagramPacket(packet.array(), packet.limit(), transferId));
+                receive(socket, packet, TFTPCodec.OP_ACK);
+                assertEquals(block, TFTPCodec.blockNumber(packet));
+                if (length < BLOCK_SIZE) break;
+            }
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(stored));
+    }
+
+    // Data at the start, either side of the first wraparound and at the end, holes in between
+    private static Path sparseFile(Path file, long size) throws IOException {
+        long[] offsets = {0, 0xFFFFL * BLOCK_SIZE - 100, 0x10000L * BLOCK_SIZE + 7, size - 64};
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long offset : offsets) {
+                channel.write(ByteBuffer.wrap(("@" + offset).repeat(3).getBytes(StandardCharsets.US_ASCII)), offset);
+            }
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xA5}), size - 1);
+        }
+        return file;
+    }
+
+    private static SocketAddress receive(DatagramSocket socket, ByteBuffer packet, short opcode) throws IOException {
+        DatagramPacket datagram = new DatagramPacket(packet.array(), packet.capacity());
+        socket.receive(datagram);
+        packet.clear().limit(datagram.getLength());
+        assertEquals(opcode, TFTPCodec.opcode(packet));
+        return datagram.getSocketAddress();
+    }
+
+    private static void assertSameContent(Path expected, Path actual) throws IOException {
+        assertEquals(Files.size(expected), Files.size(actual));
+        assertEquals(-1, Files.mismatch(expected, actual));
+    }
+}
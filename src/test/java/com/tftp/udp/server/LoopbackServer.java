@@ -0,0 +1,55 @@
+package com.tftp.udp.server;
+
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.DatagramTransport;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The thread-per-transfer UDP server on an ephemeral loopback port, for tests. Uploads
+ * land in {@link #UPLOADS}, a temporary directory shared by every server in the JVM,
+ * since the server reads its upload directory once.
+ */
+final class LoopbackServer implements AutoCloseable {
+    static final Path UPLOADS;
+
+    static {
+        try {
+            UPLOADS = Files.createTempDirectory("tftp-uploads");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.setProperty("tftp.upload.dir", UPLOADS.toString());
+    }
+
+    private final DatagramTransport listener;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    LoopbackServer(DatagramNetwork network) throws IOException {
+        listener = network.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread.ofPlatform().daemon().name("tftp-test-listener").start(() -> {
+            try {
+                TFTPServerUDP.serve(listener, network, executor);
+            } catch (IOException e) {
+                // The listener was closed
+            }
+        });
+    }
+
+    InetSocketAddress address() {
+        return (InetSocketAddress) listener.localAddress();
+    }
+
+    @Override
+    public void close() {
+        listener.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,81 @@
+package com.tftp.udp.server;
+
+import com.tftp.udp.client.TransferClientUDP;
+import com.tftp.udp.utils.DatagramNetwork;
+import com.tftp.udp.utils.LossyNetwork;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Transfers both ways with both ends on a seeded {@link LossyNetwork}, so that blocks
+ * and acknowledgements are lost, duplicated and reordered and have to be recovered.
+ */
+class LossyTransferTest {
+    private static final int SIZE = 2 * 1024 * 1024 + 321;
+    private static final TransferClientUDP.Options OPTIONS = new TransferClientUDP.Options(1428, 8, false);
+    private static final LossyNetwork NETWORK = new LossyNetwork(DatagramNetwork.SYSTEM,
+            new LossyNetwork.Impairment(0.05, 0, 0, 0.01, 0.01, 5), 7);
+
+    private static LoopbackServer server;
+    private static TransferClientUDP client;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new LoopbackServer(NETWORK);
+        client = new TransferClientUDP(server.address(), null, 4, NETWORK);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void downloadRecoversFromLoss() throws Exception {
+        Path source = randomFile(directory.resolve("source.bin"), 1);
+        Path target = directory.resolve("download.bin");
+        long dropped = NETWORK.dropped();
+
+        client.get(source.toString(), target, OPTIONS).get(120, TimeUnit.SECONDS);
+
+        assertSameContent(source, target);
+        assertTrue(NETWORK.dropped() > dropped, "no packet was lost");
+    }
+
+    @Test
+    void uploadRecoversFromLoss() throws Exception {
+        Path source = randomFile(directory.resolve("source.bin"), 2);
+        long dropped = NETWORK.dropped();
+
+        client.put(source, "lossy.bin", OPTIONS).get(120, TimeUnit.SECONDS);
+
+        assertSameContent(source, LoopbackServer.UPLOADS.resolve("lossy.bin"));
+        assertTrue(NETWORK.dropped() > dropped, "no packet was lost");
+    }
+
+    private static Path randomFile(Path file, long seed) throws IOException {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return Files.write(file, content);
+    }
+
+    private static void assertSameContent(Path expected, Path actual) throws IOException {
+        assertEquals(Files.size(expected), Files.size(actual));
+        assertEquals(-1, Files.mismatch(expected, actual));
+    }
+}